@@ -8,6 +8,7 @@ import org.gradle.internal.os.OperatingSystem
 
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 // Sets the Java version to use for compiling your library.
@@ -116,6 +117,83 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// The Vector API kernels need the jdk.incubator.vector module, so they are compiled
+// separately and added to the library jar. The library loads them by name and only
+// uses them if the sketch was started with --add-modules jdk.incubator.vector.
+sourceSets {
+    create("vector") {
+        compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    }
+}
+
+tasks.named<JavaCompile>("compileVectorJava") {
+    options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+}
+
+// Run the tests with the Vector API kernels so they are compared to the scalar kernels.
+tasks.test {
+    classpath += sourceSets["vector"].output
+    jvmArgs("--add-modules", "jdk.incubator.vector")
+}
+
+tasks.jar {
+    from(sourceSets["vector"].output)
+    // lets the jar run the batch tool with java -jar ColorBlindness.jar
+    manifest {
+        attributes("Main-Class" to "colorblind.tools.BatchTransform")
+    }
+}
+
+// Transform every image in a directory without Processing, for example:
+// ./gradlew batchTransform --args="--daltonize assets/ out/"
+tasks.register<JavaExec>("batchTransform") {
+    group = "processing"
+    description = "Transforms every image in a directory with the BatchTransform tool."
+    classpath = sourceSets.main.get().runtimeClasspath + sourceSets["vector"].output
+    mainClass.set("colorblind.tools.BatchTransform")
+    jvmArgs("--add-modules", "jdk.incubator.vector", "-Djava.awt.headless=true")
+}
+
+// Transform a PPM, PAM or raw image file that is too big for the heap, for example:
+// ./gradlew mappedTransform --args="--daltonize map.ppm map-daltonized.ppm"
+tasks.register<JavaExec>("mappedTransform") {
+    group = "processing"
+    description = "Transforms a large uncompressed image file with the MappedImageTransform tool."
+    classpath = sourceSets.main.get().runtimeClasspath + sourceSets["vector"].output
+    mainClass.set("colorblind.tools.MappedImageTransform")
+    jvmArgs("--add-modules", "jdk.incubator.vector")
+}
+
+// Transform a huge PNG or JPEG image one strip at a time, for example:
+// ./gradlew streamingTransform --args="--strip 512 mosaic.png mosaic-protanopia.png"
+tasks.register<JavaExec>("streamingTransform") {
+    group = "processing"
+    description = "Transforms an image too big for the heap with the StreamingImageTransform tool."
+    classpath = sourceSets.main.get().runtimeClasspath + sourceSets["vector"].output
+    mainClass.set("colorblind.tools.StreamingImageTransform")
+    jvmArgs("--add-modules", "jdk.incubator.vector", "-Djava.awt.headless=true")
+}
+
+// JMH benchmarks in src/jmh/java. Run them all with ./gradlew jmh, or some of them with
+// ./gradlew jmh -PjmhIncludes=TransformBenchmark.transformPixels
+// Results are written as JSON to build/results/jmh/results.json so runs can be compared.
+// No results are checked in. Run the benchmarks on your own machine to get numbers.
+dependencies {
+    "jmh"(group = "org.processing", name = "core", version = "4.3.1")
+    "jmh"(files(sourceSets["vector"].output))
+}
+
+jmh {
+    jmhVersion = "1.37"
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    jvmArgsAppend = listOf("--add-modules", "jdk.incubator.vector", "-Djava.awt.headless=true")
+    if (project.hasProperty("jmhIncludes")) {
+        includes = listOf(project.property("jmhIncludes").toString())
+    }
+}
+
 //==============================
 // END USER BUILD CONFIGURATIONS
 //==============================
@@ -34,6 +34,7 @@ import controlP5.Slider;
 
 import colorblind.ColorBlindness;
 import colorblind.Deficiency;
+import colorblind.generators.ColorMapRegistry;
 import colorblind.generators.ColorTransformGenerator;
 
 enum Action {
@@ -121,6 +122,11 @@ void setCurrentGenerators() {
   if (deficiency == null) {
     return;
   } else {
+    // compute the lookup tables for the selected deficiency in the
+    // background, so they are ready when a transformation is selected. only
+    // this one is preloaded because each table uses 64 MB of RAM.
+    ColorMapRegistry.preload(deficiency);
+
     /*
      * create generators for color blindness simulation and daltonization.
      *
@@ -11,6 +11,7 @@ import java.util.Map.Entry;
 import colorblind.ColorBlindness;
 import colorblind.Deficiency;
 import colorblind.generators.ColorTransformGenerator;
+import colorblind.generators.ComposedGenerator;
 
 import controlP5.Button;
 import controlP5.ControlEvent;
@@ -27,6 +28,7 @@ ControlP5 cp5;
 ColorBlindness colorBlindness;
 ColorTransformGenerator currentSimulator;
 ColorTransformGenerator currentDaltonizer;
+ColorTransformGenerator currentDaltonizeAndSimulate;
 
 // ControlP5 variables
 boolean ready;
@@ -201,8 +203,7 @@ void transformImage() {
       println("Daltonization not defined for the selected deficiency.");
       return;
     }
-    outputImage = currentDaltonizer.transformPImage(inputImage);
-    outputImage = currentSimulator.transformPImage(outputImage);
+    outputImage = currentDaltonizeAndSimulate.transformPImage(inputImage);
   }
 
   if (outputImage == null) {
@@ -318,9 +319,18 @@ void setCurrentGenerators() {
       deficiency == Deficiency.BLUE_CONE_MONOCHROMACY) {
       println("Note: for achromatopsia and blue cone monochromacy, daltonization not defined.");
       currentDaltonizer = null;
+      currentDaltonizeAndSimulate = null;
     } else {
       currentDaltonizer = colorBlindness.daltonize(deficiency)
           .setDynamicAmount().setAmount(amount / 100f);
+
+      /*
+       * apply both generators in one pass. this follows changes to their
+       * amounts, and because the amount changes with the slider, do the math
+       * for each pixel instead of computing a new lookup table every time.
+       */
+      currentDaltonizeAndSimulate = new ComposedGenerator(currentDaltonizer,
+          currentSimulator).useAnalytic();
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package colorblind;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import colorblind.generators.util.Vector;
+
+/**
+ * The color conversions used to build lookup tables and to find confusing
+ * colors. Each call converts many random colors so the results are per color.
+ * 
+ * @author James Schmitz
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ColorUtilitiesBenchmark {
+
+    private static final int COLORS = 1024;
+
+    @Param({ "PROTANOPIA", "DEUTERANOPIA", "TRITANOPIA" })
+    public Deficiency deficiency;
+
+    private int[] colors;
+    private Vector[] lmsColors;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        colors = new int[COLORS];
+        lmsColors = new Vector[COLORS];
+        for (int i = 0; i < COLORS; ++i) {
+            colors[i] = 0xFF000000 | random.nextInt();
+            lmsColors[i] = ColorUtilities.convertPColor2LMS(colors[i]);
+        }
+
+        // the LMS value each deficiency can't see.
+        index = deficiency.ordinal() + 1;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLORS)
+    public void convertPColor2LMS(Blackhole blackhole) {
+        for (int color : colors) {
+            blackhole.consume(ColorUtilities.convertPColor2LMS(color));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLORS)
+    public void confusingDichromaticColor(Blackhole blackhole) {
+        for (int color : colors) {
+            blackhole.consume(ColorUtilities.confusingDichromaticColor(
+                    deficiency, color, 0.25f));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLORS)
+    public void lmsFeasibleBisectionSearch(Blackhole blackhole) {
+        for (Vector lms : lmsColors) {
+            blackhole.consume(ColorUtilities.lmsFeasibleBisectionSearch(lms,
+                    index, 1));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package colorblind.generators;
+
+import java.util.Random;
+
+/**
+ * Test images for the benchmarks.
+ * 
+ * @author James Schmitz
+ *
+ */
+class BenchmarkImages {
+
+    /**
+     * Number of pixels at a resolution name.
+     */
+    static int pixelCount(String resolution) {
+        switch (resolution) {
+        case "720p":
+            return 1280 * 720;
+        case "1080p":
+            return 1920 * 1080;
+        case "4K":
+            return 3840 * 2160;
+        default:
+            throw new RuntimeException("Unknown resolution " + resolution);
+        }
+    }
+
+    static int width(String resolution) {
+        switch (resolution) {
+        case "720p":
+            return 1280;
+        case "1080p":
+            return 1920;
+        case "4K":
+            return 3840;
+        default:
+            throw new RuntimeException("Unknown resolution " + resolution);
+        }
+    }
+
+    /**
+     * Opaque pixels of either random colors, or runs of a few dozen colors
+     * like a chart or user interface.
+     */
+    static int[] create(String content, int length) {
+        Random random = new Random(42);
+        int[] pixels = new int[length];
+
+        if (content.equals("RANDOM")) {
+            for (int i = 0; i < length; ++i) {
+                pixels[i] = 0xFF000000 | random.nextInt();
+            }
+        } else if (content.equals("PALETTE")) {
+            int[] palette = new int[32];
+            for (int i = 0; i < palette.length; ++i) {
+                palette[i] = 0xFF000000 | random.nextInt();
+            }
+            int i = 0;
+            while (i < length) {
+                int run = Math.min(length - i, 1 + random.nextInt(200));
+                int color = palette[random.nextInt(palette.length)];
+                for (int j = 0; j < run; ++j) {
+                    pixels[i++] = color;
+                }
+            }
+        } else {
+            throw new RuntimeException("Unknown content " + content);
+        }
+
+        return pixels;
+    }
+}
@@ -0,0 +1,73 @@
+package colorblind.generators;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import colorblind.Deficiency;
+
+/**
+ * Time to compute the full 64 MB lookup table for each deficiency. This is
+ * what a sketch waits for the first time it uses a generator.
+ * 
+ * The generators are called directly so the ColorMapRegistry and
+ * ColorMapCache don't return a table computed earlier.
+ * 
+ * @author James Schmitz
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ColorMapLookupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Simulator {
+        @Param({ "PROTANOPIA", "DEUTERANOPIA", "TRITANOPIA",
+                "ACHROMATOPSIA", "BLUE_CONE_MONOCHROMACY" })
+        public Deficiency deficiency;
+
+        ColorTransformGenerator generator;
+
+        @Setup
+        public void setup() {
+            generator = ColorDeficiencySimulator.createSimulator(deficiency);
+        }
+    }
+
+    /**
+     * Daltonizing is only defined for the dichromatic deficiencies.
+     */
+    @State(Scope.Benchmark)
+    public static class Daltonizer {
+        @Param({ "PROTANOPIA", "DEUTERANOPIA", "TRITANOPIA" })
+        public Deficiency deficiency;
+
+        ColorTransformGenerator generator;
+
+        @Setup
+        public void setup() {
+            generator = DaltonizeGenerator.createDaltonizer(deficiency);
+        }
+    }
+
+    @Benchmark
+    public int[] simulate(Simulator state) {
+        return state.generator.computeColorMapLookup(1);
+    }
+
+    @Benchmark
+    public int[] daltonize(Daltonizer state) {
+        return state.generator.computeColorMapLookup(1);
+    }
+}
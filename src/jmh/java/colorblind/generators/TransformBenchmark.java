@@ -0,0 +1,197 @@
+package colorblind.generators;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import colorblind.Deficiency;
+import colorblind.generators.util.ColorLattice;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Per frame and per image transforms.
+ * 
+ * The amount parameter selects each branch of the transform: 0 copies the
+ * pixels, 1 and 0.5 look up colors in a table computed for that amount, and
+ * DYNAMIC looks up the full deficiency and blends it with the original color
+ * at amount 0.5.
+ * 
+ * The per frame transforms are also run with each engine, with and without
+ * the Vector API and fixed point blending, with each palette mode, and on one
+ * or several threads. Pass -p to JMH to run only some of them, such as
+ * -p engine=ANALYTIC -p parallelism=1.
+ * 
+ * @author James Schmitz
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransformBenchmark {
+
+    /**
+     * Number of colors transformed by each call to transformColor().
+     */
+    private static final int COLORS = 4096;
+
+    @State(Scope.Benchmark)
+    public static class Frame {
+        @Param({ "720p", "1080p", "4K" })
+        public String resolution;
+
+        @Param({ "RANDOM", "PALETTE" })
+        public String content;
+
+        @Param({ "0", "0.5", "1", "DYNAMIC" })
+        public String amount;
+
+        @Param({ "LOOKUP_TABLE", "LATTICE", "ANALYTIC" })
+        public ColorTransformGenerator.Engine engine;
+
+        @Param({ "true", "false" })
+        public boolean vectorized;
+
+        @Param({ "false", "true" })
+        public boolean fixedPointBlend;
+
+        @Param({ "AUTO", "NEVER", "ALWAYS" })
+        public ColorTransformGenerator.PaletteMode paletteMode;
+
+        @Param({ "1", "4" })
+        public int parallelism;
+
+        ColorTransformGenerator generator;
+        int[] src;
+        int[] dst;
+
+        @Setup
+        public void setup() {
+            generator = createGenerator(amount, engine, vectorized,
+                    fixedPointBlend, paletteMode, parallelism);
+            src = BenchmarkImages.create(content, BenchmarkImages.pixelCount(
+                    resolution));
+            dst = new int[src.length];
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Image {
+        @Param({ "720p", "1080p" })
+        public String resolution;
+
+        @Param({ "1", "DYNAMIC" })
+        public String amount;
+
+        ColorTransformGenerator generator;
+        PImage img;
+
+        @Setup
+        public void setup() {
+            generator = createGenerator(amount);
+
+            int width = BenchmarkImages.width(resolution);
+            int height = BenchmarkImages.pixelCount(resolution) / width;
+            img = new PImage(width, height, PConstants.ARGB);
+            int[] pixels = BenchmarkImages.create("RANDOM", width * height);
+            // vary the alpha channel so it has to be kept.
+            for (int i = 0; i < pixels.length; ++i) {
+                pixels[i] = (pixels[i] & 0x00FFFFFF) | (i & 0xFF) << 24;
+            }
+            img.loadPixels();
+            System.arraycopy(pixels, 0, img.pixels, 0, pixels.length);
+            img.updatePixels();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Colors {
+        @Param({ "1", "DYNAMIC" })
+        public String amount;
+
+        ColorTransformGenerator generator;
+        int[] colors;
+
+        @Setup
+        public void setup() {
+            generator = createGenerator(amount);
+            colors = BenchmarkImages.create("RANDOM", COLORS);
+        }
+    }
+
+    static ColorTransformGenerator createGenerator(String amount) {
+        return createGenerator(amount,
+                ColorTransformGenerator.Engine.LOOKUP_TABLE, true, false,
+                ColorTransformGenerator.PaletteMode.AUTO, 1);
+    }
+
+    static ColorTransformGenerator createGenerator(String amount,
+            ColorTransformGenerator.Engine engine, boolean vectorized,
+            boolean fixedPointBlend,
+            ColorTransformGenerator.PaletteMode paletteMode, int parallelism) {
+        ColorTransformGenerator generator = ColorDeficiencySimulator
+                .createSimulator(Deficiency.DEUTERANOPIA);
+        generator.setAsyncLookupTable(false);
+        generator.setVectorized(vectorized);
+        generator.setFixedPointBlend(fixedPointBlend);
+        generator.setPaletteMode(paletteMode);
+        generator.setParallelism(parallelism);
+
+        if (amount.equals("DYNAMIC")) {
+            generator.setDynamicAmount();
+            generator.setAmount(0.5f);
+        } else {
+            generator.setAmount(Float.parseFloat(amount));
+        }
+        // compute the table used by the engine before measuring.
+        switch (engine) {
+            case LOOKUP_TABLE:
+                generator.useLookupTable();
+                generator.getColorMap();
+                break;
+            case LATTICE:
+                generator.useLattice(ColorLattice.LARGE);
+                generator.getLattice();
+                break;
+            case ANALYTIC:
+                generator.useAnalytic();
+                break;
+        }
+
+        return generator;
+    }
+
+    @Benchmark
+    public int[] transformPixels(Frame frame) {
+        frame.generator.transformPixels(frame.src, frame.dst);
+
+        return frame.dst;
+    }
+
+    @Benchmark
+    public PImage transformPImage(Image image) {
+        return image.generator.transformPImage(image.img);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(COLORS)
+    public void transformColor(Colors colors, Blackhole blackhole) {
+        ColorTransformGenerator generator = colors.generator;
+        for (int color : colors.colors) {
+            blackhole.consume(generator.transformColor(color));
+        }
+    }
+}
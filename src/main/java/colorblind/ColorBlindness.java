@@ -9,12 +9,56 @@ import processing.core.PConstants;
 import processing.event.KeyEvent;
 import colorblind.generators.ColorDeficiencySimulator;
 import colorblind.generators.ColorTransformGenerator;
+import colorblind.generators.ComposedGenerator;
 import colorblind.generators.DaltonizeGenerator;
 import colorblind.generators.Generator;
 import colorblind.generators.RegularRenderer;
+import colorblind.generators.SplitViewGenerator;
 
 public class ColorBlindness implements PConstants {
 
+    /**
+     * How each frame is transformed, and how the untransformed frame is put
+     * back before the next frame is drawn.
+     */
+    public enum FramePipeline {
+        /**
+         * Copy the frame before transforming it in place and copy it back
+         * before the next frame. This uses two full frame copies per frame.
+         * This is the default.
+         */
+        COPY,
+        /**
+         * Transform the frame into a second pixel array and swap the arrays.
+         * The untransformed frame is put back by swapping them again, so no
+         * copies are needed, but the sketch's pixels array is replaced
+         * while the frame is shown.
+         */
+        SWAP,
+        /**
+         * Transform each frame on a background thread while the sketch draws
+         * the next frame. The transformed frame is shown one frame later,
+         * but a slow generator no longer lowers the frame rate as long as it
+         * is faster than drawing a frame.
+         */
+        PIPELINED
+    }
+
+    /**
+     * What saving a frame does when the background writers are behind.
+     */
+    public enum SavePolicy {
+        /**
+         * Wait until a writer is done with a frame. No frames are lost but
+         * the sketch slows down to the writers' speed. This is the default.
+         */
+        BLOCK,
+        /**
+         * Don't save the frame, so the sketch keeps its frame rate.
+         */
+        DROP
+    }
+
     public final static String VERSION = "##library.prettyVersion##";
 
     private PApplet parent;
@@ -22,13 +66,27 @@ public class ColorBlindness implements PConstants {
     private int pixelCount;
     float avgGeneratorTimeMillis;
     float avgDrawTimeMillis;
+    private int fallbackFrameCount;
+    private boolean lastFrameUsedFallback;
 
     private String saveFrameLocation;
     private boolean enableSaveFrame;
     private boolean saveNextFrame;
     private char saveFrameKey;
     private int saveFrameNum;
-    private boolean reportStats;
+    // null when not recording every frame.
+    private String recordLocation;
+    // saves frames on background threads. created when first needed.
+    private FrameWriter frameWriter;
+    private boolean asyncSaveFrame;
+    private SavePolicy savePolicy;
+    private int saveQueueSize;
+    private int saveCompressionLevel;
+    private StatsReporter statsReporter;
+    private final FrameMetrics frameMetrics;
+    // end of the last pre() call and of the last frame, for timing.
+    private long preEndTime;
+    private long lastFrameTime;
     private String parentClassName;
 
     private Generator generator;
@@ -36,6 +94,20 @@ public class ColorBlindness implements PConstants {
     private int[] cachedPixels;
     private boolean active;
 
+    private FramePipeline framePipeline;
+    private boolean restoreFrame;
+    // pixel arrays used by the SWAP pipeline. untransformedPixels is null if
+    // the last frame was not transformed.
+    private int[] untransformedPixels;
+    private int[] transformedPixels;
+    private int[] spareBuffer;
+    // used by the PIPELINED pipeline. sketchPixels is the array the sketch
+    // draws into while the pipeline owns the other arrays.
+    private TransformPipeline transformPipeline;
+    private int[] sketchPixels;
+    // null if every frame is transformed completely.
+    private DeltaTransformer deltaTransformer;
+
     public ColorBlindness(PApplet parent) {
         this.parent = parent;
 
@@ -47,15 +119,25 @@ public class ColorBlindness implements PConstants {
         parent.registerMethod("pre", this);
         parent.registerMethod("draw", this);
         parent.registerMethod("keyEvent", this);
+        parent.registerMethod("dispose", this);
 
         avgGeneratorTimeMillis = 1;
         pixelCount = parent.width * parent.height * parent.pixelDensity * parent.pixelDensity;
         cachedPixels = null;
         active = true;
+        framePipeline = FramePipeline.COPY;
+        restoreFrame = true;
 
         enableSaveFrame = false;
         saveNextFrame = false;
-        reportStats = false;
+        asyncSaveFrame = true;
+        savePolicy = SavePolicy.BLOCK;
+        saveQueueSize = 4;
+        saveCompressionLevel = 4;
+        statsReporter = null;
+
+        frameMetrics = new FrameMetrics();
+        frameMetrics.registerMBean(parentClassName);
 
         renderRegular();
     }
@@ -96,6 +178,22 @@ public class ColorBlindness implements PConstants {
         return simulate(Deficiency.BLUE_CONE_MONOCHROMACY);
     }
 
+    /**
+     * Simulate an anomalous trichromacy, such as protanomaly for
+     * PROTANOPIA. The severity can be changed later with setSeverity()
+     * without computing a new lookup table.
+     * 
+     * @param colorBlindness
+     *                       PROTANOPIA, DEUTERANOPIA or TRITANOPIA
+     * @param severity
+     *                       in range [0, 1]
+     * @return
+     */
+    public ColorTransformGenerator simulate(Deficiency colorBlindness,
+            float severity) {
+        return simulate(colorBlindness).setSeverity(severity);
+    }
+
     public ColorTransformGenerator daltonize(Deficiency colorBlindness) {
         ColorTransformGenerator generator = DaltonizeGenerator
                 .createDaltonizer(colorBlindness);
@@ -117,6 +215,21 @@ public class ColorBlindness implements PConstants {
         return daltonize(Deficiency.TRITANOPIA);
     }
 
+    /**
+     * Daltonize an anomalous trichromacy. The severity can be changed later
+     * with setSeverity() without computing a new lookup table.
+     * 
+     * @param colorBlindness
+     *                       PROTANOPIA, DEUTERANOPIA or TRITANOPIA
+     * @param severity
+     *                       in range [0, 1]
+     * @return
+     */
+    public ColorTransformGenerator daltonize(Deficiency colorBlindness,
+            float severity) {
+        return daltonize(colorBlindness).setSeverity(severity);
+    }
+
     // Removing these because the math just doesn't make sense to daltonize
     // monochromatic deficiencies.
     // public ColorTransformGenerator daltonizeAchromatopsia() {
@@ -127,6 +240,72 @@ public class ColorBlindness implements PConstants {
     // return daltonize(Deficiency.BLUE_CONE_MONOCHROMACY);
     // }
 
+    /**
+     * Apply several generators one after the other using one fused lookup
+     * table.
+     *
+     * @param stages
+     *               generators in the order they are applied
+     * @return
+     */
+    public ComposedGenerator compose(ColorTransformGenerator... stages) {
+        ComposedGenerator generator = new ComposedGenerator(stages);
+
+        setGenerator(generator);
+
+        return generator;
+    }
+
+    /**
+     * Daltonize and then simulate the same deficiency, to see how the
+     * daltonized colors look to a colorblind person.
+     *
+     * @param colorBlindness
+     * @return
+     */
+    public ComposedGenerator daltonizeAndSimulate(Deficiency colorBlindness) {
+        return compose(DaltonizeGenerator.createDaltonizer(colorBlindness),
+                ColorDeficiencySimulator.createSimulator(colorBlindness));
+    }
+
+    /**
+     * Show a different generator in each region of the frame.
+     *
+     * @param layout
+     * @param views
+     *               generator for each region. null shows the original
+     *               colors.
+     * @return
+     */
+    public SplitViewGenerator splitView(SplitViewGenerator.Layout layout,
+            ColorTransformGenerator... views) {
+        SplitViewGenerator generator = new SplitViewGenerator(
+                parent.pixelWidth, parent.pixelHeight, layout, views);
+
+        setGenerator(generator);
+
+        return generator;
+    }
+
+    /**
+     * Simulate several deficiencies side by side, such as protanopia,
+     * deuteranopia, tritanopia and achromatopsia in four quadrants.
+     *
+     * @param layout
+     * @param deficiencies
+     * @return
+     */
+    public SplitViewGenerator simulateSplitView(
+            SplitViewGenerator.Layout layout, Deficiency... deficiencies) {
+        ColorTransformGenerator[] views = new ColorTransformGenerator[deficiencies.length];
+        for (int i = 0; i < deficiencies.length; ++i) {
+            views[i] = ColorDeficiencySimulator
+                    .createSimulator(deficiencies[i]);
+        }
+
+        return splitView(layout, views);
+    }
+
     public RegularRenderer renderRegular() {
         RegularRenderer generator = new RegularRenderer();
 
@@ -139,6 +318,8 @@ public class ColorBlindness implements PConstants {
         this.generator = generator;
 
         avgGeneratorTimeMillis = 1;
+        fallbackFrameCount = 0;
+        lastFrameUsedFallback = false;
     }
 
     public Generator getGenerator() {
@@ -161,6 +342,125 @@ public class ColorBlindness implements PConstants {
         active = false;
     }
 
+    /**
+     * Set how each frame is transformed. The default is COPY.
+     * 
+     * Use SWAP to transform each frame into a second pixel array instead of
+     * copying the frame, if your sketch doesn't keep a reference to the
+     * pixels array from one frame to the next. Use PIPELINED if the
+     * generator is slow, such as a custom Generator subclass, to transform
+     * frames on a background thread.
+     * 
+     * @param framePipeline
+     */
+    public void setFramePipeline(FramePipeline framePipeline) {
+        this.framePipeline = framePipeline;
+
+        if (transformPipeline != null) {
+            transformPipeline.shutdown();
+            transformPipeline = null;
+        }
+        sketchPixels = null;
+        cachedPixels = null;
+        untransformedPixels = null;
+        transformedPixels = null;
+        spareBuffer = null;
+    }
+
+    public FramePipeline getFramePipeline() {
+        return framePipeline;
+    }
+
+    /**
+     * Set if the untransformed frame is put back before each frame is drawn.
+     * This defaults to true.
+     * 
+     * Without this, a sketch that draws on top of the previous frame would
+     * be drawing on the transformed frame, and that frame would be
+     * transformed again. If your sketch redraws the entire window every
+     * frame, such as by calling background() first, you can turn this off
+     * to save time.
+     * 
+     * @param restoreFrame
+     */
+    public void setRestoreFrame(boolean restoreFrame) {
+        this.restoreFrame = restoreFrame;
+    }
+
+    public boolean isRestoreFrame() {
+        return restoreFrame;
+    }
+
+    /**
+     * Set if only the parts of each frame that changed since the previous
+     * frame are transformed. This is off by default.
+     * 
+     * The frame is compared to the previous frame in blocks of 2048 pixels.
+     * Blocks that did not change are copied from the previous transformed
+     * frame. This is much faster for sketches that only change a small part
+     * of the frame each time, but it keeps two extra copies of the frame.
+     * 
+     * This only helps generators that transform each pixel independently,
+     * such as the simulators and daltonizers. Other generators always
+     * transform the whole frame. Changing a generator's settings, or the
+     * matrices in ColorUtilities while using the ANALYTIC engine, transforms
+     * the whole next frame.
+     * 
+     * @param deltaTransform
+     */
+    public void setDeltaTransform(boolean deltaTransform) {
+        if (deltaTransform && deltaTransformer == null) {
+            deltaTransformer = new DeltaTransformer(0.5f);
+        } else if (!deltaTransform) {
+            deltaTransformer = null;
+        }
+    }
+
+    public boolean isDeltaTransform() {
+        return deltaTransformer != null;
+    }
+
+    /**
+     * Set the fraction of the frame that can change before the whole frame is
+     * transformed instead. This defaults to 0.5.
+     * 
+     * @param threshold
+     *                  in range [0, 1]
+     */
+    public void setDeltaThreshold(float threshold) {
+        if (deltaTransformer == null) {
+            setDeltaTransform(true);
+        }
+        deltaTransformer.setThreshold(ColorUtilities.clip(threshold));
+    }
+
+    /**
+     * @return fraction of the last frame that was transformed by the delta
+     *         transform, or 1 if it is off.
+     */
+    public float getChangedFraction() {
+        return deltaTransformer == null ? 1 : deltaTransformer
+                .getLastChangedFraction();
+    }
+
+    /**
+     * @return number of frames where the delta transform only transformed the
+     *         changed parts of the frame.
+     */
+    public long getDeltaFrameCount() {
+        return deltaTransformer == null ? 0 : deltaTransformer
+                .getDeltaFrameCount();
+    }
+
+    /**
+     * @return number of frames the delta transform transformed completely
+     *         because too much of the frame changed or the generator changed.
+     */
+    public long getFullFrameCount() {
+        return deltaTransformer == null ? 0 : deltaTransformer
+                .getFullFrameCount();
+    }
+
     public void enableSaveFrame(char key, String saveFrameLocation) {
         saveFrameKey = key;
 
@@ -184,16 +484,182 @@ public class ColorBlindness implements PConstants {
         enableSaveFrame('s');
     }
 
+    /**
+     * Save every frame, after it is transformed and after postDraw().
+     * 
+     * Use setSavePolicy() to choose between keeping every frame and keeping
+     * the frame rate when frames can't be written fast enough, and a low
+     * setSaveCompression() level to write them faster.
+     * 
+     * @param location
+     *                 folder to save the frames in
+     */
+    public void recordFrames(String location) {
+        if (!location.isEmpty() && !location.endsWith(File.separator)) {
+            location += File.separator;
+        }
+        recordLocation = location;
+    }
+
+    public void recordFrames() {
+        recordFrames("");
+    }
+
+    public void stopRecording() {
+        recordLocation = null;
+    }
+
+    public boolean isRecording() {
+        return recordLocation != null;
+    }
+
+    /**
+     * Save frames on background threads. The animation thread only copies
+     * the frame, instead of waiting for it to be encoded and written. This is
+     * on by default.
+     * 
+     * @param async
+     */
+    public void setAsyncSaveFrame(boolean async) {
+        this.asyncSaveFrame = async;
+    }
+
+    public boolean isAsyncSaveFrame() {
+        return asyncSaveFrame;
+    }
+
+    public void setSavePolicy(SavePolicy savePolicy) {
+        this.savePolicy = savePolicy;
+    }
+
+    public SavePolicy getSavePolicy() {
+        return savePolicy;
+    }
+
+    /**
+     * Set how many frames can wait to be written before the SavePolicy
+     * applies. Each waiting frame uses a copy of the pixel array.
+     * 
+     * @param frames
+     */
+    public void setSaveQueueSize(int frames) {
+        if (frames < 1) {
+            throw new RuntimeException("Save queue size must be at least 1");
+        }
+        saveQueueSize = frames;
+
+        if (frameWriter != null) {
+            // finish the queued frames with the old writer.
+            frameWriter.close();
+            frameWriter = null;
+        }
+    }
+
+    /**
+     * Set the zlib compression level of saved frames. Lower levels are
+     * faster and make bigger files.
+     * 
+     * @param level
+     *              in range [0, 9], default 4
+     */
+    public void setSaveCompression(int level) {
+        if (level < 0 || level > 9) {
+            throw new RuntimeException(
+                    "Compression level must be in range [0, 9]");
+        }
+        saveCompressionLevel = level;
+
+        if (frameWriter != null) {
+            frameWriter.setCompressionLevel(level);
+        }
+    }
+
+    /**
+     * @return number of frames saved by the background writers.
+     */
+    public long getSavedFrameCount() {
+        return frameWriter == null ? 0 : frameWriter.getSavedCount();
+    }
+
+    /**
+     * @return number of frames not saved because of the DROP policy.
+     */
+    public long getDroppedFrameCount() {
+        return frameWriter == null ? 0 : frameWriter.getDroppedCount();
+    }
+
+    /**
+     * @return number of frames waiting to be written.
+     */
+    public int getPendingFrameCount() {
+        return frameWriter == null ? 0 : frameWriter.getPendingCount();
+    }
+
+    /**
+     * Get the average time the generator takes to transform a frame. With
+     * the PIPELINED pipeline this time is spent on the background thread.
+     * 
+     * @return
+     */
     public float getGeneratorTime() {
         return avgGeneratorTimeMillis;
     }
 
+    /**
+     * Get the average time the sketch's draw() function takes.
+     * 
+     * @return
+     */
     public float getDrawTime() {
         return avgDrawTimeMillis;
     }
 
+    /**
+     * Timing histograms for each stage of a frame. These are also available
+     * through JMX.
+     * 
+     * @return
+     */
+    public FrameMetrics getFrameMetrics() {
+        return frameMetrics;
+    }
+
+    /**
+     * Number of frames the current generator transformed without its lookup
+     * table because the table was still being computed in the background.
+     * 
+     * @return
+     */
+    public int getFallbackFrameCount() {
+        return fallbackFrameCount;
+    }
+
+    /**
+     * @return true if the last frame was transformed without the generator's
+     *         lookup table.
+     */
+    public boolean lastFrameUsedFallback() {
+        return lastFrameUsedFallback;
+    }
+
+    /**
+     * Print the frame rate and timing statistics once per second.
+     */
     public void reportStats() {
-        reportStats = true;
+        reportStats(1000);
+    }
+
+    /**
+     * Print the frame rate and timing statistics at most once per interval.
+     * 
+     * @param intervalMillis
+     */
+    public void reportStats(int intervalMillis) {
+        if (statsReporter == null) {
+            statsReporter = new StatsReporter(System.out, intervalMillis);
+        } else {
+            statsReporter.setInterval(intervalMillis);
+        }
     }
 
     /*
@@ -203,56 +669,285 @@ public class ColorBlindness implements PConstants {
      * The rest is mainly configuration code.
      */
     public void pre() {
+        long startTime = System.nanoTime();
+
+        if (framePipeline == FramePipeline.SWAP) {
+            preSwap();
+        } else if (framePipeline == FramePipeline.PIPELINED) {
+            prePipelined();
+        } else {
+            preCopy();
+        }
+
+        preEndTime = System.nanoTime();
+        frameMetrics.record(FrameMetrics.Stage.RESTORE, preEndTime
+                - startTime);
+    }
+
+    private void preCopy() {
         if (cachedPixels == null) {
             cachedPixels = new int[pixelCount];
         } else {
             // replace frame with the un-transformed pixels. this prevents an
             // infinite cycle of re-simulating the same pixel, which leads to
             // blackness.
-            parent.loadPixels();
-            System.arraycopy(cachedPixels, 0, parent.pixels, 0, pixelCount);
+            if (restoreFrame) {
+                parent.loadPixels();
+                System.arraycopy(cachedPixels, 0, parent.pixels, 0, pixelCount);
+                parent.updatePixels();
+            }
+        }
+    }
+
+    private void preSwap() {
+        if (restoreFrame && untransformedPixels != null) {
+            // replace frame with the un-transformed pixels by swapping the
+            // pixel arrays. the transformed pixels are no longer needed.
+            spareBuffer = transformedPixels;
+            setPixels(untransformedPixels);
             parent.updatePixels();
         }
     }
 
+    private void prePipelined() {
+        if (untransformedPixels == null) {
+            // the sketch's pixel array is not being used by the pipeline.
+            return;
+        }
+
+        // the sketch is using the last transformed frame, which belongs to
+        // the pipeline. give it its own array to draw into.
+        if (sketchPixels == null
+                || sketchPixels.length != untransformedPixels.length) {
+            sketchPixels = new int[untransformedPixels.length];
+        }
+        setPixels(sketchPixels);
+
+        if (restoreFrame) {
+            // the background thread may be reading the untransformed frame
+            // right now, so copy it instead of swapping arrays.
+            System.arraycopy(untransformedPixels, 0, sketchPixels, 0,
+                    sketchPixels.length);
+            parent.updatePixels();
+        }
+    }
+
+    /**
+     * Make the sketch use a different pixel array. updatePixels() will then
+     * put that array on the screen.
+     */
+    private void setPixels(int[] pixels) {
+        parent.g.pixels = pixels;
+        parent.pixels = pixels;
+    }
+
     public void draw() {
+        long startTime = System.nanoTime();
+        if (preEndTime != 0) {
+            long drawTime = startTime - preEndTime;
+            frameMetrics.record(FrameMetrics.Stage.DRAW, drawTime);
+            avgDrawTimeMillis = avgDrawTimeMillis == 0 ? drawTime / 1000000f
+                    : 0.9f * avgDrawTimeMillis + 0.1f * drawTime / 1000000f;
+        }
+        if (lastFrameTime != 0) {
+            frameMetrics.record(FrameMetrics.Stage.FRAME, startTime
+                    - lastFrameTime);
+        }
+        lastFrameTime = startTime;
+
         // retrieve and cache what was just drawn
         parent.loadPixels();
-        System.arraycopy(parent.pixels, 0, cachedPixels, 0, pixelCount);
+        if (framePipeline == FramePipeline.COPY && restoreFrame) {
+            if (cachedPixels == null) {
+                // the pipeline was changed after pre() was called.
+                cachedPixels = new int[pixelCount];
+            }
+            System.arraycopy(parent.pixels, 0, cachedPixels, 0, pixelCount);
+        }
 
-        if (saveNextFrame)
-            parent.saveFrame(saveFrameLocation + "####-" + parentClassName
-                    + "-pre-transformation.png");
+        long saveTime = 0;
+        if (saveNextFrame) {
+            long saveStartTime = System.nanoTime();
+            saveFrame(saveFrameLocation, "-pre-transformation.png");
+            saveTime += System.nanoTime() - saveStartTime;
+        }
 
         // create transformed frame
+        long fallbacksBefore = generatorFallbackCount();
         long generateStartTime = System.nanoTime();
+        frameMetrics.record(FrameMetrics.Stage.LOAD_PIXELS, generateStartTime
+                - startTime - saveTime);
+
+        if (framePipeline == FramePipeline.SWAP) {
+            transformSwap();
+        } else if (framePipeline == FramePipeline.PIPELINED) {
+            transformPipelined();
+        } else if (active) {
+            transformFrame(parent.pixels, parent.pixels);
+        }
+        long generateEndTime = System.nanoTime();
 
-        if (active)
-            generator.transformPixels(parent.pixels);
-
-        avgGeneratorTimeMillis = 0.9f * avgGeneratorTimeMillis + 0.1f
-                * (System.nanoTime() - generateStartTime) / 1000000f;
+        if (framePipeline == FramePipeline.PIPELINED
+                && transformPipeline != null) {
+            avgGeneratorTimeMillis = transformPipeline.getGeneratorTimeMillis();
+        } else {
+            avgGeneratorTimeMillis = 0.9f * avgGeneratorTimeMillis + 0.1f
+                    * (generateEndTime - generateStartTime) / 1000000f;
+        }
+        frameMetrics.record(FrameMetrics.Stage.TRANSFORM, generateEndTime
+                - generateStartTime);
 
-        parent.updatePixels();
+        // compare the counts instead of asking the generator about its last
+        // frame, which may have been transformed by the pipeline's thread.
+        lastFrameUsedFallback = active
+                && generatorFallbackCount() > fallbacksBefore;
+        if (lastFrameUsedFallback)
+            fallbackFrameCount++;
 
-        if (saveNextFrame && active)
-            parent.saveFrame(saveFrameLocation + "####-" + parentClassName
-                    + "-post-transformation.png");
+        if (framePipeline == FramePipeline.COPY) {
+            parent.updatePixels();
+        } else if (untransformedPixels != null) {
+            setPixels(transformedPixels);
+            parent.updatePixels();
+        }
+        long updateEndTime = System.nanoTime();
+        frameMetrics.record(FrameMetrics.Stage.UPDATE_PIXELS, updateEndTime
+                - generateEndTime);
+
+        if (saveNextFrame && active) {
+            long saveStartTime = System.nanoTime();
+            saveFrame(saveFrameLocation, "-post-transformation.png");
+            saveTime += System.nanoTime() - saveStartTime;
+        }
 
         if (callPostDraw) {
+            long postDrawStartTime = System.nanoTime();
             callMethod("postDraw");
+            frameMetrics.record(FrameMetrics.Stage.POST_DRAW, System
+                    .nanoTime() - postDrawStartTime);
         }
 
-        if (saveNextFrame) {
-            parent.saveFrame(saveFrameLocation + "####-" + parentClassName
-                    + "-final.png");
-            saveNextFrame = false;
+        if (saveNextFrame || recordLocation != null) {
+            long saveStartTime = System.nanoTime();
+            if (asyncSaveFrame && callPostDraw) {
+                // get what postDraw() drew on top of the frame.
+                parent.loadPixels();
+            }
+            if (saveNextFrame) {
+                saveFrame(saveFrameLocation, "-final.png");
+                saveNextFrame = false;
+            }
+            if (recordLocation != null) {
+                saveFrame(recordLocation, ".png");
+            }
+            saveTime += System.nanoTime() - saveStartTime;
+        }
+        if (saveTime > 0) {
+            frameMetrics.record(FrameMetrics.Stage.SAVE_FRAME, saveTime);
+        }
+
+        frameMetrics.setSummary(avgGeneratorTimeMillis, avgDrawTimeMillis,
+                parent.frameRate);
+        frameMetrics.endFrame();
+
+        if (statsReporter != null) {
+            statsReporter.maybeReport(frameMetrics,
+                    deltaTransformer == null ? -1 : getChangedFraction(),
+                    lastFrameUsedFallback);
+        }
+    }
+
+    /**
+     * Save the sketch's pixels array, or the sketch's frame if frames are not
+     * saved in the background.
+     */
+    private void saveFrame(String location, String suffix) {
+        String filename = location + "####-" + parentClassName + suffix;
+
+        if (!asyncSaveFrame) {
+            parent.saveFrame(filename);
+            return;
+        }
+
+        if (frameWriter == null) {
+            // leave a core for the sketch.
+            int writers = Math.max(1, Math.min(3, Runtime.getRuntime()
+                    .availableProcessors() - 1));
+            frameWriter = new FrameWriter(saveQueueSize, writers,
+                    saveCompressionLevel);
         }
+        frameWriter.save(parent.pixels, parent.pixelWidth, parent.pixelHeight,
+                parent.savePath(parent.insertFrame(filename)),
+                savePolicy == SavePolicy.BLOCK);
+    }
+
+    /**
+     * Transform the frame into the spare pixel array. The pixel array with the
+     * untransformed frame is kept so pre() can put it back.
+     */
+    private void transformSwap() {
+        if (!active || generator instanceof RegularRenderer) {
+            // nothing to transform or restore.
+            untransformedPixels = null;
+            return;
+        }
+
+        int[] source = parent.pixels;
+        int[] target = spareBuffer;
+        if (target == null || target == source
+                || target.length != source.length) {
+            target = new int[source.length];
+        }
+
+        transformFrame(source, target);
 
-        if (reportStats) {
-            System.out
-                    .printf("Frame Rate: %.2f frames/sec | Generator Render Time: %.3f ms\n",
-                            parent.frameRate, avgGeneratorTimeMillis);
+        untransformedPixels = source;
+        transformedPixels = target;
+        // if the frame is not restored, the sketch draws on the transformed
+        // frame and the next frame is transformed into the source array.
+        spareBuffer = source;
+    }
+
+    /**
+     * Give the frame to the background thread and get the most recent frame
+     * it has transformed.
+     */
+    private void transformPipelined() {
+        if (!active || generator instanceof RegularRenderer) {
+            untransformedPixels = null;
+            return;
+        }
+
+        if (transformPipeline == null) {
+            transformPipeline = new TransformPipeline(parent.pixels.length);
+        }
+
+        int[] source = parent.pixels;
+        sketchPixels = transformPipeline.submit(source, generator,
+                deltaTransformer);
+        transformedPixels = transformPipeline.newestTransformed();
+        untransformedPixels = source;
+    }
+
+    private long generatorFallbackCount() {
+        if (generator instanceof ColorTransformGenerator) {
+            return ((ColorTransformGenerator) generator).getFallbackCount();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Transform the pixels in src and write them to dst, using the delta
+     * transform if it is on. src and dst can be the same array.
+     */
+    private void transformFrame(int[] src, int[] dst) {
+        if (deltaTransformer != null) {
+            deltaTransformer.transform(generator, src, dst);
+        } else if (src == dst) {
+            generator.transformPixels(dst);
+        } else {
+            generator.transformPixels(src, dst);
         }
     }
 
@@ -267,6 +962,21 @@ public class ColorBlindness implements PConstants {
         }
     }
 
+    /**
+     * Called by Processing when the sketch stops.
+     */
+    public void dispose() {
+        frameMetrics.unregisterMBean();
+        if (frameWriter != null) {
+            // write the frames that are still queued.
+            frameWriter.close();
+        }
+        if (transformPipeline != null) {
+            transformPipeline.shutdown();
+            transformPipeline = null;
+        }
+    }
+
     /*
      * Internal reflective methods for examining sketch.
      */
@@ -56,9 +56,60 @@ public class ColorUtilities {
     public static Matrix customSim = new Matrix(1f, 0f, 0f, 0f, 1f, 0f, 0f, 0f,
             1f);
 
+    /*
+     * Anomalous Trichromacy Simulation Matrices
+     *
+     * Linear RGB matrices for severities 0, 0.1, 0.2, ... 1 of each anomalous
+     * trichromacy. Severities in between are interpolated.
+     *
+     * A Physiologically-based Model for Simulation of Color Vision Deficiency
+     * Gustavo M. Machado, Manuel M. Oliveira, Leandro A. F. Fernandes
+     * https://www.inf.ufrgs.br/~oliveira/pubs_files/CVD_Simulation/CVD_Simulation.html
+     *
+     * public so the user can change them if desired.
+     */
+    public static Matrix[] protanomalySim = {
+            Matrix.identity(),
+            new Matrix(0.856167f, 0.182038f, -0.038205f, 0.029342f, 0.955115f, 0.015544f, -0.002880f, -0.001563f, 1.004443f),
+            new Matrix(0.734766f, 0.334872f, -0.069637f, 0.051840f, 0.919198f, 0.028963f, -0.004928f, -0.004209f, 1.009137f),
+            new Matrix(0.630323f, 0.465641f, -0.095964f, 0.069181f, 0.890046f, 0.040773f, -0.006308f, -0.007724f, 1.014032f),
+            new Matrix(0.539009f, 0.579343f, -0.118352f, 0.082546f, 0.866121f, 0.051332f, -0.007136f, -0.011959f, 1.019095f),
+            new Matrix(0.458064f, 0.679578f, -0.137642f, 0.092785f, 0.846313f, 0.060902f, -0.007494f, -0.016807f, 1.024301f),
+            new Matrix(0.385450f, 0.769005f, -0.154455f, 0.100526f, 0.829802f, 0.069673f, -0.007442f, -0.022190f, 1.029632f),
+            new Matrix(0.319627f, 0.849633f, -0.169261f, 0.106241f, 0.815969f, 0.077790f, -0.007025f, -0.028051f, 1.035076f),
+            new Matrix(0.259411f, 0.923008f, -0.182420f, 0.110296f, 0.804340f, 0.085364f, -0.006276f, -0.034346f, 1.040622f),
+            new Matrix(0.203876f, 0.990338f, -0.194214f, 0.112975f, 0.794542f, 0.092483f, -0.005222f, -0.041043f, 1.046265f),
+            new Matrix(0.152286f, 1.052583f, -0.204868f, 0.114503f, 0.786281f, 0.099216f, -0.003882f, -0.048116f, 1.051998f) };
+
+    public static Matrix[] deuteranomalySim = {
+            Matrix.identity(),
+            new Matrix(0.866435f, 0.177704f, -0.044139f, 0.049567f, 0.939063f, 0.011370f, -0.003453f, 0.007233f, 0.996220f),
+            new Matrix(0.760729f, 0.319078f, -0.079807f, 0.090568f, 0.889315f, 0.020117f, -0.006027f, 0.013325f, 0.992702f),
+            new Matrix(0.675425f, 0.433850f, -0.109275f, 0.125303f, 0.847755f, 0.026942f, -0.007950f, 0.018572f, 0.989378f),
+            new Matrix(0.605511f, 0.528560f, -0.134071f, 0.155318f, 0.812366f, 0.032316f, -0.009376f, 0.023176f, 0.986200f),
+            new Matrix(0.547494f, 0.607765f, -0.155259f, 0.181692f, 0.781742f, 0.036566f, -0.010410f, 0.027275f, 0.983136f),
+            new Matrix(0.498864f, 0.674741f, -0.173604f, 0.205199f, 0.754872f, 0.039929f, -0.011131f, 0.030969f, 0.980162f),
+            new Matrix(0.457771f, 0.731899f, -0.189670f, 0.226409f, 0.731012f, 0.042579f, -0.011595f, 0.034333f, 0.977261f),
+            new Matrix(0.422823f, 0.781057f, -0.203881f, 0.245752f, 0.709602f, 0.044646f, -0.011843f, 0.037423f, 0.974421f),
+            new Matrix(0.392952f, 0.823610f, -0.216562f, 0.263559f, 0.690210f, 0.046232f, -0.011910f, 0.040281f, 0.971630f),
+            new Matrix(0.367322f, 0.860646f, -0.227968f, 0.280085f, 0.672501f, 0.047413f, -0.011820f, 0.042940f, 0.968881f) };
+
+    public static Matrix[] tritanomalySim = {
+            Matrix.identity(),
+            new Matrix(0.926670f, 0.092514f, -0.019184f, 0.021191f, 0.964503f, 0.014306f, 0.008437f, 0.054813f, 0.936750f),
+            new Matrix(0.895720f, 0.133330f, -0.029050f, 0.029997f, 0.945400f, 0.024603f, 0.013027f, 0.104707f, 0.882266f),
+            new Matrix(0.905871f, 0.127791f, -0.033662f, 0.026856f, 0.941251f, 0.031893f, 0.013410f, 0.148296f, 0.838294f),
+            new Matrix(0.948035f, 0.089490f, -0.037526f, 0.014364f, 0.946792f, 0.038844f, 0.010853f, 0.193991f, 0.795156f),
+            new Matrix(1.017277f, 0.027029f, -0.044306f, -0.006113f, 0.958479f, 0.047634f, 0.006379f, 0.248708f, 0.744913f),
+            new Matrix(1.104996f, -0.046633f, -0.058363f, -0.032137f, 0.971635f, 0.060503f, 0.001336f, 0.317922f, 0.680742f),
+            new Matrix(1.193214f, -0.109812f, -0.083402f, -0.058496f, 0.979410f, 0.079086f, -0.002346f, 0.403492f, 0.598854f),
+            new Matrix(1.257728f, -0.139648f, -0.118081f, -0.078003f, 0.975409f, 0.102594f, -0.003316f, 0.501214f, 0.502102f),
+            new Matrix(1.278864f, -0.125333f, -0.153531f, -0.084748f, 0.957674f, 0.127074f, -0.000989f, 0.601151f, 0.399838f),
+            new Matrix(1.255528f, -0.076749f, -0.178779f, -0.078411f, 0.930809f, 0.147602f, 0.004733f, 0.691367f, 0.303900f) };
+
     /*
      * Daltonize Matrices
-     * 
+     *
      * public so the user can change them if desired.
      * 
      * Evaluating color vision deficiency daltonization methods using a behavioral
@@ -189,6 +240,156 @@ public class ColorUtilities {
         return convertLinearRGB2PColor(convertLMS2LinearRGB(lmsColor));
     }
 
+    /*
+     * Color difference functions
+     */
+    private static final float[] STANDARD_RGB_LINEAR_LUT = new float[256];
+
+    static {
+        for (int c = 0; c < 256; ++c) {
+            STANDARD_RGB_LINEAR_LUT[c] = removeGammaCorrectionStandardRGB(c / 255f);
+        }
+    }
+
+    /**
+     * Convert a Processing color to CIE L*a*b* using the D65 white point.
+     * 
+     * @param color
+     * @param lab
+     *              array of length 3 to store the L, a, and b values in
+     */
+    public static void convertPColor2Lab(int color, float[] lab) {
+        float r = STANDARD_RGB_LINEAR_LUT[(color >> 16) & 0xFF];
+        float g = STANDARD_RGB_LINEAR_LUT[(color >> 8) & 0xFF];
+        float b = STANDARD_RGB_LINEAR_LUT[color & 0xFF];
+
+        float x = (0.4124564f * r + 0.3575761f * g + 0.1804375f * b) / 0.95047f;
+        float y = 0.2126729f * r + 0.7151522f * g + 0.0721750f * b;
+        float z = (0.0193339f * r + 0.1191920f * g + 0.9503041f * b) / 1.08883f;
+
+        float fx = labF(x);
+        float fy = labF(y);
+        float fz = labF(z);
+
+        lab[0] = 116 * fy - 16;
+        lab[1] = 500 * (fx - fy);
+        lab[2] = 200 * (fy - fz);
+    }
+
+    private static float labF(float t) {
+        if (t > 0.008856452f) {
+            return (float) Math.cbrt(t);
+        } else {
+            return t / 0.12841855f + 0.13793103f;
+        }
+    }
+
+    /**
+     * CIE76 color difference between two Processing colors. The alpha channel
+     * is ignored.
+     * 
+     * @param color1
+     * @param color2
+     * @return delta E
+     */
+    public static float deltaE(int color1, int color2) {
+        if ((color1 & 0x00FFFFFF) == (color2 & 0x00FFFFFF)) {
+            return 0;
+        }
+
+        float[] lab1 = new float[3];
+        float[] lab2 = new float[3];
+        convertPColor2Lab(color1, lab1);
+        convertPColor2Lab(color2, lab2);
+
+        float dL = lab1[0] - lab2[0];
+        float da = lab1[1] - lab2[1];
+        float db = lab1[2] - lab2[2];
+
+        return (float) Math.sqrt(dL * dL + da * da + db * db);
+    }
+
+    /*
+     * Fused linear RGB transforms
+     * 
+     * These combine all of the matrix math for one generator into a single
+     * 3x3 matrix that operates on linear RGB colors. The generators compute
+     * them once per lookup table instead of doing several matrix
+     * multiplications for every color.
+     */
+
+    /**
+     * Linear RGB transform for simulating a dichromatic deficiency.
+     * 
+     * @param sim
+     *            simulation matrix in LMS space
+     * @return lms2rgb * sim * rgb2lms
+     */
+    public static Matrix dichromaticSimulationTransform(Matrix sim) {
+        return lms2rgb.mult(sim).mult(rgb2lms);
+    }
+
+    /**
+     * Linear RGB transform for daltonizing a dichromatic deficiency.
+     * 
+     * The daltonized color is rgb + shiftError * (rgb - simulated), which is
+     * the same as (I + shiftError * (I - simulation)) * rgb.
+     * 
+     * @param sim
+     *            simulation matrix in LMS space
+     * @param shiftErrorTowardsVisible
+     *            error correction matrix
+     * @return
+     */
+    public static Matrix dichromaticDaltonizeTransform(Matrix sim,
+            Matrix shiftErrorTowardsVisible) {
+        Matrix identity = Matrix.identity();
+        Matrix simulation = dichromaticSimulationTransform(sim);
+
+        return identity.add(shiftErrorTowardsVisible.mult(identity
+                .sub(simulation)));
+    }
+
+    /**
+     * Linear RGB transform for simulating an anomalous trichromacy.
+     *
+     * @param steps
+     *                 simulation matrices in linear RGB space for evenly
+     *                 spaced severities from 0 to 1, such as protanomalySim
+     * @param severity
+     *                 number in range [0, 1]. 1 is a dichromacy.
+     * @return matrix interpolated between the two nearest steps
+     */
+    public static Matrix anomalousSimulationTransform(Matrix[] steps,
+            float severity) {
+        float position = clip(severity) * (steps.length - 1);
+        int lower = Math.min((int) position, steps.length - 2);
+
+        return steps[lower].lerp(steps[lower + 1], position - lower);
+    }
+
+    /**
+     * Linear RGB transform for daltonizing an anomalous trichromacy, the same
+     * way as dichromaticDaltonizeTransform().
+     *
+     * @param steps
+     *                                 simulation matrices in linear RGB space
+     *                                 for evenly spaced severities from 0 to 1
+     * @param shiftErrorTowardsVisible
+     *                                 error correction matrix
+     * @param severity
+     *                                 number in range [0, 1]
+     * @return
+     */
+    public static Matrix anomalousDaltonizeTransform(Matrix[] steps,
+            Matrix shiftErrorTowardsVisible, float severity) {
+        Matrix identity = Matrix.identity();
+        Matrix simulation = anomalousSimulationTransform(steps, severity);
+
+        return identity.add(shiftErrorTowardsVisible.mult(identity
+                .sub(simulation)));
+    }
+
     /**
      * Intentionally generate colors that would be confusing to a colorblind
      * person.
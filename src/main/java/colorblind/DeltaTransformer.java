@@ -0,0 +1,214 @@
+package colorblind;
+
+import java.util.Arrays;
+
+import colorblind.generators.Generator;
+
+/**
+ * Transforms only the parts of a frame that changed since the previous
+ * frame.
+ *
+ * The frame is split into blocks. Blocks that are identical to the previous
+ * frame are copied from the previous transformed frame instead of being
+ * transformed again. This only works for generators that transform each pixel
+ * independently, and only while the generator's settings do not change.
+ *
+ * If more than the threshold fraction of blocks changed, the whole frame is
+ * transformed. If that happens for many frames in a row, the comparison is
+ * skipped for a while so sketches that change every pixel don't pay for it.
+ *
+ * @author James Schmitz
+ *
+ */
+class DeltaTransformer {
+
+    /**
+     * Number of pixels in each block. This is 8 KB of pixels, or about one
+     * row of a 1080p frame.
+     */
+    static final int BLOCK_SIZE = 2048;
+
+    // after this many full frames in a row, stop comparing frames.
+    private static final int FULL_FRAMES_BEFORE_PAUSE = 8;
+    // number of frames to transform without comparing them.
+    private static final int PAUSE_FRAMES = 30;
+
+    private float threshold;
+
+    // the previous frame, before and after it was transformed.
+    private int[] previousSource;
+    private int[] previousOutput;
+    private Generator previousGenerator;
+    private long previousSettingsVersion;
+
+    private boolean[] dirtyBlocks;
+    private int consecutiveFullFrames;
+    private int pausedFrames;
+
+    private float lastChangedFraction;
+    private long deltaFrameCount;
+    private long fullFrameCount;
+
+    DeltaTransformer(float threshold) {
+        this.threshold = threshold;
+    }
+
+    void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return fraction of the last frame that was transformed, in range
+     *         [0, 1].
+     */
+    float getLastChangedFraction() {
+        return lastChangedFraction;
+    }
+
+    /**
+     * @return number of frames where only the changed blocks were
+     *         transformed.
+     */
+    long getDeltaFrameCount() {
+        return deltaFrameCount;
+    }
+
+    /**
+     * @return number of frames that were transformed completely.
+     */
+    long getFullFrameCount() {
+        return fullFrameCount;
+    }
+
+    /**
+     * Forget the previous frame so the next frame is transformed completely.
+     */
+    void reset() {
+        previousGenerator = null;
+        consecutiveFullFrames = 0;
+        pausedFrames = 0;
+    }
+
+    /**
+     * Transform src and write the results to dst. src and dst can be the same
+     * array.
+     *
+     * @param generator
+     * @param src
+     * @param dst
+     */
+    void transform(Generator generator, int[] src, int[] dst) {
+        int length = src.length;
+
+        if (pausedFrames > 0) {
+            pausedFrames--;
+            // keep the last paused frame so the next frame can be compared to
+            // it.
+            transformFull(generator, src, dst, pausedFrames == 0);
+            return;
+        }
+
+        if (!generator.isPerPixel() || generator != previousGenerator
+                || generator.getSettingsVersion() != previousSettingsVersion
+                || previousSource == null || previousSource.length != length) {
+            transformFull(generator, src, dst, true);
+            return;
+        }
+
+        int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (dirtyBlocks == null || dirtyBlocks.length != blocks) {
+            dirtyBlocks = new boolean[blocks];
+        }
+
+        int dirtyCount = 0;
+        for (int block = 0; block < blocks; ++block) {
+            int from = block * BLOCK_SIZE;
+            int to = Math.min(length, from + BLOCK_SIZE);
+            boolean dirty = Arrays.mismatch(src, from, to, previousSource,
+                    from, to) >= 0;
+            dirtyBlocks[block] = dirty;
+            if (dirty) {
+                dirtyCount++;
+            }
+        }
+
+        if (dirtyCount > threshold * blocks) {
+            transformFull(generator, src, dst, true);
+            if (++consecutiveFullFrames >= FULL_FRAMES_BEFORE_PAUSE) {
+                consecutiveFullFrames = 0;
+                pausedFrames = PAUSE_FRAMES;
+            }
+            return;
+        }
+
+        // transform each run of changed blocks at once.
+        int block = 0;
+        while (block < blocks) {
+            int end = block + 1;
+            while (end < blocks && dirtyBlocks[end] == dirtyBlocks[block]) {
+                end++;
+            }
+
+            int from = block * BLOCK_SIZE;
+            int to = Math.min(length, end * BLOCK_SIZE);
+            if (dirtyBlocks[block]) {
+                // src may be dst, so save it before it is overwritten.
+                System.arraycopy(src, from, previousSource, from, to - from);
+                generator.transformPixels(previousSource, from,
+                        previousOutput, from, to - from);
+            }
+            if (dst != previousOutput) {
+                System.arraycopy(previousOutput, from, dst, from, to - from);
+            }
+
+            block = end;
+        }
+
+        lastChangedFraction = (float) dirtyCount / blocks;
+        deltaFrameCount++;
+        consecutiveFullFrames = 0;
+    }
+
+    /**
+     * Transform the whole frame.
+     *
+     * @param remember
+     *                 if true, keep copies of the frame so the next frame can
+     *                 be compared to it.
+     */
+    private void transformFull(Generator generator, int[] src, int[] dst,
+            boolean remember) {
+        int length = src.length;
+
+        if (remember && generator.isPerPixel()) {
+            if (previousSource == null || previousSource.length != length) {
+                previousSource = new int[length];
+                previousOutput = new int[length];
+            }
+            // read the version first. if the settings change while the frame
+            // is being transformed, the next frame is transformed again.
+            long settingsVersion = generator.getSettingsVersion();
+            // src may be dst, so save it before it is overwritten.
+            System.arraycopy(src, 0, previousSource, 0, length);
+            if (src == dst) {
+                generator.transformPixels(dst);
+            } else {
+                generator.transformPixels(src, dst);
+            }
+            System.arraycopy(dst, 0, previousOutput, 0, length);
+
+            previousGenerator = generator;
+            previousSettingsVersion = settingsVersion;
+        } else {
+            if (src == dst) {
+                generator.transformPixels(dst);
+            } else {
+                generator.transformPixels(src, dst);
+            }
+            previousGenerator = null;
+        }
+
+        lastChangedFraction = 1;
+        fullFrameCount++;
+    }
+}
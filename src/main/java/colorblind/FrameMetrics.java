@@ -0,0 +1,331 @@
+package colorblind;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timing histograms for each stage of a ColorBlindness frame.
+ *
+ * Every stage's times are counted in a histogram with 8 buckets per power of
+ * two, so percentiles are within about 6% of the real value. Recording a
+ * time is an array increment and never allocates. Statistics are reported
+ * for the last complete window of frames. At the end of each window the
+ * histograms are copied so they can be read from other threads, such as a
+ * JMX console, while the next window is recorded.
+ *
+ * @author James Schmitz
+ *
+ */
+public class FrameMetrics implements FrameMetricsMXBean {
+
+    /**
+     * The parts of a frame that are timed.
+     */
+    public enum Stage {
+        /**
+         * Putting the untransformed frame back in pre().
+         */
+        RESTORE,
+        /**
+         * The sketch's draw() function.
+         */
+        DRAW,
+        /**
+         * loadPixels() and copying the frame for the COPY pipeline.
+         */
+        LOAD_PIXELS,
+        /**
+         * Transforming the frame. With the PIPELINED pipeline this is the
+         * time the animation thread waits for the background thread.
+         */
+        TRANSFORM,
+        /**
+         * Putting the transformed frame on the screen.
+         */
+        UPDATE_PIXELS,
+        /**
+         * The sketch's postDraw() function, if it has one.
+         */
+        POST_DRAW,
+        /**
+         * Saving frames with the save frame key.
+         */
+        SAVE_FRAME,
+        /**
+         * The whole frame, from one frame to the next.
+         */
+        FRAME
+    }
+
+    public static final int DEFAULT_WINDOW_FRAMES = 120;
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // the window being recorded, only used by the animation thread.
+    private final long[][] counts = new long[STAGES.length][BUCKETS];
+    private final long[] totals = new long[STAGES.length];
+    private final long[] maximums = new long[STAGES.length];
+    private final long[] samples = new long[STAGES.length];
+
+    // the last complete window, guarded by this.
+    private final long[][] windowCounts = new long[STAGES.length][BUCKETS];
+    private final long[] windowTotals = new long[STAGES.length];
+    private final long[] windowMaximums = new long[STAGES.length];
+    private final long[] windowSamples = new long[STAGES.length];
+    private long windowNumber;
+
+    private volatile int windowFrames = DEFAULT_WINDOW_FRAMES;
+    private int framesInWindow;
+    private volatile long frameCount;
+
+    private volatile float generatorTimeMillis;
+    private volatile float drawTimeMillis;
+    private volatile float frameRate;
+
+    private ObjectName objectName;
+
+    /**
+     * Add a time to a stage's histogram for the current window.
+     *
+     * @param stage
+     * @param nanos
+     */
+    void record(Stage stage, long nanos) {
+        int s = stage.ordinal();
+        nanos = Math.max(0, nanos);
+
+        counts[s][bucket(nanos)]++;
+        totals[s] += nanos;
+        maximums[s] = Math.max(maximums[s], nanos);
+        samples[s]++;
+    }
+
+    /**
+     * Finish a frame. This publishes the window if it is complete.
+     *
+     * @return true if a window was completed.
+     */
+    boolean endFrame() {
+        frameCount++;
+        if (++framesInWindow < windowFrames) {
+            return false;
+        }
+
+        synchronized (this) {
+            for (int s = 0; s < STAGES.length; ++s) {
+                System.arraycopy(counts[s], 0, windowCounts[s], 0, BUCKETS);
+                Arrays.fill(counts[s], 0);
+            }
+            System.arraycopy(totals, 0, windowTotals, 0, totals.length);
+            System.arraycopy(maximums, 0, windowMaximums, 0, maximums.length);
+            System.arraycopy(samples, 0, windowSamples, 0, samples.length);
+            windowNumber++;
+        }
+        Arrays.fill(totals, 0);
+        Arrays.fill(maximums, 0);
+        Arrays.fill(samples, 0);
+        framesInWindow = 0;
+
+        return true;
+    }
+
+    void setSummary(float generatorTimeMillis, float drawTimeMillis,
+            float frameRate) {
+        this.generatorTimeMillis = generatorTimeMillis;
+        this.drawTimeMillis = drawTimeMillis;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Set the number of frames in each window. The new size is used after the
+     * current window is complete.
+     *
+     * @param frames
+     */
+    @Override
+    public void setWindowFrames(int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException(
+                    "A window must have at least 1 frame");
+        }
+        this.windowFrames = frames;
+    }
+
+    @Override
+    public int getWindowFrames() {
+        return windowFrames;
+    }
+
+    /**
+     * @return number of complete windows. Statistics change when this does.
+     */
+    @Override
+    public synchronized long getWindowNumber() {
+        return windowNumber;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public float getGeneratorTimeMillis() {
+        return generatorTimeMillis;
+    }
+
+    @Override
+    public float getDrawTimeMillis() {
+        return drawTimeMillis;
+    }
+
+    @Override
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Time of a stage at a percentile of the last complete window.
+     *
+     * @param stage
+     * @param percentile
+     *                   in range [0, 100]
+     * @return time in milliseconds, or 0 if the stage didn't happen.
+     */
+    public synchronized float getPercentileMillis(Stage stage,
+            double percentile) {
+        int s = stage.ordinal();
+        long count = windowSamples[s];
+        if (count == 0) {
+            return 0;
+        }
+
+        // the rank of the sample at this percentile, starting at 1.
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        long[] buckets = windowCounts[s];
+        for (int b = 0; b < BUCKETS; ++b) {
+            seen += buckets[b];
+            if (seen >= rank) {
+                // the middle of the bucket, but never more than the maximum.
+                return Math.min(bucketMiddle(b), windowMaximums[s]) / 1e6f;
+            }
+        }
+
+        return windowMaximums[s] / 1e6f;
+    }
+
+    public synchronized float getMaxMillis(Stage stage) {
+        return windowMaximums[stage.ordinal()] / 1e6f;
+    }
+
+    public synchronized float getMeanMillis(Stage stage) {
+        int s = stage.ordinal();
+
+        return windowSamples[s] == 0 ? 0 : windowTotals[s]
+                / (float) windowSamples[s] / 1e6f;
+    }
+
+    /**
+     * @param stage
+     * @return number of times the stage happened in the last complete window.
+     */
+    public synchronized long getCount(Stage stage) {
+        return windowSamples[stage.ordinal()];
+    }
+
+    /**
+     * Statistics of one stage in the last complete window.
+     *
+     * @param stage
+     * @return
+     */
+    public synchronized StageStatistics getStatistics(Stage stage) {
+        return new StageStatistics(stage.name(), getCount(stage),
+                getPercentileMillis(stage, 50), getPercentileMillis(stage, 95),
+                getPercentileMillis(stage, 99), getMaxMillis(stage),
+                getMeanMillis(stage));
+    }
+
+    @Override
+    public synchronized StageStatistics[] getStageStatistics() {
+        StageStatistics[] statistics = new StageStatistics[STAGES.length];
+        for (int s = 0; s < STAGES.length; ++s) {
+            statistics[s] = getStatistics(STAGES[s]);
+        }
+
+        return statistics;
+    }
+
+    @Override
+    public StageStatistics getTransformStatistics() {
+        return getStatistics(Stage.TRANSFORM);
+    }
+
+    @Override
+    public StageStatistics getFrameStatistics() {
+        return getStatistics(Stage.FRAME);
+    }
+
+    /**
+     * Make these metrics visible to JMX tools such as JConsole.
+     *
+     * @param name
+     *             used in the object name, usually the sketch name
+     */
+    void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("colorblind:type=FrameMetrics,name="
+                    + ObjectName.quote(name) + ",id="
+                    + System.identityHashCode(this));
+            server.registerMBean(this, objectName);
+        } catch (JMException | RuntimeException e) {
+            objectName = null;
+            System.err.println("Unable to register frame metrics with JMX: "
+                    + e.getMessage());
+        }
+    }
+
+    void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException e) {
+            // already unregistered.
+        }
+        objectName = null;
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS
+                + (int) ((nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long bucketMiddle(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,30 @@
+package colorblind;
+
+/**
+ * JMX view of a sketch's FrameMetrics.
+ *
+ * @author James Schmitz
+ *
+ */
+public interface FrameMetricsMXBean {
+
+    int getWindowFrames();
+
+    void setWindowFrames(int frames);
+
+    long getWindowNumber();
+
+    long getFrameCount();
+
+    float getFrameRate();
+
+    float getGeneratorTimeMillis();
+
+    float getDrawTimeMillis();
+
+    StageStatistics[] getStageStatistics();
+
+    StageStatistics getTransformStatistics();
+
+    StageStatistics getFrameStatistics();
+}
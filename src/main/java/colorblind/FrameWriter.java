@@ -0,0 +1,221 @@
+package colorblind;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import colorblind.tools.PngStripWriter;
+
+/**
+ * Saves frames as PNG files on background threads.
+ *
+ * Saving a frame on the animation thread only copies its pixels into a
+ * pooled buffer and queues it. Writer threads encode and write the files and
+ * then return the buffers to the pool. The number of buffers is limited, so
+ * if the writers fall behind, save() either waits for a buffer or drops the
+ * frame, depending on the SavePolicy.
+ *
+ * @author James Schmitz
+ *
+ */
+class FrameWriter {
+
+    private static class Snapshot {
+        final int[] pixels;
+        final int width;
+        final int height;
+        final Path path;
+
+        Snapshot(int[] pixels, int width, int height, Path path) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.path = path;
+        }
+    }
+
+    private static final Snapshot END = new Snapshot(null, 0, 0, null);
+
+    private final BlockingQueue<Snapshot> queue;
+    private final BlockingQueue<int[]> freeBuffers;
+    private final int maxBuffers;
+    private final Thread[] writers;
+
+    // buffers that exist, in the pool or in use.
+    private int bufferCount;
+    private boolean closed;
+    private volatile int compressionLevel;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong savedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param queueSize
+     *                         number of frames that can wait to be written
+     * @param writerCount
+     *                         number of writer threads
+     * @param compressionLevel
+     *                         zlib compression level in range [0, 9]
+     */
+    FrameWriter(int queueSize, int writerCount, int compressionLevel) {
+        this.queue = new ArrayBlockingQueue<>(queueSize + writerCount);
+        // enough buffers for a full queue and one frame per writer.
+        this.maxBuffers = queueSize + writerCount;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+        this.compressionLevel = compressionLevel;
+
+        writers = new Thread[writerCount];
+        for (int i = 0; i < writerCount; ++i) {
+            writers[i] = new Thread(this::writeLoop,
+                    "ColorBlindness frame writer " + (i + 1));
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Copy a frame and queue it to be written.
+     *
+     * @param pixels
+     * @param width
+     * @param height
+     * @param path
+     * @param block
+     *               if true, wait for a buffer when all of them are in use.
+     *               Otherwise drop the frame.
+     * @return false if the frame was dropped.
+     */
+    boolean save(int[] pixels, int width, int height, String path,
+            boolean block) {
+        if (closed) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        int length = width * height;
+        int[] buffer = freeBuffers.poll();
+
+        if (buffer == null && bufferCount < maxBuffers) {
+            buffer = new int[length];
+            bufferCount++;
+        } else if (buffer == null && block) {
+            try {
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (buffer == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        if (buffer.length != length) {
+            // the sketch changed size.
+            buffer = new int[length];
+        }
+        System.arraycopy(pixels, 0, buffer, 0, length);
+
+        pending.incrementAndGet();
+        // there is always room because there are no more snapshots than
+        // buffers.
+        queue.add(new Snapshot(buffer, width, height, Paths.get(path)));
+
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Snapshot snapshot;
+            try {
+                snapshot = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (snapshot == END) {
+                return;
+            }
+
+            try {
+                write(snapshot);
+                savedCount.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                failedCount.incrementAndGet();
+                System.err.println("Unable to save frame " + snapshot.path
+                        + ": " + e.getMessage());
+            } finally {
+                freeBuffers.offer(snapshot.pixels);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void write(Snapshot snapshot) throws IOException {
+        Path parent = snapshot.path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        // frames are opaque, so alpha is not saved.
+        try (PngStripWriter writer = new PngStripWriter(
+                new BufferedOutputStream(Files.newOutputStream(snapshot.path),
+                        1 << 16), snapshot.width, snapshot.height, false,
+                compressionLevel)) {
+            writer.writeRows(snapshot.pixels, 0, snapshot.width,
+                    snapshot.height);
+        }
+    }
+
+    /**
+     * @return number of frames waiting to be written or being written.
+     */
+    int getPendingCount() {
+        return pending.get();
+    }
+
+    long getSavedCount() {
+        return savedCount.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Write every queued frame and stop the writer threads. Frames saved
+     * after this are dropped.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            for (int i = 0; i < writers.length; ++i) {
+                queue.put(END);
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
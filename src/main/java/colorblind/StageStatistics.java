@@ -0,0 +1,68 @@
+package colorblind;
+
+/**
+ * Timing statistics of one stage of a frame over a window of frames.
+ *
+ * @author James Schmitz
+ *
+ */
+public class StageStatistics {
+
+    private final String stage;
+    private final long count;
+    private final float p50Millis;
+    private final float p95Millis;
+    private final float p99Millis;
+    private final float maxMillis;
+    private final float meanMillis;
+
+    StageStatistics(String stage, long count, float p50Millis,
+            float p95Millis, float p99Millis, float maxMillis,
+            float meanMillis) {
+        this.stage = stage;
+        this.count = count;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+        this.meanMillis = meanMillis;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    /**
+     * @return number of times the stage happened in the window.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public float getP50Millis() {
+        return p50Millis;
+    }
+
+    public float getP95Millis() {
+        return p95Millis;
+    }
+
+    public float getP99Millis() {
+        return p99Millis;
+    }
+
+    public float getMaxMillis() {
+        return maxMillis;
+    }
+
+    public float getMeanMillis() {
+        return meanMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: p50 %.3f ms | p95 %.3f ms | p99 %.3f ms | max %.3f ms (%d)",
+                stage, p50Millis, p95Millis, p99Millis, maxMillis, count);
+    }
+}
@@ -0,0 +1,154 @@
+package colorblind;
+
+import java.io.PrintStream;
+
+/**
+ * Prints frame statistics at most once per interval.
+ *
+ * Formatting with printf() creates garbage on every call, which the garbage
+ * collector eventually takes out of the frame rate. This writes ASCII text
+ * into a reused byte array and prints the array, so reporting doesn't
+ * allocate anything.
+ *
+ * @author James Schmitz
+ *
+ */
+class StatsReporter {
+
+    private static final FrameMetrics.Stage[] STAGES = FrameMetrics.Stage
+            .values();
+    private static final String[] STAGE_NAMES = new String[STAGES.length];
+
+    static {
+        for (int s = 0; s < STAGES.length; ++s) {
+            STAGE_NAMES[s] = STAGES[s].name().toLowerCase().replace('_', ' ');
+        }
+    }
+
+    private final PrintStream out;
+    private final byte[] buffer = new byte[4096];
+    private int length;
+
+    private long intervalNanos;
+    private long lastReportNanos;
+    private long lastWindowReported;
+
+    StatsReporter(PrintStream out, long intervalMillis) {
+        this.out = out;
+        setInterval(intervalMillis);
+        this.lastReportNanos = System.nanoTime() - intervalNanos;
+    }
+
+    void setInterval(long intervalMillis) {
+        this.intervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * Print a report if the interval has passed since the last one.
+     *
+     * @param metrics
+     * @param changedFraction
+     *                        fraction of the frame transformed by the delta
+     *                        transform, or a negative number if it is off
+     * @param lookupTablePending
+     */
+    void maybeReport(FrameMetrics metrics, float changedFraction,
+            boolean lookupTablePending) {
+        long now = System.nanoTime();
+        if (now - lastReportNanos < intervalNanos) {
+            return;
+        }
+        lastReportNanos = now;
+
+        length = 0;
+        append("Frame Rate: ").append(metrics.getFrameRate(), 2).append(
+                " frames/sec | Generator Render Time: ").append(
+                        metrics.getGeneratorTimeMillis(), 3).append(
+                                " ms | Draw Time: ").append(metrics
+                                        .getDrawTimeMillis(), 3).append(" ms");
+        if (changedFraction >= 0) {
+            append(" | Changed: ").append(100 * changedFraction, 1).append("%");
+        }
+        if (lookupTablePending) {
+            append(" | Lookup Table Pending");
+        }
+        append("\n");
+
+        // the percentiles only change once per window.
+        long window = metrics.getWindowNumber();
+        if (window != lastWindowReported) {
+            lastWindowReported = window;
+            for (int s = 0; s < STAGES.length; ++s) {
+                FrameMetrics.Stage stage = STAGES[s];
+                if (metrics.getCount(stage) == 0) {
+                    continue;
+                }
+                append("  ").append(STAGE_NAMES[s]).append(": p50 ").append(
+                        metrics.getPercentileMillis(stage, 50), 3).append(
+                                " | p95 ").append(metrics.getPercentileMillis(
+                                        stage, 95), 3).append(" | p99 ")
+                        .append(metrics.getPercentileMillis(stage, 99), 3)
+                        .append(" | max ").append(metrics.getMaxMillis(stage),
+                                3).append(" ms\n");
+            }
+        }
+
+        out.write(buffer, 0, length);
+        out.flush();
+    }
+
+    private StatsReporter append(String text) {
+        int n = Math.min(text.length(), buffer.length - length);
+        for (int i = 0; i < n; ++i) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+
+        return this;
+    }
+
+    /**
+     * Append a number with a fixed number of decimal places.
+     */
+    private StatsReporter append(float value, int decimals) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return append("-");
+        }
+
+        long scale = 1;
+        for (int i = 0; i < decimals; ++i) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs((double) value) * scale);
+        if (value < 0 && scaled != 0) {
+            append("-");
+        }
+
+        appendDigits(scaled / scale, 1);
+        if (decimals > 0) {
+            append(".");
+            appendDigits(scaled % scale, decimals);
+        }
+
+        return this;
+    }
+
+    /**
+     * Append a non-negative number with at least minDigits digits.
+     */
+    private void appendDigits(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        if (length + digits > buffer.length) {
+            return;
+        }
+
+        for (int i = length + digits - 1; i >= length; --i) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+}
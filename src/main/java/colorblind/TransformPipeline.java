@@ -0,0 +1,181 @@
+package colorblind;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import colorblind.generators.Generator;
+
+/**
+ * Transforms frames on a background thread while the sketch draws the next
+ * frame.
+ *
+ * Each frame is stored in a slot with a source array and a transformed
+ * array. Slots move through three queues: free slots, slots waiting for the
+ * transform thread, and finished slots. The most recent finished slot is the
+ * one being displayed, and it is freed when a newer one is displayed. No
+ * pixels are copied; the animation thread gives the pixel array it just
+ * loaded to a slot and takes that slot's old source array in exchange.
+ *
+ * There are three slots, so the transform thread can work on one frame
+ * while another is displayed and a third is waiting. If the transform thread
+ * falls further behind, the animation thread waits for it.
+ *
+ * @author James Schmitz
+ *
+ */
+class TransformPipeline {
+
+    private static final int SLOTS = 3;
+
+    private static class Slot {
+        int[] source;
+        int[] transformed;
+        Generator generator;
+        DeltaTransformer delta;
+    }
+
+    private final BlockingQueue<Slot> freeSlots = new ArrayBlockingQueue<>(
+            SLOTS);
+    private final BlockingQueue<Slot> pendingSlots = new ArrayBlockingQueue<>(
+            SLOTS);
+    private final BlockingQueue<Slot> finishedSlots = new ArrayBlockingQueue<>(
+            SLOTS);
+
+    private final Thread worker;
+    private volatile boolean running;
+    private volatile float generatorTimeMillis;
+
+    // only used by the animation thread.
+    private Slot displayed;
+
+    TransformPipeline(int pixelCount) {
+        for (int i = 0; i < SLOTS; ++i) {
+            Slot slot = new Slot();
+            slot.source = new int[pixelCount];
+            slot.transformed = new int[pixelCount];
+            freeSlots.add(slot);
+        }
+
+        running = true;
+        worker = new Thread(this::transformLoop, "ColorBlindness pipeline");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Give a frame to the transform thread.
+     *
+     * @param drawn
+     *                  pixels of the frame that was just drawn. The pipeline
+     *                  owns this array after this is called. It can be read
+     *                  but not modified until a newer frame is displayed.
+     * @param generator
+     * @param delta
+     *                  used to transform only the changed parts of the
+     *                  frame, or null to transform the whole frame
+     * @return a pixel array the sketch can use for the next frame. Its
+     *         contents are not meaningful.
+     */
+    int[] submit(int[] drawn, Generator generator, DeltaTransformer delta) {
+        Slot slot;
+        while ((slot = freeSlots.poll()) == null) {
+            // every slot is busy. wait for the transform thread to finish one.
+            display(take(finishedSlots));
+        }
+
+        int[] spare = slot.source;
+        slot.source = drawn;
+        if (slot.transformed.length != drawn.length) {
+            slot.transformed = new int[drawn.length];
+        }
+        slot.generator = generator;
+        slot.delta = delta;
+
+        pendingSlots.add(slot);
+
+        return spare;
+    }
+
+    /**
+     * Get the most recent transformed frame. Before the first frame is
+     * finished, this waits for it.
+     *
+     * The array must not be modified. It belongs to the pipeline and will be
+     * reused after a newer frame is returned.
+     *
+     * @return
+     */
+    int[] newestTransformed() {
+        Slot slot;
+        while ((slot = finishedSlots.poll()) != null) {
+            display(slot);
+        }
+        if (displayed == null) {
+            display(take(finishedSlots));
+        }
+
+        return displayed.transformed;
+    }
+
+    float getGeneratorTimeMillis() {
+        return generatorTimeMillis;
+    }
+
+    /**
+     * Stop the transform thread.
+     */
+    void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void display(Slot slot) {
+        if (displayed != null) {
+            freeSlots.add(displayed);
+        }
+        displayed = slot;
+    }
+
+    private static Slot take(BlockingQueue<Slot> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while waiting for the transform thread", e);
+        }
+    }
+
+    private void transformLoop() {
+        while (running) {
+            Slot slot;
+            try {
+                slot = pendingSlots.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            long startTime = System.nanoTime();
+            try {
+                if (slot.delta != null) {
+                    slot.delta.transform(slot.generator, slot.source,
+                            slot.transformed);
+                } else {
+                    slot.generator.transformPixels(slot.source,
+                            slot.transformed);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Exception thrown while transforming frame.");
+                e.printStackTrace();
+                System.arraycopy(slot.source, 0, slot.transformed, 0,
+                        slot.source.length);
+            }
+            generatorTimeMillis = 0.9f * generatorTimeMillis + 0.1f
+                    * (System.nanoTime() - startTime) / 1000000f;
+            slot.generator = null;
+            slot.delta = null;
+
+            finishedSlots.add(slot);
+        }
+    }
+}
@@ -2,6 +2,8 @@ package colorblind.generators;
 
 import colorblind.ColorUtilities;
 import colorblind.Deficiency;
+import colorblind.generators.util.ColorMapCache;
+import colorblind.generators.util.ColorMapKernel;
 import colorblind.generators.util.Matrix;
 import colorblind.generators.util.Vector;
 
@@ -47,95 +49,111 @@ public class ColorDeficiencySimulator extends ColorTransformGenerator {
     }
 
     protected int[] computeColorMapLookup(float amount) {
+        return buildColorMap(createColorMapKernel(amount));
+    }
+
+    protected ColorMapKernel createColorMapKernel(float amount) {
         switch (deficiency) {
             case PROTANOPIA:
-                return precalcDichromaticColorMap(ColorUtilities.protanopiaSim, amount);
+                return dichromaticKernel(ColorUtilities.protanopiaSim, amount);
             case DEUTERANOPIA:
-                return precalcDichromaticColorMap(ColorUtilities.deuteranopiaSim, amount);
+                return dichromaticKernel(ColorUtilities.deuteranopiaSim, amount);
             case TRITANOPIA:
-                return precalcDichromaticColorMap(ColorUtilities.tritanopiaSim, amount);
+                return dichromaticKernel(ColorUtilities.tritanopiaSim, amount);
             case ACHROMATOPSIA:
-                return precalcMonochromaticColorMap(ColorUtilities.achromatopsiaSim, amount);
+                return monochromaticKernel(ColorUtilities.achromatopsiaSim, amount);
             case BLUE_CONE_MONOCHROMACY:
-                return precalcMonochromaticColorMap(ColorUtilities.blueConeMonochromacySim, amount);
+                return monochromaticKernel(ColorUtilities.blueConeMonochromacySim, amount);
             case CUSTOM:
-                return precalcDichromaticColorMap(ColorUtilities.customSim, amount);
+                return dichromaticKernel(ColorUtilities.customSim, amount);
             default:
                 throw new RuntimeException("ERROR: Unknown color deficiency");
         }
     }
 
-    protected int[] precalcMonochromaticColorMap(Vector sim, float amount) {
-        int[] colorMap = new int[256 * 256 * 256];
-
-        for (int color = 0; color < colorMap.length; ++color) {
-            int startRed = (color & 0x00FF0000) >> 16;
-            int startGreen = (color & 0x0000FF00) >> 8;
-            int startBlue = (color & 0x000000FF);
-
-            // Remove gamma correction using fast lookup table.
-            float linRed = removeGammaCorrectionLUT[startRed];
-            float linGreen = removeGammaCorrectionLUT[startGreen];
-            float linBlue = removeGammaCorrectionLUT[startBlue];
-
-            // simulate colorblindness
-            int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(linRed * sim.v1 + linGreen * sim.v2 + linBlue
-                            * sim.v3)
-                    * (MAX_ENCODED_VALUE - 1))];
-            int simGreen = simRed;
-            int simBlue = simRed;
-
-            // Anomylize colors
-            int finalRed = (int) (startRed * (1 - amount) + simRed * amount);
-            int finalGreen = (int) (startGreen * (1 - amount) + simGreen
-                    * amount);
-            int finalBlue = (int) (startBlue * (1 - amount) + simBlue * amount);
-
-            colorMap[color] = 0xFF000000 | (finalRed << 16) | (finalGreen << 8)
-                    | finalBlue;
+    protected Matrix linearTransform() {
+        switch (deficiency) {
+            case PROTANOPIA:
+                return ColorUtilities.dichromaticSimulationTransform(ColorUtilities.protanopiaSim);
+            case DEUTERANOPIA:
+                return ColorUtilities.dichromaticSimulationTransform(ColorUtilities.deuteranopiaSim);
+            case TRITANOPIA:
+                return ColorUtilities.dichromaticSimulationTransform(ColorUtilities.tritanopiaSim);
+            case CUSTOM:
+                return ColorUtilities.dichromaticSimulationTransform(ColorUtilities.customSim);
+            default:
+                // the monochromatic simulations clip before the gray is
+                // copied to each channel.
+                return null;
         }
+    }
 
-        return colorMap;
+    protected Matrix severityTransform(float severity) {
+        switch (deficiency) {
+            case PROTANOPIA:
+                return ColorUtilities.anomalousSimulationTransform(ColorUtilities.protanomalySim, severity);
+            case DEUTERANOPIA:
+                return ColorUtilities.anomalousSimulationTransform(ColorUtilities.deuteranomalySim, severity);
+            case TRITANOPIA:
+                return ColorUtilities.anomalousSimulationTransform(ColorUtilities.tritanomalySim, severity);
+            default:
+                return null;
+        }
+    }
+
+    protected String colorMapFingerprint(float amount) {
+        return ColorMapCache.fingerprint(getClass().getName(), deficiency,
+                amount, MAX_ENCODED_VALUE, ColorUtilities.rgb2lms,
+                ColorUtilities.lms2rgb, ColorUtilities.protanopiaSim,
+                ColorUtilities.deuteranopiaSim, ColorUtilities.tritanopiaSim,
+                ColorUtilities.achromatopsiaSim,
+                ColorUtilities.blueConeMonochromacySim,
+                ColorUtilities.customSim);
+    }
+
+    protected int[] precalcMonochromaticColorMap(Vector sim, float amount) {
+        return buildColorMap(monochromaticKernel(sim, amount));
     }
 
     protected int[] precalcDichromaticColorMap(Matrix sim, float amount) {
-        int[] colorMap = new int[256 * 256 * 256];
-        for (int color = 0; color < colorMap.length; ++color) {
-            int startRed = (color & 0x00FF0000) >> 16;
-            int startGreen = (color & 0x0000FF00) >> 8;
-            int startBlue = (color & 0x000000FF);
-
-            // Remove gamma correction using fast lookup table.
-            float linRed = removeGammaCorrectionLUT[startRed];
-            float linGreen = removeGammaCorrectionLUT[startGreen];
-            float linBlue = removeGammaCorrectionLUT[startBlue];
-
-            // simulate colorblindness
-            Vector lms = ColorUtilities.convertLinearRGB2LMS(new Vector(linRed,
-                    linGreen, linBlue));
-            Vector simRGB = ColorUtilities.convertLMS2LinearRGB(sim
-                    .rightMult(lms));
-
-            // Apply gamma correction using fast lookup table
-            int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(simRGB.v1) * (MAX_ENCODED_VALUE - 1))];
-            int simGreen = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(simRGB.v2) * (MAX_ENCODED_VALUE - 1))];
-            int simBlue = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(simRGB.v3) * (MAX_ENCODED_VALUE - 1))];
-
-            // Anomylize colors
-            int finalRed = (int) (startRed * (1.0 - amount) + simRed * amount);
-            int finalGreen = (int) (startGreen * (1.0 - amount) + simGreen
-                    * amount);
-            int finalBlue = (int) (startBlue * (1.0 - amount) + simBlue
-                    * amount);
-
-            colorMap[color] = 0xFF000000 | (finalRed << 16) | (finalGreen << 8)
-                    | finalBlue;
-        }
+        return buildColorMap(dichromaticKernel(sim, amount));
+    }
+
+    protected ColorMapKernel monochromaticKernel(Vector sim, float amount) {
+        return (colors, colorsOffset, out, outOffset, length) -> {
+            for (int i = 0; i < length; ++i) {
+                int color = colors[colorsOffset + i];
+                int startRed = (color & 0x00FF0000) >> 16;
+                int startGreen = (color & 0x0000FF00) >> 8;
+                int startBlue = (color & 0x000000FF);
+
+                // Remove gamma correction using fast lookup table.
+                float linRed = removeGammaCorrectionLUT[startRed];
+                float linGreen = removeGammaCorrectionLUT[startGreen];
+                float linBlue = removeGammaCorrectionLUT[startBlue];
+
+                // simulate colorblindness
+                int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(linRed * sim.v1 + linGreen * sim.v2 + linBlue
+                                * sim.v3)
+                        * (MAX_ENCODED_VALUE - 1))];
+                int simGreen = simRed;
+                int simBlue = simRed;
+
+                // Anomylize colors
+                int finalRed = (int) (startRed * (1 - amount) + simRed * amount);
+                int finalGreen = (int) (startGreen * (1 - amount) + simGreen
+                        * amount);
+                int finalBlue = (int) (startBlue * (1 - amount) + simBlue * amount);
+
+                out[outOffset + i] = 0xFF000000 | (finalRed << 16) | (finalGreen << 8)
+                        | finalBlue;
+            }
+        };
+    }
 
-        return colorMap;
+    protected ColorMapKernel dichromaticKernel(Matrix sim, float amount) {
+        return linearKernel(ColorUtilities.dichromaticSimulationTransform(sim),
+                amount);
     }
 }
@@ -0,0 +1,116 @@
+package colorblind.generators;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import colorblind.generators.util.ColorMapCache;
+import colorblind.generators.util.ColorMapKernel;
+import colorblind.generators.util.Matrix;
+
+/**
+ * Everything a generator's colorMap is computed from, read from its settings
+ * once so that the kernel, the fingerprint and the table always match.
+ *
+ * @author James Schmitz
+ *
+ */
+public final class ColorMapRecipe {
+    /**
+     * Amount the colorMap is computed with.
+     */
+    public final float amount;
+    /**
+     * Kernel, or null if only the full table can be computed.
+     */
+    public final ColorMapKernel kernel;
+    /**
+     * Fingerprint, or null if the table can't be shared or cached.
+     */
+    public final String fingerprint;
+    /**
+     * Linear RGB matrix applied with an amount of 1, or null.
+     */
+    public final Matrix linearTransform;
+    private final Supplier<int[]> lookup;
+
+    /**
+     * Constructor.
+     *
+     * @param amount
+     * @param kernel
+     * @param fingerprint
+     * @param linearTransform
+     * @param lookup
+     *                        computes the full table
+     */
+    public ColorMapRecipe(float amount, ColorMapKernel kernel,
+            String fingerprint, Matrix linearTransform, Supplier<int[]> lookup) {
+        this.amount = amount;
+        this.kernel = kernel;
+        this.fingerprint = fingerprint;
+        this.linearTransform = linearTransform;
+        this.lookup = lookup;
+    }
+
+    /**
+     * Compute the full table.
+     *
+     * @return
+     */
+    public int[] computeTable() {
+        return lookup.get();
+    }
+
+    /**
+     * Get the table from the ColorMapRegistry, load it from the
+     * ColorMapCache, or compute it.
+     *
+     * @return
+     */
+    public int[] getTable() {
+        if (fingerprint == null) {
+            // the table can't be shared or cached.
+            return loadOrComputeTable();
+        }
+
+        return ColorMapRegistry.getOrCompute(fingerprint,
+                this::loadOrComputeTable);
+    }
+
+    /**
+     * Like getTable(), but in a background thread.
+     *
+     * @return future that completes when the table is ready.
+     */
+    CompletableFuture<int[]> getTableAsync() {
+        if (fingerprint == null) {
+            return CompletableFuture.supplyAsync(this::loadOrComputeTable,
+                    ColorMapRegistry.backgroundExecutor());
+        }
+
+        return ColorMapRegistry.getOrComputeAsync(fingerprint,
+                this::loadOrComputeTable);
+    }
+
+    /**
+     * Load the table from the ColorMapCache or compute it.
+     */
+    private int[] loadOrComputeTable() {
+        int[] table = null;
+
+        if (fingerprint != null) {
+            table = ColorMapCache.load(fingerprint);
+        }
+
+        if (table == null) {
+            System.out.println("Pre-computing lookup table...");
+            table = computeTable();
+
+            if (fingerprint != null) {
+                ColorMapCache.store(fingerprint, table);
+            }
+        }
+
+        return table;
+    }
+}
@@ -0,0 +1,343 @@
+package colorblind.generators;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import colorblind.Deficiency;
+
+/**
+ * Process wide registry of colorMap lookup tables.
+ *
+ * Every generator with the same type, deficiency, amount and matrices computes
+ * an identical lookup table. The registry lets them share one copy instead of
+ * each computing their own. This makes it fast to create new generators, such
+ * as when a sketch switches deficiencies, and lets several sketch windows
+ * share the same 64 MB tables.
+ *
+ * The most recently used tables are kept in memory until they exceed the
+ * memory budget. Older tables are only softly referenced, so the garbage
+ * collector can free them if memory gets low and nothing else is using them.
+ *
+ * Tables in the registry are shared. They must never be modified.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ColorMapRegistry {
+
+    private static final Object LOCK = new Object();
+
+    // most recently used tables, in least recently used order.
+    private static final LinkedHashMap<String, int[]> strongTables = new LinkedHashMap<>(
+            16, 0.75f, true);
+    private static long strongBytes = 0;
+    // tables that were evicted from strongTables.
+    private static final Map<String, SoftReference<int[]>> softTables = new HashMap<>();
+    // tables currently being computed, so they are only computed once.
+    private static final Map<String, CompletableFuture<int[]>> pendingTables = new HashMap<>();
+
+    private static long memoryBudget = defaultMemoryBudget();
+
+    // computes tables in the background for preload() and for generators
+    // that don't want to wait for their table.
+    private static ExecutorService backgroundExecutor;
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    private static long defaultMemoryBudget() {
+        // enough for four tables, or 1/4 of the heap if that is less.
+        return Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Set the memory used by tables that are always kept in memory. Tables
+     * over this budget may be freed by the garbage collector.
+     *
+     * Pass 0 to only share tables that are currently being used by a
+     * generator.
+     *
+     * @param bytes
+     */
+    public static void setMemoryBudget(long bytes) {
+        synchronized (LOCK) {
+            memoryBudget = Math.max(0, bytes);
+            evict();
+        }
+    }
+
+    public static long getMemoryBudget() {
+        synchronized (LOCK) {
+            return memoryBudget;
+        }
+    }
+
+    /**
+     * @return memory used by tables that are always kept in memory, in bytes.
+     */
+    public static long getMemoryUsed() {
+        synchronized (LOCK) {
+            return strongBytes;
+        }
+    }
+
+    /**
+     * @return number of tables that were found in the registry.
+     */
+    public static long getHits() {
+        synchronized (LOCK) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return number of tables that had to be loaded or computed.
+     */
+    public static long getMisses() {
+        synchronized (LOCK) {
+            return misses;
+        }
+    }
+
+    /**
+     * Remove every table from the registry. Generators that are using a table
+     * will continue to use it.
+     */
+    public static void clear() {
+        synchronized (LOCK) {
+            strongTables.clear();
+            softTables.clear();
+            strongBytes = 0;
+        }
+    }
+
+    /**
+     * Get a table from the registry.
+     *
+     * @param key
+     *            fingerprint of everything used to compute the table
+     * @return the table, or null if it is not in the registry.
+     */
+    public static int[] get(String key) {
+        synchronized (LOCK) {
+            return find(key);
+        }
+    }
+
+    /**
+     * Add a table to the registry.
+     *
+     * @param key
+     *                 fingerprint of everything used to compute the table
+     * @param colorMap
+     */
+    public static void put(String key, int[] colorMap) {
+        synchronized (LOCK) {
+            add(key, colorMap);
+        }
+    }
+
+    /**
+     * Get a table from the registry, or compute it if it is not there.
+     *
+     * If another thread is already computing the same table, this waits for
+     * it to finish instead of computing it again.
+     *
+     * @param key
+     *                 fingerprint of everything used to compute the table
+     * @param supplier
+     *                 loads or computes the table
+     * @return
+     */
+    public static int[] getOrCompute(String key, Supplier<int[]> supplier) {
+        CompletableFuture<int[]> future;
+        boolean computeHere = false;
+
+        synchronized (LOCK) {
+            int[] colorMap = find(key);
+            if (colorMap != null) {
+                hits++;
+                return colorMap;
+            }
+
+            future = pendingTables.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                pendingTables.put(key, future);
+                computeHere = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+
+        if (!computeHere) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            int[] colorMap = supplier.get();
+            synchronized (LOCK) {
+                add(key, colorMap);
+                pendingTables.remove(key);
+            }
+            future.complete(colorMap);
+
+            return colorMap;
+        } catch (RuntimeException | Error e) {
+            synchronized (LOCK) {
+                pendingTables.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Compute the simulation and daltonization tables for some deficiencies
+     * in a background thread.
+     *
+     * The tables are computed with an amount of 100%, which is also what
+     * generators use after calling setDynamicAmount(). Generators created
+     * later will use the preloaded tables, or wait for them if they are still
+     * being computed.
+     *
+     * Each table uses 64 MB of RAM. Preloading more tables than the memory
+     * budget allows is OK, but the garbage collector may free some of them.
+     *
+     * @param deficiencies
+     * @return future that completes when all of the tables are ready.
+     */
+    public static CompletableFuture<Void> preload(Deficiency... deficiencies) {
+        Deficiency[] copy = deficiencies.clone();
+
+        return CompletableFuture.runAsync(() -> {
+            for (Deficiency deficiency : copy) {
+                ColorDeficiencySimulator.createSimulator(deficiency)
+                        .getColorMap();
+
+                if (deficiency != Deficiency.ACHROMATOPSIA
+                        && deficiency != Deficiency.BLUE_CONE_MONOCHROMACY) {
+                    DaltonizeGenerator.createDaltonizer(deficiency)
+                            .getColorMap();
+                }
+            }
+        }, backgroundExecutor());
+    }
+
+    /**
+     * Get a table from the registry, or compute it in a background thread if
+     * it is not there.
+     *
+     * @param key
+     *                 fingerprint of everything used to compute the table
+     * @param supplier
+     *                 loads or computes the table
+     * @return future that completes when the table is ready.
+     */
+    public static CompletableFuture<int[]> getOrComputeAsync(String key,
+            Supplier<int[]> supplier) {
+        synchronized (LOCK) {
+            int[] colorMap = find(key);
+            if (colorMap != null) {
+                hits++;
+                return CompletableFuture.completedFuture(colorMap);
+            }
+
+            CompletableFuture<int[]> future = pendingTables.get(key);
+            if (future != null) {
+                hits++;
+                return future;
+            }
+        }
+
+        return CompletableFuture.supplyAsync(() -> getOrCompute(key, supplier),
+                backgroundExecutor());
+    }
+
+    /**
+     * Executor for computing tables in the background. It uses one daemon
+     * thread because computing a table already uses every core.
+     *
+     * @return
+     */
+    static Executor backgroundExecutor() {
+        synchronized (LOCK) {
+            if (backgroundExecutor == null) {
+                backgroundExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "ColorBlindness lookup tables");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+
+            return backgroundExecutor;
+        }
+    }
+
+    private static int[] find(String key) {
+        int[] colorMap = strongTables.get(key);
+        if (colorMap != null) {
+            return colorMap;
+        }
+
+        SoftReference<int[]> ref = softTables.get(key);
+        if (ref != null) {
+            colorMap = ref.get();
+            if (colorMap == null) {
+                softTables.remove(key);
+            } else {
+                // it is being used again, so it is the most recently used.
+                add(key, colorMap);
+            }
+        }
+
+        return colorMap;
+    }
+
+    private static void add(String key, int[] colorMap) {
+        softTables.remove(key);
+        int[] previous = strongTables.put(key, colorMap);
+        if (previous != null) {
+            strongBytes -= 4L * previous.length;
+        }
+        strongBytes += 4L * colorMap.length;
+
+        evict();
+    }
+
+    /**
+     * Move the least recently used tables to softTables until the strongly
+     * referenced tables are within the memory budget.
+     */
+    private static void evict() {
+        Iterator<Map.Entry<String, int[]>> iterator = strongTables.entrySet()
+                .iterator();
+
+        while (strongBytes > memoryBudget && iterator.hasNext()) {
+            Map.Entry<String, int[]> eldest = iterator.next();
+            iterator.remove();
+            strongBytes -= 4L * eldest.getValue().length;
+            softTables.put(eldest.getKey(), new SoftReference<>(eldest
+                    .getValue()));
+        }
+
+        softTables.values().removeIf(ref -> ref.get() == null);
+    }
+}
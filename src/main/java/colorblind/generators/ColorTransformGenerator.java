@@ -1,9 +1,21 @@
 package colorblind.generators;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
 import processing.core.PImage;
 import colorblind.ColorUtilities;
 import colorblind.Deficiency;
+import colorblind.generators.GeneratorTables.State;
+import colorblind.generators.util.BlendKernel;
+import colorblind.generators.util.ColorCache;
+import colorblind.generators.util.ColorLattice;
+import colorblind.generators.util.ColorMapCache;
+import colorblind.generators.util.ColorMapKernel;
 import colorblind.generators.util.Matrix;
+import colorblind.generators.util.PixelWorkerPool;
 import colorblind.generators.util.Vector;
 
 /**
@@ -12,82 +24,848 @@ import colorblind.generators.util.Vector;
  * This class provides some default matrix values and implementations of some
  * useful functions for color blindness simulations and daltonization.
  * 
+ * One generator can be used by several threads at the same time. The amount,
+ * engine and tables are published together as one immutable snapshot, so
+ * transforming pixels never locks, and the amount can be changed by another
+ * thread while frames are being transformed. Each table is computed only
+ * once, even if several threads need it at the same time.
+ * 
  * @author James Schmitz
  *
  */
 public abstract class ColorTransformGenerator extends Generator {
 
+    /**
+     * How the generator transforms each pixel.
+     */
+    public enum Engine {
+        /**
+         * Look up every color in the full 64 MB colorMap. This is exact.
+         */
+        LOOKUP_TABLE,
+        /**
+         * Interpolate between the nodes of a small ColorLattice. This uses
+         * much less memory but is an approximation.
+         */
+        LATTICE,
+        /**
+         * Do the math for every pixel using the gamma lookup tables and one
+         * fused matrix. This is exact and doesn't use a colorMap, so changes
+         * to the matrices in ColorUtilities are used on the next frame.
+         */
+        ANALYTIC
+    }
+
+    /**
+     * When to use a small cache of recently transformed colors.
+     */
+    public enum PaletteMode {
+        /**
+         * Use the cache while most pixels are found in it. This is the
+         * default.
+         */
+        AUTO,
+        /**
+         * Always use the cache.
+         */
+        ALWAYS,
+        /**
+         * Never use the cache.
+         */
+        NEVER
+    }
+
     protected Deficiency deficiency;
 
-    // colorMap is typically calculated once when it is first needed.
-    protected int[] colorMap;
-    protected float amount;
-    protected float amountComplement;
-    protected boolean dynamicAmount;
+    private final GeneratorTables tables;
 
     protected final int MAX_ENCODED_VALUE = (int) Math.pow(2, 10);
     protected float[] removeGammaCorrectionLUT;
     protected int[] applyGammaCorrectionLUT;
 
+    // the standard RGB gamma lookup tables are the same for every generator,
+    // so they are only computed once.
+    private static final float[] STANDARD_RGB_REMOVE_GAMMA_LUT = preComputeRemoveGammaCorrectionStandardrgbLUT();
+    private static final int[] STANDARD_RGB_APPLY_GAMMA_LUT = preComputeApplyGammaCorrectionStandardrgbLUT(1 << 10);
+
+    // pool used to compute the colorMap. null means compute it serially on
+    // the calling thread.
+    private volatile ForkJoinPool lookupTablePool;
+
+    /**
+     * Number of colors in one slab of the colorMap. Each slab is all of the
+     * colors with the same red value.
+     */
+    protected static final int COLOR_MAP_SLAB_SIZE = 256 * 256;
+
+    /**
+     * Number of severities the severity lattices are computed for, evenly
+     * spaced from 0 to 1.
+     */
+    public static final int SEVERITY_STEPS = 11;
+
+    private volatile boolean asyncLookupTable;
+    private final LongAdder fallbackCount = new LongAdder();
+    // whether the most recent frame each thread transformed used the
+    // fallback kernel.
+    private final ThreadLocal<Boolean> lastFrameUsedFallback = ThreadLocal
+            .withInitial(() -> false);
+
+    // pixels are transformed in chunks of this size when an intermediate
+    // buffer is needed.
+    private static final int SCRATCH_SIZE = 4096;
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal
+            .withInitial(() -> new int[SCRATCH_SIZE]);
+
+    /**
+     * Default number of pixels in each stripe when transforming pixels in
+     * parallel. This is 64 KB of pixels, which fits in the L2 cache.
+     */
+    public static final int DEFAULT_MINIMUM_CHUNK_SIZE = 16384;
+
+    // null means transform pixels on the calling thread.
+    private volatile PixelWorkerPool workerPool;
+    private volatile int minimumChunkSize;
+    // each thread that uses the worker pool has its own tasks, which are
+    // reused for every frame.
+    private final ThreadLocal<StripeTask> stripeTasks = ThreadLocal
+            .withInitial(StripeTask::new);
+    private final ThreadLocal<RegionTask> regionTasks = ThreadLocal
+            .withInitial(RegionTask::new);
+
+    private volatile BlendKernel blendKernel;
+    private volatile boolean vectorized;
+    private volatile boolean fixedPointBlend;
+
+    // AUTO stops using the cache for the rest of a stripe when a chunk has
+    // more misses than this.
+    private static final int PALETTE_MAX_MISSES = ColorCache.CHUNK_SIZE / 4;
+
+    private volatile PaletteMode paletteMode;
+    private final ThreadLocal<ColorCache> colorCaches = ThreadLocal
+            .withInitial(ColorCache::new);
+    private final LongAdder paletteHits = new LongAdder();
+    private final LongAdder paletteMisses = new LongAdder();
+
     /**
      * Constructor.
      * 
-     * Compute gamma lookup tables. This is fast and the memory is small.
+     * Use the shared gamma lookup tables. The colorMap lookup table is only
+     * computed when it is first needed.
      * 
      * @param colorBlindness
      */
     public ColorTransformGenerator(Deficiency colorBlindness) {
         this.deficiency = colorBlindness;
-        this.amount = 1;
-        this.amountComplement = 0;
-        this.dynamicAmount = false;
+        State initial = new State();
+        initial.amount = 1;
+        initial.amountComplement = 0;
+        initial.dynamicAmount = false;
+        initial.engine = Engine.LOOKUP_TABLE;
+        initial.severityEnabled = false;
+        initial.severity = 1;
+        this.tables = new GeneratorTables(new TableSource(), initial);
+        this.lookupTablePool = ForkJoinPool.commonPool();
+        this.asyncLookupTable = true;
+        this.minimumChunkSize = DEFAULT_MINIMUM_CHUNK_SIZE;
+        this.vectorized = true;
+        this.fixedPointBlend = false;
+        this.blendKernel = BlendKernel.preferred();
+        this.paletteMode = PaletteMode.AUTO;
 
-        removeGammaCorrectionLUT = preComputeRemoveGammaCorrectionStandardrgbLUT();
-        applyGammaCorrectionLUT = preComputeApplyGammaCorrectionStandardrgbLUT(MAX_ENCODED_VALUE);
+        removeGammaCorrectionLUT = STANDARD_RGB_REMOVE_GAMMA_LUT;
+        applyGammaCorrectionLUT = STANDARD_RGB_APPLY_GAMMA_LUT;
     }
 
     /**
      * Helper function for the precomputed color map lookup table.
+     * 
+     * This waits for the table if it is being computed in the background.
+     * 
+     * The table may be shared with other generators through the
+     * ColorMapRegistry, so don't modify it.
      */
     public int[] getColorMap() {
-        verifyLookupTables();
-
-        return colorMap;
+        return tables.verifyLookupTables().colorMap;
     }
 
     /**
      * This should only be called once, and lazily, when the table is first
      * used.
      * 
+     * Implementations should use buildColorMap() so the work is split into
+     * slabs and computed in parallel. Implementations that can compute any
+     * individual color should also override createColorMapKernel().
+     * 
      * @param amount
      *               number in range [0, 1]
      * @return precomputed lookup table.
      */
     protected abstract int[] computeColorMapLookup(float amount);
 
+    /**
+     * Set the pool used to compute the colorMap lookup table. This defaults to
+     * the common ForkJoinPool.
+     * 
+     * Pass null to compute the lookup table serially on the calling thread.
+     * The lookup table is identical either way.
+     * 
+     * @param pool
+     * @return
+     */
+    public ColorTransformGenerator setLookupTablePool(ForkJoinPool pool) {
+        this.lookupTablePool = pool;
+
+        return this;
+    }
+
+    public ForkJoinPool getLookupTablePool() {
+        return lookupTablePool;
+    }
+
+    /**
+     * Transform pixels in parallel using a shared pool of threads. This is off
+     * by default.
+     * 
+     * The pixels are split into stripes of at least the minimum chunk size.
+     * Frames with fewer than two stripes of pixels are transformed on the
+     * calling thread.
+     * 
+     * @param parallelism
+     *                    number of threads to use, including the calling
+     *                    thread. Pass 1 to turn this off.
+     * @return
+     */
+    public ColorTransformGenerator setParallelism(int parallelism) {
+        if (parallelism <= 1) {
+            workerPool = null;
+        } else {
+            workerPool = PixelWorkerPool.shared(parallelism);
+        }
+
+        return this;
+    }
+
+    /**
+     * Transform pixels in parallel using every available processor.
+     * 
+     * @return
+     */
+    public ColorTransformGenerator setParallel() {
+        return setParallelism(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Transform pixels in parallel using your own pool of threads. Pass null
+     * to transform pixels on the calling thread.
+     * 
+     * @param pool
+     * @return
+     */
+    public ColorTransformGenerator setWorkerPool(PixelWorkerPool pool) {
+        this.workerPool = pool;
+
+        return this;
+    }
+
+    public int getParallelism() {
+        return workerPool == null ? 1 : workerPool.getParallelism();
+    }
+
+    /**
+     * Set the minimum number of pixels in each stripe when transforming
+     * pixels in parallel.
+     * 
+     * @param pixels
+     * @return
+     */
+    public ColorTransformGenerator setMinimumChunkSize(int pixels) {
+        if (pixels < 1) {
+            throw new RuntimeException("Minimum chunk size must be at least 1");
+        }
+        this.minimumChunkSize = pixels;
+
+        return this;
+    }
+
+    public int getMinimumChunkSize() {
+        return minimumChunkSize;
+    }
+
+    /**
+     * Set if the Java Vector API is used to transform several pixels at once.
+     * The results are identical either way.
+     * 
+     * This defaults to true, but the Vector API is only available if the JVM
+     * was started with --add-modules jdk.incubator.vector.
+     * 
+     * @param vectorized
+     * @return
+     */
+    public ColorTransformGenerator setVectorized(boolean vectorized) {
+        if (vectorized && BlendKernel.vector() == null) {
+            System.err.println("The Java Vector API is not available."
+                    + " Start Java with --add-modules jdk.incubator.vector to use it.");
+        }
+        this.vectorized = vectorized;
+        chooseBlendKernel();
+
+        return this;
+    }
+
+    public boolean isVectorized() {
+        return vectorized && BlendKernel.vector() != null && !fixedPointBlend;
+    }
+
+    /**
+     * Blend colors with integer math instead of floating point math when the
+     * amount is dynamic and less than 1. This is off by default.
+     * 
+     * The amount is rounded to the nearest multiple of 1/256, so each channel
+     * of a blended color can be different by 1 compared to the floating point
+     * math. This is much faster when the Vector API is not available, which
+     * helps sketches that change the amount with a slider.
+     * 
+     * @param fixedPoint
+     * @return
+     */
+    public ColorTransformGenerator setFixedPointBlend(boolean fixedPoint) {
+        this.fixedPointBlend = fixedPoint;
+        chooseBlendKernel();
+        tables.update(State::next);
+
+        return this;
+    }
+
+    public boolean isFixedPointBlend() {
+        return fixedPointBlend;
+    }
+
+    private void chooseBlendKernel() {
+        if (fixedPointBlend) {
+            blendKernel = BlendKernel.fixedPoint();
+        } else if (vectorized) {
+            blendKernel = BlendKernel.preferred();
+        } else {
+            blendKernel = BlendKernel.scalar();
+        }
+    }
+
+    /**
+     * Set when a small cache of recently transformed colors is used. The
+     * results are identical either way.
+     * 
+     * Images with few distinct colors, such as charts and flat graphics, are
+     * much faster with the cache when the amount is blended or the LATTICE or
+     * ANALYTIC engine is used. Pixels with the same color as the previous
+     * pixel are not transformed again. With AUTO, the default, the cache is
+     * used in those cases until it stops finding most pixels.
+     * 
+     * @param paletteMode
+     * @return
+     */
+    public ColorTransformGenerator setPaletteMode(PaletteMode paletteMode) {
+        this.paletteMode = paletteMode;
+
+        return this;
+    }
+
+    public PaletteMode getPaletteMode() {
+        return paletteMode;
+    }
+
+    /**
+     * @return number of pixels found in the color cache.
+     */
+    public long getPaletteHits() {
+        return paletteHits.sum();
+    }
+
+    /**
+     * @return number of pixels that were looked up in the color cache but not
+     *         found.
+     */
+    public long getPaletteMisses() {
+        return paletteMisses.sum();
+    }
+
+    /**
+     * @return fraction of pixels looked up in the color cache that were
+     *         found, or 0 if the cache has not been used.
+     */
+    public float getPaletteHitRate() {
+        long hits = paletteHits.sum();
+        long total = hits + paletteMisses.sum();
+
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /**
+     * Set if the colorMap lookup table is computed in a background thread.
+     * This defaults to true.
+     * 
+     * While the table is being computed, colors are transformed by doing the
+     * math for each pixel. The results are identical to the lookup table, but
+     * it is slower. When the table is ready the generator switches to it.
+     * 
+     * Generators that can't compute individual colors always wait for the
+     * table.
+     * 
+     * @param async
+     * @return
+     */
+    public ColorTransformGenerator setAsyncLookupTable(boolean async) {
+        this.asyncLookupTable = async;
+
+        return this;
+    }
+
+    public boolean isAsyncLookupTable() {
+        return asyncLookupTable;
+    }
+
+    /**
+     * Start computing the colorMap lookup table in a background thread, if it
+     * isn't already being computed.
+     * 
+     * Use this to be notified when the table is ready.
+     * 
+     * @return future that completes when the table is ready.
+     */
+    public CompletableFuture<int[]> getLookupTableFuture() {
+        State s;
+        do {
+            s = tables.startLookupTable(tables.current(), true);
+        } while (s == null);
+
+        if (s.colorMap != null) {
+            return CompletableFuture.completedFuture(s.colorMap);
+        }
+
+        return s.colorMapFuture;
+    }
+
+    /**
+     * @return true if the colorMap lookup table has been computed.
+     */
+    public boolean isLookupTableReady() {
+        State s = tables.get();
+
+        return s.colorMap != null
+                || (s.colorMapFuture != null && s.colorMapFuture.isDone() && !s.colorMapFuture
+                        .isCompletedExceptionally());
+    }
+
+    /**
+     * @return true if the most recent frame this thread transformed did the
+     *         math for each pixel because the lookup table was not ready yet.
+     */
+    public boolean lastTransformUsedFallback() {
+        return lastFrameUsedFallback.get();
+    }
+
+    /**
+     * Frames are counted by transformPixels(pixels), transformPixels(src,
+     * dst), transformRegion() and transformPImage(). transformColor() and
+     * transforming part of an array with transformPixels(src, srcOffset, dst,
+     * dstOffset, length) are not counted.
+     * 
+     * @return number of frames that did the math for each pixel because the
+     *         lookup table was not ready yet.
+     */
+    public long getFallbackCount() {
+        return fallbackCount.sum();
+    }
+
+    /**
+     * Kernel for computing any individual transformed color.
+     * 
+     * The default returns null, which means the generator can only compute
+     * the full lookup table with computeColorMapLookup().
+     * 
+     * @param amount
+     *               number in range [0, 1]
+     * @return kernel or null
+     */
+    protected ColorMapKernel createColorMapKernel(float amount) {
+        return null;
+    }
+
+    /**
+     * The linear RGB matrix this generator applies with an amount of 1, if
+     * the whole transform is one matrix multiplication between removing and
+     * re-applying the gamma correction.
+     * 
+     * The default returns null, which means the transform isn't a single
+     * matrix.
+     * 
+     * @return fused linear RGB transform or null
+     */
+    protected Matrix linearTransform() {
+        return null;
+    }
+
+    /**
+     * The linear RGB matrix this generator applies for a severity, with an
+     * amount of 1.
+     * 
+     * The default returns null, which means this generator doesn't support
+     * severities.
+     * 
+     * @param severity
+     *                 number in range [0, 1]
+     * @return linear RGB transform or null
+     */
+    protected Matrix severityTransform(float severity) {
+        return null;
+    }
+
+    /**
+     * Recipe for the colorMap with this amount.
+     *
+     * The default calls createColorMapKernel(), colorMapFingerprint(),
+     * linearTransform() and computeColorMapLookup(). Subclasses whose hooks
+     * read settings that can change should override this so the settings are
+     * only read once.
+     *
+     * @param amount
+     *               number in range [0, 1]
+     * @return
+     */
+    protected ColorMapRecipe createColorMapRecipe(float amount) {
+        return new ColorMapRecipe(amount, createColorMapKernel(amount),
+                colorMapFingerprint(amount), linearTransform(),
+                () -> computeColorMapLookup(amount));
+    }
+
+    /**
+     * Recipe for the colorMap of a state. With a severity, everything comes
+     * from the state's severity matrix.
+     */
+    private ColorMapRecipe colorMapRecipe(State s, float amount) {
+        if (!s.severityEnabled) {
+            return createColorMapRecipe(amount);
+        }
+
+        Matrix transform = severityTransform(s.severity);
+        ColorMapKernel kernel = linearKernel(transform, amount);
+
+        return new ColorMapRecipe(amount, kernel, ColorMapCache.fingerprint(
+                getClass().getName(), deficiency, amount, MAX_ENCODED_VALUE,
+                transform), transform, () -> buildColorMap(kernel));
+    }
+
+    /**
+     * Recipe for the colorMap of the current settings, using the current
+     * amount as if it were fixed. ComposedGenerator uses this for its stages.
+     *
+     * @return
+     */
+    protected ColorMapRecipe getColorMapRecipe() {
+        State s = tables.get();
+
+        return colorMapRecipe(s, s.amount);
+    }
+
+    /**
+     * Allocate a colorMap lookup table and fill it in with the kernel.
+     * 
+     * The table is split into independent slabs of colors that are computed
+     * in parallel using the lookup table pool.
+     * 
+     * @param kernel
+     * @return precomputed lookup table.
+     */
+    protected int[] buildColorMap(ColorMapKernel kernel) {
+        int[] colorMap = new int[256 * 256 * 256];
+
+        if (lookupTablePool == null) {
+            computeSlab(kernel, colorMap, 0, colorMap.length);
+        } else {
+            lookupTablePool.invoke(new ColorMapTask(kernel, colorMap, 0,
+                    colorMap.length));
+        }
+
+        return colorMap;
+    }
+
+    /**
+     * Compute the colorMap entries for every color in [fromColor, toColor).
+     * 
+     * The colors are written into the table and then transformed in place.
+     */
+    private static void computeSlab(ColorMapKernel kernel, int[] colorMap,
+            int fromColor, int toColor) {
+        for (int color = fromColor; color < toColor; ++color) {
+            colorMap[color] = color;
+        }
+
+        kernel.compute(colorMap, fromColor, colorMap, fromColor, toColor
+                - fromColor);
+    }
+
+    /**
+     * Kernel for a transform that is a single linear operation on linear RGB
+     * colors.
+     * 
+     * Each color has its gamma correction removed, is multiplied by the
+     * transform matrix, is clipped, and then has its gamma correction
+     * re-applied. All of this is done with primitive floats so nothing is
+     * allocated for each color.
+     * 
+     * @param transform
+     *                  fused linear RGB transform
+     * @param amount
+     *                  number in range [0, 1]
+     * @return
+     */
+    protected ColorMapKernel linearKernel(Matrix transform, float amount) {
+        // copy the matrix so changes made while the table is being computed
+        // don't result in an inconsistent table.
+        final Matrix m = new Matrix(transform);
+
+        return (colors, colorsOffset, out, outOffset, length) -> {
+            float r1c1 = m.r1c1, r1c2 = m.r1c2, r1c3 = m.r1c3;
+            float r2c1 = m.r2c1, r2c2 = m.r2c2, r2c3 = m.r2c3;
+            float r3c1 = m.r3c1, r3c2 = m.r3c2, r3c3 = m.r3c3;
+            int maxIndex = MAX_ENCODED_VALUE - 1;
+
+            for (int i = 0; i < length; ++i) {
+                int color = colors[colorsOffset + i];
+                int startRed = (color & 0x00FF0000) >> 16;
+                int startGreen = (color & 0x0000FF00) >> 8;
+                int startBlue = (color & 0x000000FF);
+
+                // Remove gamma correction using fast lookup table.
+                float linRed = removeGammaCorrectionLUT[startRed];
+                float linGreen = removeGammaCorrectionLUT[startGreen];
+                float linBlue = removeGammaCorrectionLUT[startBlue];
+
+                // transform color
+                float outRed = r1c1 * linRed + r1c2 * linGreen + r1c3 * linBlue;
+                float outGreen = r2c1 * linRed + r2c2 * linGreen + r2c3 * linBlue;
+                float outBlue = r3c1 * linRed + r3c2 * linGreen + r3c3 * linBlue;
+
+                // Apply gamma correction using fast lookup table
+                int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(outRed) * maxIndex)];
+                int simGreen = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(outGreen) * maxIndex)];
+                int simBlue = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(outBlue) * maxIndex)];
+
+                // Anomylize colors
+                int finalRed = (int) (startRed * (1.0 - amount) + simRed * amount);
+                int finalGreen = (int) (startGreen * (1.0 - amount) + simGreen
+                        * amount);
+                int finalBlue = (int) (startBlue * (1.0 - amount) + simBlue
+                        * amount);
+
+                out[outOffset + i] = 0xFF000000 | (finalRed << 16)
+                        | (finalGreen << 8) | finalBlue;
+            }
+        };
+    }
+
+    /**
+     * Recursively split a range of colors in half until each piece is one
+     * slab.
+     */
+    private static class ColorMapTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ColorMapKernel kernel;
+        private final int[] colorMap;
+        private final int fromColor;
+        private final int toColor;
+
+        ColorMapTask(ColorMapKernel kernel, int[] colorMap, int fromColor,
+                int toColor) {
+            this.kernel = kernel;
+            this.colorMap = colorMap;
+            this.fromColor = fromColor;
+            this.toColor = toColor;
+        }
+
+        @Override
+        protected void compute() {
+            if (toColor - fromColor <= COLOR_MAP_SLAB_SIZE) {
+                computeSlab(kernel, colorMap, fromColor, toColor);
+            } else {
+                int mid = (fromColor + toColor) >>> 1;
+                invokeAll(new ColorMapTask(kernel, colorMap, fromColor, mid),
+                        new ColorMapTask(kernel, colorMap, mid, toColor));
+            }
+        }
+    }
+
+    /**
+     * Use the full colorMap lookup table to transform colors. This is the
+     * default.
+     * 
+     * @return
+     */
+    public ColorTransformGenerator useLookupTable() {
+        tables.update(s -> {
+            State n = s.next();
+            n.engine = Engine.LOOKUP_TABLE;
+
+            return n.discardLattice();
+        });
+
+        return this;
+    }
+
+    /**
+     * Use a ColorLattice to transform colors instead of the full colorMap
+     * lookup table. This uses much less memory and is more cache friendly,
+     * but colors are approximated by interpolation.
+     * 
+     * Use measureLatticeAccuracy() to see how accurate the lattice is.
+     * 
+     * @param size
+     *                      number of lattice nodes along each side of the RGB
+     *                      cube. Typically ColorLattice.SMALL (17),
+     *                      ColorLattice.MEDIUM (33) or ColorLattice.LARGE
+     *                      (65).
+     * @param interpolation
+     * @return
+     */
+    public ColorTransformGenerator useLattice(int size,
+            ColorLattice.Interpolation interpolation) {
+        tables.update(s -> {
+            State n = s.next();
+            if (n.latticeSize != size
+                    || n.latticeInterpolation != interpolation) {
+                n.discardLattice();
+            } else if (n.engine != Engine.LATTICE) {
+                // the severity kernel of the other engines isn't a lattice.
+                n.severityLattice = null;
+                n.severityKernel = null;
+            }
+
+            n.engine = Engine.LATTICE;
+            n.latticeSize = size;
+            n.latticeInterpolation = interpolation;
+            // release the memory used by the full lookup table.
+            return n.discardColorMap();
+        });
+
+        return this;
+    }
+
+    public ColorTransformGenerator useLattice(int size) {
+        return useLattice(size, ColorLattice.Interpolation.TETRAHEDRAL);
+    }
+
+    /**
+     * Transform colors by doing the math for each pixel instead of using the
+     * colorMap lookup table. The results are identical to the lookup table.
+     * 
+     * No lookup table is computed, so this uses almost no memory and there is
+     * no delay before the first frame. The matrices in ColorUtilities are
+     * checked for every frame, so changes to them, such as to customSim, are
+     * used right away.
+     * 
+     * Whether this is faster or slower than the lookup table depends on the
+     * computer and on the image. The lookup table is usually faster for
+     * images with many different colors.
+     * 
+     * @return
+     */
+    public ColorTransformGenerator useAnalytic() {
+        tables.update(s -> {
+            State n = s.next();
+            n.engine = Engine.ANALYTIC;
+            n.discardLattice();
+            // release the memory used by the full lookup table.
+            return n.discardColorMap();
+        });
+
+        return this;
+    }
+
+    public Engine getEngine() {
+        return tables.get().engine;
+    }
+
+    /**
+     * Helper function for the lattice used by the LATTICE engine. With a
+     * severity, this is the lattice interpolated for that severity.
+     * 
+     * @return the lattice, or null if the LATTICE engine is not being used.
+     */
+    public ColorLattice getLattice() {
+        State s = tables.verifyLattice();
+
+        return s == null ? null : s.engineLattice();
+    }
+
+    /**
+     * Compare the lattice to the full colorMap lookup table. With a severity,
+     * the lattice interpolated for that severity is compared to a table
+     * computed from the severity matrices.
+     * 
+     * This computes the full lookup table, so it is slow and temporarily uses
+     * 64 MB of RAM. Call it while deciding on a lattice size, not every frame.
+     * 
+     * @return max and mean delta E, or null if the LATTICE engine is not
+     *         being used.
+     */
+    public ColorLattice.Accuracy measureLatticeAccuracy() {
+        State s = tables.verifyLattice();
+        if (s == null) {
+            return null;
+        }
+
+        return s.engineLattice().measureAccuracy(colorMapRecipe(s,
+                s.tableAmount()).computeTable());
+    }
+
     /**
      * Set % of colorblindness. This defaults to 100%.
      * 
-     * Better to call setDynamicAmount() before calling this.
+     * Better to call setDynamicAmount() before calling this. After that,
+     * changing the amount only publishes the new amount, so it is fast and
+     * can be done from any thread, such as a GUI thread, while other threads
+     * are transforming pixels. A transformation uses either the old amount or
+     * the new amount for every pixel, never a mix.
      * 
      * @param amount
      *               : in range [0, 1]
      * @return
      */
     public ColorTransformGenerator setAmount(float amount) {
-        if (dynamicAmount == false && colorMap != null) {
+        float clipped = ColorUtilities.clip(amount);
+
+        State previous = tables.getAndUpdate(s -> {
+            State n = s.next();
+            if (n.dynamicAmount == false) {
+                // also stop using a table that is still being computed. the
+                // lattice is small and fast to recompute.
+                n.discardColorMap().discardLattice();
+            }
+
+            n.amount = clipped;
+            n.amountComplement = 1 - clipped;
+
+            return n;
+        });
+
+        if (previous.dynamicAmount == false && previous.colorMap != null) {
             System.err
                     .println("Please don't change amount without also calling setDynamicAmount()."
                             + " Call it in your setup() function or before calling setAmount().");
-            colorMap = null;
         }
 
-        this.amount = ColorUtilities.clip(amount);
-        this.amountComplement = 1 - this.amount;
-
         return this;
     }
 
+    public float getAmount() {
+        return tables.get().amount;
+    }
+
     /**
      * Indicate to the generator that the amount may change. This enables it to
      * improve performance considerably.
@@ -95,31 +873,150 @@ public abstract class ColorTransformGenerator extends Generator {
      * @return
      */
     public ColorTransformGenerator setDynamicAmount() {
-        // only null out the colorMap if it had been calculated with an
-        // amount less than 1.
-        if (dynamicAmount == false && colorMap != null && amount < 1)
-            colorMap = null;
+        tables.update(s -> {
+            State n = s.next();
+            // only null out the colorMap if it had been calculated with an
+            // amount less than 1.
+            if (n.dynamicAmount == false && n.amount < 1) {
+                n.discardColorMap().discardLattice();
+            }
+            n.dynamicAmount = true;
 
-        dynamicAmount = true;
+            return n;
+        });
 
         return this;
     }
 
+    public boolean isDynamicAmount() {
+        return tables.get().dynamicAmount;
+    }
+
     /**
-     * Check to see if the lookup table exists. If not, call the function to
-     * compute it.
+     * Simulate or daltonize an anomalous trichromacy, such as protanomaly
+     * instead of protanopia, with a severity between no deficiency and the
+     * full dichromacy. This uses the severity matrices in ColorUtilities
+     * instead of the dichromacy matrices.
+     * 
+     * Unlike the amount, which blends the transformed colors with the
+     * original colors, the severity changes the transformation itself.
+     * 
+     * No 64 MB lookup table is computed, so the severity can be changed
+     * every frame or from any thread. The LOOKUP_TABLE and ANALYTIC engines
+     * interpolate the severity matrices and do the math for each pixel, which
+     * is exact.
+     * 
+     * With the LATTICE engine, a lattice is computed for each of
+     * SEVERITY_STEPS severities the first time this is used. After that,
+     * changing the severity only interpolates a new lattice between the two
+     * nearest ones, which takes less than a millisecond. This adds to the
+     * error of the lattice. Use measureLatticeAccuracy() to see how accurate
+     * it is for a severity.
+     * 
+     * @param severity
+     *                 : in range [0, 1]
+     * @return
      */
-    private void verifyLookupTables() {
-        if (colorMap == null) {
-            System.out.println("Pre-computing lookup table...");
-            // Important: if dynamicAmount is true, then compute colorMap with
-            // amount 1 and do an interpolation later. If dynamicAmount is
-            // false, calculate colorMap with the fixed amount.
-            if (dynamicAmount) {
-                colorMap = computeColorMapLookup(1);
-            } else {
-                colorMap = computeColorMapLookup(amount);
-            }
+    public ColorTransformGenerator setSeverity(float severity) {
+        if (severityTransform(1) == null) {
+            throw new RuntimeException("Severity is not defined for "
+                    + deficiency);
+        }
+
+        float clipped = ColorUtilities.clip(severity);
+
+        tables.update(s -> {
+            State n = s.next();
+            n.severityEnabled = true;
+            n.severity = clipped;
+            // keep the severity lattices, but interpolate them again.
+            n.severityLattice = null;
+            n.severityKernel = null;
+            // release the memory used by the full lookup table.
+            return n.discardColorMap();
+        });
+
+        return this;
+    }
+
+    /**
+     * @return severity set with setSeverity(), or 1 for a dichromacy.
+     */
+    public float getSeverity() {
+        State s = tables.get();
+
+        return s.severityEnabled ? s.severity : 1;
+    }
+
+    public boolean isSeverityEnabled() {
+        return tables.get().severityEnabled;
+    }
+
+    /**
+     * Go back to simulating or daltonizing the dichromacy with the
+     * dichromacy matrices.
+     * 
+     * @return
+     */
+    public ColorTransformGenerator clearSeverity() {
+        tables.update(s -> {
+            State n = s.next();
+            n.severityEnabled = false;
+            n.severity = 1;
+
+            return n.discardColorMap().discardLattice();
+        });
+
+        return this;
+    }
+
+    /**
+     * Fingerprint of everything used to compute the colorMap lookup table for
+     * this amount. This is used as the key for the ColorMapRegistry and the
+     * ColorMapCache.
+     * 
+     * The default returns null, which means the lookup table can't be shared
+     * or cached.
+     * Subclasses that can describe all of their inputs should override this.
+     * 
+     * @param amount
+     *               number in range [0, 1]
+     * @return fingerprint or null
+     */
+    protected String colorMapFingerprint(float amount) {
+        return null;
+    }
+
+    /**
+     * Version of anything other than this generator's settings that its
+     * tables are computed from, such as the stages of a ComposedGenerator.
+     * When this changes, the tables are computed again.
+     * 
+     * The default returns 0 because the tables only depend on the settings.
+     * 
+     * @return number that changes whenever the inputs change
+     */
+    protected long inputVersion() {
+        return 0;
+    }
+
+    /**
+     * Gives the tables access to this generator's hooks.
+     */
+    private class TableSource implements GeneratorTables.Source {
+        @Override
+        public ColorMapRecipe colorMapRecipe(State s, float amount) {
+            return ColorTransformGenerator.this.colorMapRecipe(s, amount);
+        }
+
+        @Override
+        public ColorMapKernel severityKernel(float severity, float amount) {
+            return linearKernel(severityTransform(severity), amount);
+        }
+
+        @Override
+        public long inputVersion() {
+            return ColorTransformGenerator.this.inputVersion();
         }
     }
 
@@ -135,34 +1032,28 @@ public abstract class ColorTransformGenerator extends Generator {
      * @return transformed color using colorMap.
      */
     public int transformColor(int color) {
-        verifyLookupTables();
-
-        if (dynamicAmount) {
-            if (amount == 0) {
-                return color;
-            } else if (amount == 1) {
-                return (color & 0xFF000000)
-                        | (colorMap[color & 0x00FFFFFF] & 0x00FFFFFF);
-            } else { // 0 < amount < 1
-                int map = colorMap[color & 0x00FFFFFF];
-
-                int r = (color & 0x00FF0000) >> 16;
-                int g = (color & 0x0000FF00) >> 8;
-                int b = (color & 0x000000FF);
-
-                int r2 = (map & 0x00FF0000) >> 16;
-                int g2 = (map & 0x0000FF00) >> 8;
-                int b2 = (map & 0x000000FF);
-
-                int fr = (int) (r * amountComplement + r2 * amount);
-                int fg = (int) (g * amountComplement + g2 * amount);
-                int fb = (int) (b * amountComplement + b2 * amount);
-
-                return (color & 0xFF000000) | (fr << 16) | (fg << 8) | fb;
-            }
+        State s = tables.verifyTables(asyncLookupTable);
+
+        if (s.unchanged()) {
+            return color;
+        }
+
+        ColorMapKernel mapper = s.kernel();
+        int map;
+        if (mapper == null) {
+            map = s.colorMap[color & 0x00FFFFFF];
         } else {
-            return (color & 0xFF000000)
-                    | (colorMap[color & 0x00FFFFFF] & 0x00FFFFFF);
+            int[] scratch = SCRATCH.get();
+            scratch[0] = color;
+            mapper.compute(scratch, 0, scratch, 0, 1);
+            map = scratch[0];
+        }
+
+        if (s.blend()) {
+            return blendKernel.blend(color, map, s.amount, s.amountComplement,
+                    0);
+        } else {
+            return (color & 0xFF000000) | (map & 0x00FFFFFF);
         }
     }
 
@@ -180,46 +1071,54 @@ public abstract class ColorTransformGenerator extends Generator {
      *               Processing pixel array.
      */
     public void transformPixels(int[] pixels) {
-        verifyLookupTables();
-
-        if (dynamicAmount) {
-            if (amount == 0) {
-                // do nothing. return pixels unchanged.
-            } else if (amount == 1) {
-                // since we know colorMap was calculated with amount == 1, we
-                // can just do the lookup.
-                for (int i = 0; i < pixels.length; ++i) {
-                    pixels[i] = colorMap[pixels[i] & 0x00FFFFFF];
-                }
-            } else { // 0 < amount < 1
-                for (int i = 0; i < pixels.length; ++i) {
-                    // inline transformColor for better performance
-                    // repeated function calls would be too slow.
-                    // pixels[i] = transformColor(pixels[i]);
-
-                    int color = pixels[i];
-                    int map = colorMap[color & 0x00FFFFFF];
+        transformRange(frameState(), pixels, 0, pixels, 0, pixels.length,
+                false);
+    }
 
-                    int r = (color & 0x00FF0000) >> 16;
-                    int g = (color & 0x0000FF00) >> 8;
-                    int b = (color & 0x000000FF);
+    /**
+     * Transform every pixel in src and write the results to dst, without
+     * altering src.
+     * 
+     * Like transformPixels(pixels), the transformed colors will have 0xFF as
+     * the alpha channel.
+     * 
+     * @param src
+     * @param dst
+     *            array the same size as src
+     */
+    public void transformPixels(int[] src, int[] dst) {
+        transformRange(frameState(), src, 0, dst, 0, src.length, false);
+    }
 
-                    int r2 = (map & 0x00FF0000) >> 16;
-                    int g2 = (map & 0x0000FF00) >> 8;
-                    int b2 = (map & 0x000000FF);
+    /**
+     * Transform part of src and write the results to dst, without altering
+     * src.
+     * 
+     * Like transformPixels(pixels), the transformed colors will have 0xFF as
+     * the alpha channel.
+     * 
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     */
+    @Override
+    public void transformPixels(int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length) {
+        transformRange(src, srcOffset, dst, dstOffset, length, false);
+    }
 
-                    int fr = (int) (r * amountComplement + r2 * amount);
-                    int fg = (int) (g * amountComplement + g2 * amount);
-                    int fb = (int) (b * amountComplement + b2 * amount);
+    @Override
+    public boolean isPerPixel() {
+        return true;
+    }
 
-                    pixels[i] = 0xFF000000 | (fr << 16) | (fg << 8) | fb;
-                }
-            }
-        } else {
-            for (int i = 0; i < pixels.length; ++i) {
-                pixels[i] = colorMap[pixels[i] & 0x00FFFFFF];
-            }
-        }
+    @Override
+    public long getSettingsVersion() {
+        // with the ANALYTIC engine, a change to the matrices in
+        // ColorUtilities starts a new version.
+        return tables.verifyMatrices().version + inputVersion();
     }
 
     /**
@@ -239,62 +1138,377 @@ public abstract class ColorTransformGenerator extends Generator {
      * @return
      */
     public PImage transformPImage(PImage img) {
-        verifyLookupTables();
-
         // use get so this works in P2 and P3
         PImage copy = img.get(0, 0, img.width, img.height);
         copy.loadPixels();
 
-        if (dynamicAmount) {
-            if (amount == 0) {
-                // do nothing. return pixels unchanged.
-            } else if (amount == 1) {
-                // since we know colorMap was calculated with amount == 1, we
-                // can just do the lookup.
-                for (int i = 0; i < copy.pixels.length; ++i) {
-                    copy.pixels[i] = (copy.pixels[i] & 0xFF000000)
-                            | (colorMap[copy.pixels[i] & 0x00FFFFFF] & 0x00FFFFFF);
-                }
-            } else { // 0 < amount < 1
-                for (int i = 0; i < copy.pixels.length; ++i) {
-                    // inline transformColor for better performance
-                    // repeated function calls would be too slow.
-                    // pixels[i] = transformColor(pixels[i]);
+        transformRange(frameState(), copy.pixels, 0, copy.pixels, 0,
+                copy.pixels.length, true);
 
-                    int color = copy.pixels[i];
-                    int map = colorMap[color & 0x00FFFFFF];
+        copy.updatePixels();
 
-                    int r = (color & 0x00FF0000) >> 16;
-                    int g = (color & 0x0000FF00) >> 8;
-                    int b = (color & 0x000000FF);
+        return copy;
+    }
 
-                    int r2 = (map & 0x00FF0000) >> 16;
-                    int g2 = (map & 0x0000FF00) >> 8;
-                    int b2 = (map & 0x000000FF);
+    /**
+     * Transform a rectangle of pixels in src and write the results to a
+     * rectangle in dst. This works on any int[] of packed ARGB pixels, such
+     * as a BufferedImage raster, without copying it first.
+     * 
+     * Each rectangle starts at its offset, and each row of the rectangle
+     * starts stride pixels after the previous row. The source and destination
+     * can be the same array if the offsets and strides are identical.
+     * 
+     * @param src
+     * @param srcOffset
+     *                      index of the top left source pixel
+     * @param srcStride
+     *                      distance between rows in src, at least width
+     * @param dst
+     * @param dstOffset
+     *                      index of the top left destination pixel
+     * @param dstStride
+     *                      distance between rows in dst, at least width
+     * @param width
+     * @param height
+     * @param preserveAlpha
+     *                      if true, keep the alpha channel of each source
+     *                      pixel like transformPImage() does. Otherwise the
+     *                      alpha channel will be 0xFF.
+     */
+    public void transformRegion(int[] src, int srcOffset, int srcStride,
+            int[] dst, int dstOffset, int dstStride, int width, int height,
+            boolean preserveAlpha) {
+        checkRegion(src, srcOffset, srcStride, width, height);
+        checkRegion(dst, dstOffset, dstStride, width, height);
+        if (src == dst && (srcOffset != dstOffset || srcStride != dstStride)) {
+            throw new RuntimeException(
+                    "Source and destination regions in the same array must be identical");
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
 
-                    int fr = (int) (r * amountComplement + r2 * amount);
-                    int fg = (int) (g * amountComplement + g2 * amount);
-                    int fb = (int) (b * amountComplement + b2 * amount);
+        State s = frameState();
+        if (srcStride == width && dstStride == width) {
+            // the rows are contiguous.
+            transformRange(s, src, srcOffset, dst, dstOffset, width * height,
+                    preserveAlpha);
+            return;
+        }
 
-                    copy.pixels[i] = (color & 0xFF000000) | (fr << 16)
-                            | (fg << 8) | fb;
-                }
+        PixelWorkerPool pool = workerPool;
+        int chunkSize = minimumChunkSize;
+        if (pool == null || (long) width * height < 2 * chunkSize) {
+            for (int row = 0; row < height; ++row) {
+                transformStripe(s, src, srcOffset + row * srcStride, dst,
+                        dstOffset + row * dstStride, width, preserveAlpha);
             }
         } else {
-            for (int i = 0; i < copy.pixels.length; ++i) {
-                copy.pixels[i] = (copy.pixels[i] & 0xFF000000)
-                        | (colorMap[copy.pixels[i] & 0x00FFFFFF] & 0x00FFFFFF);
+            RegionTask regionTask = regionTasks.get();
+            regionTask.set(s, src, srcOffset, srcStride, dst, dstOffset,
+                    dstStride, width, preserveAlpha);
+            try {
+                pool.run(regionTask, height, Math.max(1, chunkSize / width));
+            } finally {
+                regionTask.clear();
             }
         }
-        copy.updatePixels();
+    }
 
-        return copy;
+    /**
+     * Transform a rectangle of pixels in place.
+     * 
+     * @param pixels
+     * @param offset
+     *                      index of the top left pixel
+     * @param stride
+     *                      distance between rows, at least width
+     * @param width
+     * @param height
+     * @param preserveAlpha
+     *                      if true, keep the alpha channel of each pixel
+     */
+    public void transformRegion(int[] pixels, int offset, int stride,
+            int width, int height, boolean preserveAlpha) {
+        transformRegion(pixels, offset, stride, pixels, offset, stride, width,
+                height, preserveAlpha);
+    }
+
+    private static void checkRegion(int[] pixels, int offset, int stride,
+            int width, int height) {
+        if (offset < 0 || width < 0 || height < 0 || stride < width
+                || (height > 0 && offset + (long) (height - 1) * stride
+                        + width > pixels.length)) {
+            throw new RuntimeException("Region of " + width + "x" + height
+                    + " pixels at offset " + offset + " with stride " + stride
+                    + " does not fit in an array of " + pixels.length
+                    + " pixels");
+        }
+    }
+
+    /**
+     * Transform a range of pixels using the current engine. If parallelism
+     * is set, the range is split into stripes that are transformed in
+     * parallel.
+     * 
+     * The source and destination can be the same array, but if they are, the
+     * ranges must be identical or must not overlap.
+     * 
+     * @param src
+     *                      source pixels
+     * @param srcOffset
+     *                      index of the first source pixel
+     * @param dst
+     *                      destination for the transformed pixels
+     * @param dstOffset
+     *                      index of the first destination pixel
+     * @param length
+     *                      number of pixels to transform
+     * @param preserveAlpha
+     *                      if true, keep the alpha channel of each source
+     *                      pixel. Otherwise the alpha channel will be 0xFF.
+     */
+    protected void transformRange(int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length, boolean preserveAlpha) {
+        transformRange(tables.verifyTables(asyncLookupTable), src, srcOffset,
+                dst, dstOffset, length, preserveAlpha);
+    }
+
+    /**
+     * The state to transform a whole frame or image with. The frame is
+     * counted if it uses the fallback kernel.
+     */
+    private State frameState() {
+        State s = tables.verifyTables(asyncLookupTable);
+
+        boolean fallback = s.usesFallback();
+        lastFrameUsedFallback.set(fallback);
+        if (fallback) {
+            fallbackCount.increment();
+        }
+
+        return s;
+    }
+
+    private void transformRange(State s, int[] src, int srcOffset,
+            int[] dst, int dstOffset, int length, boolean preserveAlpha) {
+        if (s.unchanged() && src == dst && srcOffset == dstOffset) {
+            // do nothing. return pixels unchanged.
+            return;
+        }
+
+        PixelWorkerPool pool = workerPool;
+        int chunkSize = minimumChunkSize;
+        if (pool == null || length < 2 * chunkSize) {
+            transformStripe(s, src, srcOffset, dst, dstOffset, length,
+                    preserveAlpha);
+        } else {
+            StripeTask stripeTask = stripeTasks.get();
+            stripeTask.set(s, src, srcOffset, dst, dstOffset, preserveAlpha);
+            try {
+                pool.run(stripeTask, length, chunkSize);
+            } finally {
+                stripeTask.clear();
+            }
+        }
+    }
+
+    /**
+     * Transform one stripe of pixels. This may be called from several threads
+     * at the same time.
+     */
+    private void transformStripe(State s, int[] src, int srcOffset,
+            int[] dst, int dstOffset, int length, boolean preserveAlpha) {
+        if (s.unchanged()) {
+            // copy the pixels unchanged.
+            System.arraycopy(src, srcOffset, dst, dstOffset, length);
+            return;
+        }
+
+        // looking colors up in the table without blending is already about as
+        // fast as the cache, so AUTO only uses the cache when there is more
+        // work per color.
+        ColorMapKernel mapper = s.kernel();
+        PaletteMode paletteMode = this.paletteMode;
+        boolean lookupOnly = mapper == null && !s.blend();
+        if (paletteMode == PaletteMode.NEVER
+                || (paletteMode == PaletteMode.AUTO && lookupOnly)) {
+            transformColors(s, mapper, src, srcOffset, dst, dstOffset, length,
+                    preserveAlpha);
+            return;
+        }
+
+        // the cached colors depend on the kernel or table, the settings, and
+        // the alpha channel handling.
+        ColorCache cache = colorCaches.get();
+        cache.validate(mapper != null ? mapper : s.colorMap, 2 * s.version
+                + (preserveAlpha ? 1 : 0));
+
+        long misses = 0;
+        int i = 0;
+        while (i < length) {
+            int count = Math.min(ColorCache.CHUNK_SIZE, length - i);
+            int missCount = cache.lookup(src, srcOffset + i, dst, dstOffset
+                    + i, count);
+            if (missCount > 0) {
+                transformColors(s, mapper, cache.getMissColors(), 0,
+                        cache.getMissResults(), 0, missCount, preserveAlpha);
+                cache.store(dst, dstOffset + i);
+            }
+            misses += missCount;
+            i += count;
+
+            if (paletteMode == PaletteMode.AUTO
+                    && missCount > PALETTE_MAX_MISSES) {
+                // too many colors for the cache to help.
+                break;
+            }
+        }
+        paletteHits.add(i - misses);
+        paletteMisses.add(misses);
+
+        if (i < length) {
+            transformColors(s, mapper, src, srcOffset + i, dst, dstOffset
+                    + i, length - i, preserveAlpha);
+        }
+    }
+
+    /**
+     * Transform pixels without the color cache.
+     */
+    private void transformColors(State s, ColorMapKernel mapper, int[] src,
+            int srcOffset, int[] dst, int dstOffset, int length,
+            boolean preserveAlpha) {
+        // when preserveAlpha is false, or-ing this into each color makes the
+        // alpha channel 0xFF.
+        int forceAlpha = preserveAlpha ? 0 : 0xFF000000;
+        boolean blend = s.blend();
+        BlendKernel blendKernel = this.blendKernel;
+
+        if (mapper != null) {
+            // the lattice, the analytic kernel, or the fallback while the
+            // colorMap is being computed.
+            if (!blend && !preserveAlpha) {
+                mapper.compute(src, srcOffset, dst, dstOffset, length);
+                return;
+            }
+
+            // the source pixels are needed after the lookup, so look up the
+            // colors in chunks using a small intermediate buffer.
+            int[] scratch = SCRATCH.get();
+            for (int i = 0; i < length; i += SCRATCH_SIZE) {
+                int count = Math.min(SCRATCH_SIZE, length - i);
+                mapper.compute(src, srcOffset + i, scratch, 0, count);
+                if (blend) {
+                    blendKernel.blend(src, srcOffset + i, scratch, 0, dst,
+                            dstOffset + i, count, s.amount,
+                            s.amountComplement, forceAlpha);
+                } else {
+                    for (int j = 0; j < count; ++j) {
+                        dst[dstOffset + i + j] = ((src[srcOffset + i + j] | forceAlpha) & 0xFF000000)
+                                | (scratch[j] & 0x00FFFFFF);
+                    }
+                }
+            }
+        } else if (blend) { // 0 < amount < 1
+            blendKernel.lookupBlend(s.colorMap, src, srcOffset, dst,
+                    dstOffset, length, s.amount, s.amountComplement,
+                    forceAlpha);
+        } else {
+            // either amount == 1 and we know colorMap was calculated with
+            // amount == 1, or the amount is not dynamic and colorMap was
+            // calculated with the fixed amount. we can just do the lookup.
+            blendKernel.lookup(s.colorMap, src, srcOffset, dst, dstOffset,
+                    length, forceAlpha);
+        }
+    }
+
+    /**
+     * Transforms one stripe of pixels for the worker pool. Each thread reuses
+     * one instance for every frame so nothing is allocated.
+     */
+    private class StripeTask implements PixelWorkerPool.Task {
+
+        private State state;
+        private int[] src;
+        private int srcOffset;
+        private int[] dst;
+        private int dstOffset;
+        private boolean preserveAlpha;
+
+        void set(State state, int[] src, int srcOffset, int[] dst,
+                int dstOffset, boolean preserveAlpha) {
+            this.state = state;
+            this.src = src;
+            this.srcOffset = srcOffset;
+            this.dst = dst;
+            this.dstOffset = dstOffset;
+            this.preserveAlpha = preserveAlpha;
+        }
+
+        void clear() {
+            state = null;
+            src = null;
+            dst = null;
+        }
+
+        @Override
+        public void run(int from, int to) {
+            transformStripe(state, src, srcOffset + from, dst, dstOffset
+                    + from, to - from, preserveAlpha);
+        }
+    }
+
+    /**
+     * Transforms groups of rows of a region for the worker pool. Each thread
+     * reuses one instance so nothing is allocated.
+     */
+    private class RegionTask implements PixelWorkerPool.Task {
+
+        private State state;
+        private int[] src;
+        private int srcOffset;
+        private int srcStride;
+        private int[] dst;
+        private int dstOffset;
+        private int dstStride;
+        private int width;
+        private boolean preserveAlpha;
+
+        void set(State state, int[] src, int srcOffset, int srcStride,
+                int[] dst, int dstOffset, int dstStride, int width,
+                boolean preserveAlpha) {
+            this.state = state;
+            this.src = src;
+            this.srcOffset = srcOffset;
+            this.srcStride = srcStride;
+            this.dst = dst;
+            this.dstOffset = dstOffset;
+            this.dstStride = dstStride;
+            this.width = width;
+            this.preserveAlpha = preserveAlpha;
+        }
+
+        void clear() {
+            state = null;
+            src = null;
+            dst = null;
+        }
+
+        @Override
+        public void run(int fromRow, int toRow) {
+            for (int row = fromRow; row < toRow; ++row) {
+                transformStripe(state, src, srcOffset + row * srcStride, dst,
+                        dstOffset + row * dstStride, width, preserveAlpha);
+            }
+        }
     }
 
     /*
      * Functions for pre-calculating gamma look-up-tables
      */
-    private int[] preComputeApplyGammaCorrectionStandardrgbLUT(
+    private static int[] preComputeApplyGammaCorrectionStandardrgbLUT(
             int maxEncodedValue) {
         int[] gammaCorrectionLUT = new int[maxEncodedValue];
         for (int s = 0; s < maxEncodedValue; ++s) {
@@ -305,7 +1519,7 @@ public abstract class ColorTransformGenerator extends Generator {
         return gammaCorrectionLUT;
     }
 
-    private float[] preComputeRemoveGammaCorrectionStandardrgbLUT() {
+    private static float[] preComputeRemoveGammaCorrectionStandardrgbLUT() {
         float[] removeGammaCorrectionLUT = new float[256];
 
         for (int c = 0; c < removeGammaCorrectionLUT.length; ++c) {
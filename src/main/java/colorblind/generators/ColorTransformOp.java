@@ -0,0 +1,196 @@
+package colorblind.generators;
+
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RasterOp;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Apply a ColorTransformGenerator to BufferedImages and Rasters without
+ * Processing.
+ *
+ * TYPE_INT_ARGB and TYPE_INT_RGB images are transformed directly in their
+ * pixel arrays without copying them. Other image types are converted to ARGB
+ * one row at a time. Like transformPImage(), the alpha channel of images that
+ * have one is kept.
+ *
+ * The source and destination can be the same image.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ColorTransformOp implements BufferedImageOp, RasterOp {
+
+    private final ColorTransformGenerator generator;
+
+    public ColorTransformOp(ColorTransformGenerator generator) {
+        this.generator = generator;
+    }
+
+    public ColorTransformGenerator getGenerator() {
+        return generator;
+    }
+
+    @Override
+    public BufferedImage filter(BufferedImage src, BufferedImage dst) {
+        if (dst == null) {
+            dst = createCompatibleDestImage(src, null);
+        } else if (dst.getWidth() != src.getWidth()
+                || dst.getHeight() != src.getHeight()) {
+            throw new IllegalArgumentException(
+                    "Source and destination images must be the same size");
+        }
+
+        if (isPackedInt(src) && isPackedInt(dst)) {
+            transformRaster(src.getRaster(), dst.getRaster(), src
+                    .getColorModel().hasAlpha());
+        } else {
+            // convert to and from ARGB one row at a time.
+            int width = src.getWidth();
+            int[] row = new int[width];
+            for (int y = 0; y < src.getHeight(); ++y) {
+                src.getRGB(0, y, width, 1, row, 0, width);
+                generator.transformRegion(row, 0, width, width, 1, true);
+                dst.setRGB(0, y, width, 1, row, 0, width);
+            }
+        }
+
+        return dst;
+    }
+
+    @Override
+    public WritableRaster filter(Raster src, WritableRaster dst) {
+        if (dst == null) {
+            dst = createCompatibleDestRaster(src);
+        } else if (dst.getWidth() != src.getWidth()
+                || dst.getHeight() != src.getHeight()) {
+            throw new IllegalArgumentException(
+                    "Source and destination rasters must be the same size");
+        }
+
+        if (!isPackedInt(src) || !isPackedInt(dst)) {
+            throw new IllegalArgumentException(
+                    "Only rasters of packed int RGB or ARGB pixels are supported");
+        }
+
+        transformRaster(src, dst, src.getNumBands() == 4);
+
+        return dst;
+    }
+
+    private void transformRaster(Raster src, WritableRaster dst,
+            boolean preserveAlpha) {
+        generator.transformRegion(data(src), offset(src), stride(src),
+                data(dst), offset(dst), stride(dst), src.getWidth(), src
+                        .getHeight(), preserveAlpha);
+    }
+
+    private static boolean isPackedInt(BufferedImage img) {
+        int type = img.getType();
+
+        return (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && isPackedInt(img.getRaster());
+    }
+
+    /**
+     * Check that each pixel is one int with the same layout as an ARGB or RGB
+     * BufferedImage.
+     */
+    private static boolean isPackedInt(Raster raster) {
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return false;
+        }
+
+        int[] masks = ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                .getBitMasks();
+        if (masks.length == 3) {
+            return masks[0] == 0x00FF0000 && masks[1] == 0x0000FF00
+                    && masks[2] == 0x000000FF;
+        } else if (masks.length == 4) {
+            return masks[0] == 0x00FF0000 && masks[1] == 0x0000FF00
+                    && masks[2] == 0x000000FF && masks[3] == 0xFF000000;
+        }
+
+        return false;
+    }
+
+    /**
+     * The raster's pixel array. Getting the array stops Java2D from caching
+     * the image in video memory, so changes to it are always seen.
+     */
+    private static int[] data(Raster raster) {
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+
+    private static int stride(Raster raster) {
+        return ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                .getScanlineStride();
+    }
+
+    /**
+     * Index of the raster's top left pixel in its data array. A raster can be
+     * a part of a bigger raster that shares the same array.
+     */
+    private static int offset(Raster raster) {
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster
+                .getSampleModel();
+
+        return raster.getDataBuffer().getOffset()
+                + sampleModel.getOffset(raster.getMinX()
+                        - raster.getSampleModelTranslateX(), raster.getMinY()
+                        - raster.getSampleModelTranslateY());
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(BufferedImage src) {
+        return src.getRaster().getBounds();
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(Raster src) {
+        return src.getBounds();
+    }
+
+    @Override
+    public BufferedImage createCompatibleDestImage(BufferedImage src,
+            ColorModel destCM) {
+        if (destCM != null) {
+            return new BufferedImage(destCM, destCM
+                    .createCompatibleWritableRaster(src.getWidth(), src
+                            .getHeight()), destCM.isAlphaPremultiplied(), null);
+        }
+
+        int type = src.getType() == BufferedImage.TYPE_INT_RGB ? BufferedImage.TYPE_INT_RGB
+                : BufferedImage.TYPE_INT_ARGB;
+
+        return new BufferedImage(src.getWidth(), src.getHeight(), type);
+    }
+
+    @Override
+    public WritableRaster createCompatibleDestRaster(Raster src) {
+        return src.createCompatibleWritableRaster();
+    }
+
+    @Override
+    public Point2D getPoint2D(Point2D srcPt, Point2D dstPt) {
+        if (dstPt == null) {
+            dstPt = new Point2D.Float();
+        }
+        dstPt.setLocation(srcPt);
+
+        return dstPt;
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return null;
+    }
+}
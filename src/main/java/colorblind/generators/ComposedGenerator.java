@@ -0,0 +1,307 @@
+package colorblind.generators;
+
+import java.util.function.Supplier;
+
+import colorblind.generators.util.ColorMapCache;
+import colorblind.generators.util.ColorMapKernel;
+import colorblind.generators.util.Matrix;
+
+/**
+ * Applies a chain of generators as if each one transformed the output of the
+ * previous one, such as daltonizing and then simulating.
+ *
+ * The chain is compiled into one colorMap lookup table, so transforming a
+ * frame costs one lookup per pixel and the chain uses 64 MB of RAM instead
+ * of 64 MB for each generator. Like any other generator, the table is built
+ * in parallel, can be shared through the ColorMapRegistry, and can be saved
+ * in the ColorMapCache.
+ *
+ * The stages are not used to transform pixels themselves, so their engines
+ * don't matter. Their amounts and severities do, and changing a stage's
+ * settings makes this compute its table again. For a stage with a dynamic
+ * amount, its current amount is used as if it were fixed. A stage that can
+ * only compute a full lookup table is looked up in its own table, which is
+ * shared through the ColorMapRegistry.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ComposedGenerator extends ColorTransformGenerator {
+
+    // colors are transformed in chunks of this size so the original colors
+    // can be kept for blending.
+    private static final int CHUNK_SIZE = 4096;
+
+    private final ColorTransformGenerator[] stages;
+    // one buffer per generator, because a stage can be another
+    // ComposedGenerator using its own buffer at the same time.
+    private final ThreadLocal<int[]> originals = ThreadLocal
+            .withInitial(() -> new int[CHUNK_SIZE]);
+    private volatile boolean fusedMatrix;
+    private volatile long fusedMatrixChanges;
+
+    /**
+     * Constructor.
+     *
+     * @param stages
+     *               generators in the order they are applied
+     */
+    public ComposedGenerator(ColorTransformGenerator... stages) {
+        super(null);
+
+        if (stages.length == 0) {
+            throw new RuntimeException(
+                    "A composed generator needs at least one stage");
+        }
+        for (ColorTransformGenerator stage : stages) {
+            if (stage == null) {
+                throw new RuntimeException("Stages can't be null");
+            }
+        }
+        this.stages = stages.clone();
+    }
+
+    /**
+     * @return copy of the stages, in the order they are applied.
+     */
+    public ColorTransformGenerator[] getStages() {
+        return stages.clone();
+    }
+
+    /**
+     * Multiply the stages' linear RGB matrices together and apply them as one
+     * matrix, when every stage is a single matrix with an amount of 1. This
+     * is off by default.
+     * 
+     * This makes the ANALYTIC engine, and the fallback used while the table
+     * is being computed, as fast as a single generator. It is an
+     * approximation because colors are no longer clipped and rounded between
+     * stages. Daltonized colors are often clipped, so some saturated colors
+     * can be quite different.
+     * 
+     * @param fused
+     * @return
+     */
+    public ComposedGenerator setFusedMatrix(boolean fused) {
+        this.fusedMatrix = fused;
+        // the table has to be computed again.
+        fusedMatrixChanges++;
+
+        return this;
+    }
+
+    public boolean isFusedMatrix() {
+        return fusedMatrix;
+    }
+
+    /**
+     * @return true if setFusedMatrix(true) was called and every stage can be
+     *         fused.
+     */
+    public boolean isUsingFusedMatrix() {
+        return linearTransform() != null;
+    }
+
+    @Override
+    protected long inputVersion() {
+        // each version only increases, so the sum changes whenever any of
+        // them do.
+        long version = fusedMatrixChanges;
+        for (ColorTransformGenerator stage : stages) {
+            version += stage.getSettingsVersion();
+        }
+
+        return version;
+    }
+
+    @Override
+    protected Matrix linearTransform() {
+        return fuse(stageRecipes());
+    }
+
+    /**
+     * Read each stage's settings.
+     */
+    private ColorMapRecipe[] stageRecipes() {
+        ColorMapRecipe[] recipes = new ColorMapRecipe[stages.length];
+        for (int i = 0; i < stages.length; ++i) {
+            recipes[i] = stages[i].getColorMapRecipe();
+        }
+
+        return recipes;
+    }
+
+    /**
+     * @return the stages' matrices multiplied together, or null if they
+     *         can't be fused.
+     */
+    private Matrix fuse(ColorMapRecipe[] recipes) {
+        if (!fusedMatrix) {
+            return null;
+        }
+
+        Matrix transform = Matrix.identity();
+        for (ColorMapRecipe recipe : recipes) {
+            Matrix m = recipe.linearTransform;
+            if (m == null || recipe.amount != 1) {
+                return null;
+            }
+            transform = m.mult(transform);
+        }
+
+        return transform;
+    }
+
+    @Override
+    protected ColorMapRecipe createColorMapRecipe(float amount) {
+        // read each stage's settings once, so the kernel, the fingerprint
+        // and the table all come from the same amounts and severities.
+        ColorMapRecipe[] recipes = stageRecipes();
+        Matrix fused = fuse(recipes);
+
+        ColorMapKernel kernel;
+        if (fused != null) {
+            kernel = linearKernel(fused, amount);
+        } else {
+            kernel = chain(stageKernels(recipes, false), amount);
+        }
+
+        Supplier<int[]> lookup;
+        if (kernel != null) {
+            lookup = () -> buildColorMap(kernel);
+        } else {
+            lookup = () -> buildColorMap(chain(stageKernels(recipes, true),
+                    amount));
+        }
+
+        return new ColorMapRecipe(amount, kernel, fingerprint(recipes, fused,
+                amount), fused, lookup);
+    }
+
+    @Override
+    protected int[] computeColorMapLookup(float amount) {
+        return createColorMapRecipe(amount).computeTable();
+    }
+
+    @Override
+    protected ColorMapKernel createColorMapKernel(float amount) {
+        return createColorMapRecipe(amount).kernel;
+    }
+
+    @Override
+    protected String colorMapFingerprint(float amount) {
+        return createColorMapRecipe(amount).fingerprint;
+    }
+
+    /**
+     * Kernel for each stage.
+     *
+     * @param useTables
+     *                  if true, look colors up in the table of a stage that
+     *                  can only compute a full table. Otherwise return null
+     *                  for that stage.
+     * @return kernels, or null if a stage has no kernel and useTables is
+     *         false.
+     */
+    private static ColorMapKernel[] stageKernels(ColorMapRecipe[] recipes,
+            boolean useTables) {
+        ColorMapKernel[] kernels = new ColorMapKernel[recipes.length];
+        for (int i = 0; i < recipes.length; ++i) {
+            kernels[i] = recipes[i].kernel;
+            if (kernels[i] == null) {
+                if (!useTables) {
+                    return null;
+                }
+
+                // the stage's own table, shared through the ColorMapRegistry.
+                int[] table = recipes[i].getTable();
+                kernels[i] = (colors, colorsOffset, out, outOffset, length) -> {
+                    for (int j = 0; j < length; ++j) {
+                        out[outOffset + j] = table[colors[colorsOffset + j] & 0x00FFFFFF];
+                    }
+                };
+            }
+        }
+
+        return kernels;
+    }
+
+    /**
+     * Kernel that applies each kernel to the output of the previous one and
+     * then blends the result with the original color.
+     */
+    private ColorMapKernel chain(ColorMapKernel[] kernels, float amount) {
+        if (kernels == null) {
+            return null;
+        }
+
+        return (colors, colorsOffset, out, outOffset, length) -> {
+            int[] original = originals.get();
+
+            for (int i = 0; i < length; i += CHUNK_SIZE) {
+                int count = Math.min(CHUNK_SIZE, length - i);
+                if (amount < 1) {
+                    // out can be the same array as colors.
+                    System.arraycopy(colors, colorsOffset + i, original, 0,
+                            count);
+                }
+
+                kernels[0].compute(colors, colorsOffset + i, out, outOffset
+                        + i, count);
+                for (int k = 1; k < kernels.length; ++k) {
+                    kernels[k].compute(out, outOffset + i, out, outOffset + i,
+                            count);
+                }
+
+                if (amount < 1) {
+                    blend(original, out, outOffset + i, count, amount);
+                }
+            }
+        };
+    }
+
+    /**
+     * Blend the transformed colors with the originals the same way the other
+     * generators' kernels do.
+     */
+    private static void blend(int[] original, int[] out, int outOffset,
+            int length, float amount) {
+        for (int i = 0; i < length; ++i) {
+            int color = original[i];
+            int startRed = (color & 0x00FF0000) >> 16;
+            int startGreen = (color & 0x0000FF00) >> 8;
+            int startBlue = (color & 0x000000FF);
+
+            int mapped = out[outOffset + i];
+            int mappedRed = (mapped & 0x00FF0000) >> 16;
+            int mappedGreen = (mapped & 0x0000FF00) >> 8;
+            int mappedBlue = (mapped & 0x000000FF);
+
+            int finalRed = (int) (startRed * (1.0 - amount) + mappedRed
+                    * amount);
+            int finalGreen = (int) (startGreen * (1.0 - amount) + mappedGreen
+                    * amount);
+            int finalBlue = (int) (startBlue * (1.0 - amount) + mappedBlue
+                    * amount);
+
+            out[outOffset + i] = 0xFF000000 | (finalRed << 16)
+                    | (finalGreen << 8) | finalBlue;
+        }
+    }
+
+    private String fingerprint(ColorMapRecipe[] recipes, Matrix fused,
+            float amount) {
+        Object[] parameters = new Object[recipes.length + 3];
+        parameters[0] = getClass().getName();
+        parameters[1] = amount;
+        parameters[2] = fused;
+        for (int i = 0; i < recipes.length; ++i) {
+            parameters[i + 3] = recipes[i].fingerprint;
+            if (parameters[i + 3] == null) {
+                return null;
+            }
+        }
+
+        return ColorMapCache.fingerprint(parameters);
+    }
+}
@@ -2,6 +2,8 @@ package colorblind.generators;
 
 import colorblind.ColorUtilities;
 import colorblind.Deficiency;
+import colorblind.generators.util.ColorMapCache;
+import colorblind.generators.util.ColorMapKernel;
 import colorblind.generators.util.Matrix;
 import colorblind.generators.util.Vector;
 
@@ -45,126 +47,161 @@ public class DaltonizeGenerator extends ColorTransformGenerator {
     }
 
     protected int[] computeColorMapLookup(float amount) {
+        return buildColorMap(createColorMapKernel(amount));
+    }
+
+    protected ColorMapKernel createColorMapKernel(float amount) {
         switch (deficiency) {
             case PROTANOPIA:
-                return precalcDichromaticColorMap(ColorUtilities.protanopiaSim,
+                return dichromaticKernel(ColorUtilities.protanopiaSim,
                         ColorUtilities.protanopiaShiftError,
                         amount);
             case DEUTERANOPIA:
-                return precalcDichromaticColorMap(ColorUtilities.deuteranopiaSim,
+                return dichromaticKernel(ColorUtilities.deuteranopiaSim,
                         ColorUtilities.deuteranopiaShiftError,
                         amount);
             case TRITANOPIA:
-                return precalcDichromaticColorMap(ColorUtilities.tritanopiaSim,
+                return dichromaticKernel(ColorUtilities.tritanopiaSim,
                         ColorUtilities.tritanopiaShiftError,
                         amount);
             // Removing these because the math just doesn't make sense to daltonize
             // monochromatic deficiencies.
             case ACHROMATOPSIA:
-                //     return precalcMonochromaticColorMap(ColorUtilities.achromatopsiaSim,
+                //     return monochromaticKernel(ColorUtilities.achromatopsiaSim,
                 //             amount);
                 throw new RuntimeException("Daltonization not defined for monochromatic deficiencies");
             case BLUE_CONE_MONOCHROMACY:
-                //     return precalcMonochromaticColorMap(ColorUtilities.blueConeMonochromacySim,
+                //     return monochromaticKernel(ColorUtilities.blueConeMonochromacySim,
                 //             amount);
                 throw new RuntimeException("Daltonization not defined for monochromatic deficiencies");
             case CUSTOM:
-                return precalcDichromaticColorMap(ColorUtilities.customSim,
+                return dichromaticKernel(ColorUtilities.customSim,
                         ColorUtilities.customShiftError, amount);
             default:
                 throw new RuntimeException("ERROR: Unknown color deficiency");
         }
     }
 
-    protected int[] precalcMonochromaticColorMap(Vector sim, Matrix shiftErrorTowardsVisible, float amount) {
-        int[] colorMap = new int[256 * 256 * 256];
-        for (int color = 0; color < colorMap.length; ++color) {
-            int startRed = (color & 0x00FF0000) >> 16;
-            int startGreen = (color & 0x0000FF00) >> 8;
-            int startBlue = (color & 0x000000FF);
-
-            // Remove gamma correction using fast lookup table.
-            float linRed = removeGammaCorrectionLUT[startRed];
-            float linGreen = removeGammaCorrectionLUT[startGreen];
-            float linBlue = removeGammaCorrectionLUT[startBlue];
-
-            // simulate colorblindness
-            Vector linRGB = new Vector(linRed, linGreen, linBlue);
-            float simGray = ColorUtilities.clip(linRed * sim.v1 + linGreen
-                    * sim.v2 + linBlue * sim.v3);
-            Vector simRGB = new Vector(simGray, simGray, simGray);
-
-            // calculate the color delta in color space, rotate it, and
-            // add it back to the simulated color.
-            Vector error = linRGB.sub(simRGB);
-            Vector correction = shiftErrorTowardsVisible.rightMult(error);
-            Vector daltonized = correction.add(linRGB);
-
-            // Apply gamma correction using fast lookup table
-            int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(daltonized.v1) * (MAX_ENCODED_VALUE - 1))];
-            int simGreen = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(daltonized.v2) * (MAX_ENCODED_VALUE - 1))];
-            int simBlue = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(daltonized.v3) * (MAX_ENCODED_VALUE - 1))];
-
-            // Anomylize colors
-            int finalRed = (int) (startRed * (1.0 - amount) + simRed * amount);
-            int finalGreen = (int) (startGreen * (1.0 - amount) + simGreen
-                    * amount);
-            int finalBlue = (int) (startBlue * (1.0 - amount) + simBlue
-                    * amount);
-
-            colorMap[color] = 0xFF000000 | (finalRed << 16) | (finalGreen << 8)
-                    | finalBlue;
+    protected Matrix linearTransform() {
+        switch (deficiency) {
+            case PROTANOPIA:
+                return ColorUtilities.dichromaticDaltonizeTransform(
+                        ColorUtilities.protanopiaSim,
+                        ColorUtilities.protanopiaShiftError);
+            case DEUTERANOPIA:
+                return ColorUtilities.dichromaticDaltonizeTransform(
+                        ColorUtilities.deuteranopiaSim,
+                        ColorUtilities.deuteranopiaShiftError);
+            case TRITANOPIA:
+                return ColorUtilities.dichromaticDaltonizeTransform(
+                        ColorUtilities.tritanopiaSim,
+                        ColorUtilities.tritanopiaShiftError);
+            case CUSTOM:
+                return ColorUtilities.dichromaticDaltonizeTransform(
+                        ColorUtilities.customSim,
+                        ColorUtilities.customShiftError);
+            default:
+                return null;
         }
+    }
 
-        return colorMap;
+    protected Matrix severityTransform(float severity) {
+        switch (deficiency) {
+            case PROTANOPIA:
+                return ColorUtilities.anomalousDaltonizeTransform(
+                        ColorUtilities.protanomalySim,
+                        ColorUtilities.protanopiaShiftError, severity);
+            case DEUTERANOPIA:
+                return ColorUtilities.anomalousDaltonizeTransform(
+                        ColorUtilities.deuteranomalySim,
+                        ColorUtilities.deuteranopiaShiftError, severity);
+            case TRITANOPIA:
+                return ColorUtilities.anomalousDaltonizeTransform(
+                        ColorUtilities.tritanomalySim,
+                        ColorUtilities.tritanopiaShiftError, severity);
+            default:
+                return null;
+        }
+    }
+
+    protected String colorMapFingerprint(float amount) {
+        return ColorMapCache.fingerprint(getClass().getName(), deficiency,
+                amount, MAX_ENCODED_VALUE, ColorUtilities.rgb2lms,
+                ColorUtilities.lms2rgb, ColorUtilities.protanopiaSim,
+                ColorUtilities.deuteranopiaSim, ColorUtilities.tritanopiaSim,
+                ColorUtilities.customSim, ColorUtilities.protanopiaShiftError,
+                ColorUtilities.deuteranopiaShiftError,
+                ColorUtilities.tritanopiaShiftError,
+                ColorUtilities.customShiftError);
+    }
+
+    protected int[] precalcMonochromaticColorMap(Vector sim, Matrix shiftErrorTowardsVisible, float amount) {
+        return buildColorMap(monochromaticKernel(sim, shiftErrorTowardsVisible, amount));
     }
 
     protected int[] precalcDichromaticColorMap(Matrix sim, Matrix shiftErrorTowardsVisible, float amount) {
-        int[] colorMap = new int[256 * 256 * 256];
-        for (int color = 0; color < colorMap.length; ++color) {
-            int startRed = (color & 0x00FF0000) >> 16;
-            int startGreen = (color & 0x0000FF00) >> 8;
-            int startBlue = (color & 0x000000FF);
-
-            // Remove gamma correction using fast lookup table.
-            float linRed = removeGammaCorrectionLUT[startRed];
-            float linGreen = removeGammaCorrectionLUT[startGreen];
-            float linBlue = removeGammaCorrectionLUT[startBlue];
-
-            // simulate colorblindness
-            Vector linRGB = new Vector(linRed, linGreen, linBlue);
-            Vector lms = ColorUtilities.convertLinearRGB2LMS(linRGB);
-            Vector simRGB = ColorUtilities.convertLMS2LinearRGB(sim
-                    .rightMult(lms));
-
-            // calculate the color delta in color space, rotate it, and
-            // add it back to the simulated color.
-            Vector error = linRGB.sub(simRGB);
-            Vector correction = shiftErrorTowardsVisible.rightMult(error);
-            Vector daltonized = correction.add(linRGB);
-
-            // Apply gamma correction using fast lookup table
-            int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(daltonized.v1) * (MAX_ENCODED_VALUE - 1))];
-            int simGreen = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(daltonized.v2) * (MAX_ENCODED_VALUE - 1))];
-            int simBlue = applyGammaCorrectionLUT[(int) (ColorUtilities
-                    .clip(daltonized.v3) * (MAX_ENCODED_VALUE - 1))];
-
-            // Anomylize colors
-            int finalRed = (int) (startRed * (1.0 - amount) + simRed * amount);
-            int finalGreen = (int) (startGreen * (1.0 - amount) + simGreen
-                    * amount);
-            int finalBlue = (int) (startBlue * (1.0 - amount) + simBlue
-                    * amount);
-
-            colorMap[color] = 0xFF000000 | (finalRed << 16) | (finalGreen << 8)
-                    | finalBlue;
-        }
+        return buildColorMap(dichromaticKernel(sim, shiftErrorTowardsVisible, amount));
+    }
+
+    protected ColorMapKernel monochromaticKernel(Vector sim, Matrix shiftErrorTowardsVisible, float amount) {
+        // the clip in the middle of this calculation means it can't be fused
+        // into one matrix like precalcDichromaticColorMap.
+        final Matrix shift = new Matrix(shiftErrorTowardsVisible);
+
+        return (colors, colorsOffset, out, outOffset, length) -> {
+            int maxIndex = MAX_ENCODED_VALUE - 1;
+
+            for (int i = 0; i < length; ++i) {
+                int color = colors[colorsOffset + i];
+                int startRed = (color & 0x00FF0000) >> 16;
+                int startGreen = (color & 0x0000FF00) >> 8;
+                int startBlue = (color & 0x000000FF);
+
+                // Remove gamma correction using fast lookup table.
+                float linRed = removeGammaCorrectionLUT[startRed];
+                float linGreen = removeGammaCorrectionLUT[startGreen];
+                float linBlue = removeGammaCorrectionLUT[startBlue];
+
+                // simulate colorblindness
+                float simGray = ColorUtilities.clip(linRed * sim.v1 + linGreen
+                        * sim.v2 + linBlue * sim.v3);
+
+                // calculate the color delta in color space, rotate it, and
+                // add it back to the simulated color.
+                float errorRed = linRed - simGray;
+                float errorGreen = linGreen - simGray;
+                float errorBlue = linBlue - simGray;
+
+                float daltonizedRed = shift.r1c1 * errorRed + shift.r1c2
+                        * errorGreen + shift.r1c3 * errorBlue + linRed;
+                float daltonizedGreen = shift.r2c1 * errorRed + shift.r2c2
+                        * errorGreen + shift.r2c3 * errorBlue + linGreen;
+                float daltonizedBlue = shift.r3c1 * errorRed + shift.r3c2
+                        * errorGreen + shift.r3c3 * errorBlue + linBlue;
+
+                // Apply gamma correction using fast lookup table
+                int simRed = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(daltonizedRed) * maxIndex)];
+                int simGreen = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(daltonizedGreen) * maxIndex)];
+                int simBlue = applyGammaCorrectionLUT[(int) (ColorUtilities
+                        .clip(daltonizedBlue) * maxIndex)];
+
+                // Anomylize colors
+                int finalRed = (int) (startRed * (1.0 - amount) + simRed * amount);
+                int finalGreen = (int) (startGreen * (1.0 - amount) + simGreen
+                        * amount);
+                int finalBlue = (int) (startBlue * (1.0 - amount) + simBlue
+                        * amount);
+
+                out[outOffset + i] = 0xFF000000 | (finalRed << 16) | (finalGreen << 8)
+                        | finalBlue;
+            }
+        };
+    }
 
-        return colorMap;
+    protected ColorMapKernel dichromaticKernel(Matrix sim, Matrix shiftErrorTowardsVisible, float amount) {
+        return linearKernel(ColorUtilities.dichromaticDaltonizeTransform(sim,
+                shiftErrorTowardsVisible), amount);
     }
 }
@@ -16,4 +16,63 @@ public abstract class Generator {
      */
     abstract public void transformPixels(int[] pixels);
 
+    /**
+     * Transform the pixels in src and write them to dst. src is unaltered.
+     * 
+     * The default copies src to dst and transforms dst in place. Subclasses
+     * should override this if they can do it without the copy.
+     * 
+     * @param src
+     * @param dst
+     *            array the same size as src
+     */
+    public void transformPixels(int[] src, int[] dst) {
+        System.arraycopy(src, 0, dst, 0, src.length);
+        transformPixels(dst);
+    }
+
+    /**
+     * Transform part of src and write it to dst. src is unaltered.
+     * 
+     * Only generators that return true for isPerPixel() can do this. The
+     * default throws an exception.
+     * 
+     * @param src
+     * @param srcOffset
+     *                  index of the first source pixel
+     * @param dst
+     * @param dstOffset
+     *                  index of the first destination pixel
+     * @param length
+     *                  number of pixels to transform
+     */
+    public void transformPixels(int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length) {
+        throw new RuntimeException(getClass().getSimpleName()
+                + " can't transform part of a frame");
+    }
+
+    /**
+     * Check if each transformed pixel depends only on the same pixel in the
+     * original frame. Generators that do this can transform part of a frame,
+     * which lets ColorBlindness skip the parts of a frame that did not
+     * change.
+     * 
+     * @return false by default
+     */
+    public boolean isPerPixel() {
+        return false;
+    }
+
+    /**
+     * Number that changes whenever a setting that can change the transformed
+     * colors is changed. Previously transformed pixels can be reused only if
+     * this is the same.
+     * 
+     * @return
+     */
+    public long getSettingsVersion() {
+        return 0;
+    }
+
 }
@@ -0,0 +1,810 @@
+package colorblind.generators;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+import colorblind.ColorUtilities;
+import colorblind.generators.ColorTransformGenerator.Engine;
+import colorblind.generators.util.ColorLattice;
+import colorblind.generators.util.ColorMapKernel;
+import colorblind.generators.util.Matrix;
+import colorblind.generators.util.Vector;
+
+/**
+ * The settings of a ColorTransformGenerator and the tables computed from
+ * them.
+ *
+ * The generator's setters publish new States here. Before transforming
+ * pixels, the generator calls verifyTables() to get a State with the table
+ * its engine needs, computing the table if it doesn't exist yet. Each table
+ * is computed only once, even if several threads need it at the same time.
+ *
+ * @author James Schmitz
+ *
+ */
+class GeneratorTables {
+
+    /**
+     * What the tables are computed from.
+     */
+    interface Source {
+        /**
+         * Recipe for the colorMap of a state.
+         *
+         * @param s
+         * @param amount
+         * @return
+         */
+        ColorMapRecipe colorMapRecipe(State s, float amount);
+
+        /**
+         * Kernel for a severity.
+         *
+         * @param severity
+         *                 number in range [0, 1]
+         * @param amount
+         * @return
+         */
+        ColorMapKernel severityKernel(float severity, float amount);
+
+        /**
+         * @return number that changes whenever anything other than the
+         *         settings that the tables are computed from changes.
+         */
+        long inputVersion();
+    }
+
+    private static final int SEVERITY_STEPS = ColorTransformGenerator.SEVERITY_STEPS;
+
+    /**
+     * Everything a transformation reads that a setter can change. A State is
+     * never changed after it is published, so a thread that reads it once
+     * sees a consistent amount, engine and table for a whole frame without
+     * locking. Setters publish a changed copy.
+     */
+    static final class State {
+        float amount;
+        float amountComplement;
+        boolean dynamicAmount;
+        Engine engine;
+        int latticeSize;
+        ColorLattice.Interpolation latticeInterpolation;
+
+        // colorMap is typically calculated once when it is first needed. it
+        // is being calculated if colorMapFuture is not null. fallbackKernel
+        // transforms colors until then.
+        int[] colorMap;
+        CompletableFuture<int[]> colorMapFuture;
+        ColorMapKernel fallbackKernel;
+
+        // lattice is only used by the LATTICE engine, and is also calculated
+        // when it is first needed.
+        ColorLattice lattice;
+        ColorMapKernel latticeKernel;
+        CompletableFuture<ColorLattice> latticeFuture;
+
+        // the ANALYTIC kernel. it is created when it is first needed, and
+        // again after every change to the settings, the inputs, or the
+        // matrices in ColorUtilities.
+        ColorMapKernel analyticKernel;
+        // matrixFingerprint() when analyticKernel was created.
+        long analyticMatrices;
+
+        // with severityEnabled, the LOOKUP_TABLE engine uses severityKernel,
+        // the interpolated severity matrices. the LATTICE engine uses
+        // severityLattice, interpolated between severityFamily, a lattice for
+        // each of the SEVERITY_STEPS severities. the family is computed when
+        // it is first needed and the interpolated lattice whenever the
+        // severity changes.
+        boolean severityEnabled;
+        float severity;
+        ColorLattice[] severityFamily;
+        CompletableFuture<ColorLattice[]> severityFamilyFuture;
+        ColorLattice severityLattice;
+        ColorMapKernel severityKernel;
+
+        // incremented by every setter that can change the transformed
+        // colors.
+        long version;
+        // inputVersion() when the tables were discarded last.
+        long inputVersion;
+
+        State copy() {
+            State s = new State();
+            s.amount = amount;
+            s.amountComplement = amountComplement;
+            s.dynamicAmount = dynamicAmount;
+            s.engine = engine;
+            s.latticeSize = latticeSize;
+            s.latticeInterpolation = latticeInterpolation;
+            s.colorMap = colorMap;
+            s.colorMapFuture = colorMapFuture;
+            s.fallbackKernel = fallbackKernel;
+            s.lattice = lattice;
+            s.latticeKernel = latticeKernel;
+            s.latticeFuture = latticeFuture;
+            s.analyticKernel = analyticKernel;
+            s.analyticMatrices = analyticMatrices;
+            s.severityEnabled = severityEnabled;
+            s.severity = severity;
+            s.severityFamily = severityFamily;
+            s.severityFamilyFuture = severityFamilyFuture;
+            s.severityLattice = severityLattice;
+            s.severityKernel = severityKernel;
+            s.version = version;
+            s.inputVersion = inputVersion;
+
+            return s;
+        }
+
+        /**
+         * Copy with a new version number, for a setter to change.
+         */
+        State next() {
+            State s = copy();
+            s.version++;
+            s.analyticKernel = null;
+
+            return s;
+        }
+
+        /**
+         * Stop using the colorMap, including one that is still being
+         * computed.
+         */
+        State discardColorMap() {
+            colorMap = null;
+            colorMapFuture = null;
+            fallbackKernel = null;
+
+            return this;
+        }
+
+        /**
+         * Stop using the lattices, including the severity lattices.
+         */
+        State discardLattice() {
+            lattice = null;
+            latticeKernel = null;
+            latticeFuture = null;
+            severityFamily = null;
+            severityFamilyFuture = null;
+            severityLattice = null;
+            severityKernel = null;
+
+            return this;
+        }
+
+        State withColorMap(int[] table) {
+            State s = copy().discardColorMap();
+            s.colorMap = table;
+
+            return s;
+        }
+
+        State withLattice(ColorLattice lattice, ColorMapKernel kernel) {
+            State s = copy().discardLattice();
+            s.lattice = lattice;
+            s.latticeKernel = kernel;
+
+            return s;
+        }
+
+        State withSeverityFamily(ColorLattice[] family) {
+            State s = copy();
+            s.severityFamily = family;
+            s.severityFamilyFuture = null;
+
+            return s;
+        }
+
+        State withSeverityKernel(ColorLattice lattice, ColorMapKernel kernel) {
+            State s = copy();
+            s.severityLattice = lattice;
+            s.severityKernel = kernel;
+
+            return s;
+        }
+
+        /**
+         * @return the lattice used by the LATTICE engine.
+         */
+        ColorLattice engineLattice() {
+            return severityEnabled ? severityLattice : lattice;
+        }
+
+        /**
+         * Amount to compute the colorMap or lattice with.
+         * 
+         * Important: if dynamicAmount is true, then compute colorMap with
+         * amount 1 and do an interpolation later. If dynamicAmount is false,
+         * calculate colorMap with the fixed amount.
+         */
+        float tableAmount() {
+            return dynamicAmount ? 1 : amount;
+        }
+
+        /**
+         * @return kernel to transform colors with, or null if colorMap should
+         *         be used.
+         */
+        ColorMapKernel kernel() {
+            if (severityEnabled && engine != Engine.ANALYTIC) {
+                return severityKernel;
+            }
+
+            switch (engine) {
+            case LATTICE:
+                return latticeKernel;
+            case ANALYTIC:
+                return analyticKernel;
+            default:
+                return colorMap == null ? fallbackKernel : null;
+            }
+        }
+
+        boolean unchanged() {
+            return dynamicAmount && amount == 0;
+        }
+
+        boolean blend() {
+            return dynamicAmount && amount < 1;
+        }
+
+        /**
+         * @return true if colors are transformed with the fallback kernel
+         *         because the colorMap is not ready yet.
+         */
+        boolean usesFallback() {
+            ColorMapKernel kernel = kernel();
+
+            return kernel != null && kernel == fallbackKernel;
+        }
+    }
+
+    private final AtomicReference<State> state;
+    private final Source source;
+
+    /**
+     * Constructor.
+     *
+     * @param source
+     * @param initial
+     *                the initial settings
+     */
+    GeneratorTables(Source source, State initial) {
+        this.source = source;
+        this.state = new AtomicReference<>(initial);
+    }
+
+    /**
+     * @return the published state, which may have tables computed from old
+     *         inputs.
+     */
+    State get() {
+        return state.get();
+    }
+
+    /**
+     * Publish a changed state.
+     *
+     * @param update
+     *               changes a copy of the state from next()
+     * @return the new state
+     */
+    State update(UnaryOperator<State> update) {
+        return state.updateAndGet(update);
+    }
+
+    /**
+     * Like update(), but returns the state from before the change.
+     *
+     * @param update
+     * @return the old state
+     */
+    State getAndUpdate(UnaryOperator<State> update) {
+        return state.getAndUpdate(update);
+    }
+
+    /**
+     * The current state, after discarding tables computed from old inputs.
+     */
+    State current() {
+        while (true) {
+            State s = state.get();
+            long inputVersion = source.inputVersion();
+            if (inputVersion == s.inputVersion) {
+                return s;
+            }
+
+            State n = s.next().discardColorMap().discardLattice();
+            n.inputVersion = inputVersion;
+            if (state.compareAndSet(s, n)) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * With the ANALYTIC engine, start a new version if the matrices in
+     * ColorUtilities changed since the kernel was created.
+     *
+     * @return the current state
+     */
+    State verifyMatrices() {
+        while (true) {
+            State s = current();
+            if (s.engine != Engine.ANALYTIC || s.analyticKernel == null
+                    || s.analyticMatrices == matrixFingerprint()) {
+                return s;
+            }
+
+            State n = s.next();
+            if (state.compareAndSet(s, n)) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Cheap fingerprint of the matrices in ColorUtilities that the kernels
+     * are computed from. It changes when a matrix is replaced or one of its
+     * values is changed.
+     */
+    private static long matrixFingerprint() {
+        long hash = 17;
+        hash = hash(hash, ColorUtilities.rgb2lms);
+        hash = hash(hash, ColorUtilities.lms2rgb);
+        hash = hash(hash, ColorUtilities.protanopiaSim);
+        hash = hash(hash, ColorUtilities.deuteranopiaSim);
+        hash = hash(hash, ColorUtilities.tritanopiaSim);
+        hash = hash(hash, ColorUtilities.customSim);
+        hash = hash(hash, ColorUtilities.achromatopsiaSim);
+        hash = hash(hash, ColorUtilities.blueConeMonochromacySim);
+        hash = hash(hash, ColorUtilities.protanopiaShiftError);
+        hash = hash(hash, ColorUtilities.deuteranopiaShiftError);
+        hash = hash(hash, ColorUtilities.tritanopiaShiftError);
+        hash = hash(hash, ColorUtilities.customShiftError);
+        for (Matrix[] steps : new Matrix[][] { ColorUtilities.protanomalySim,
+                ColorUtilities.deuteranomalySim,
+                ColorUtilities.tritanomalySim }) {
+            if (steps != null) {
+                for (Matrix m : steps) {
+                    hash = hash(hash, m);
+                }
+            }
+        }
+
+        return hash;
+    }
+
+    private static long hash(long hash, Matrix m) {
+        if (m == null) {
+            return hash * 31;
+        }
+        hash = hash(hash, m.r1c1, m.r1c2, m.r1c3);
+        hash = hash(hash, m.r2c1, m.r2c2, m.r2c3);
+
+        return hash(hash, m.r3c1, m.r3c2, m.r3c3);
+    }
+
+    private static long hash(long hash, Vector v) {
+        if (v == null) {
+            return hash * 31;
+        }
+
+        return hash(hash, v.v1, v.v2, v.v3);
+    }
+
+    private static long hash(long hash, float a, float b, float c) {
+        hash = hash * 31 + Float.floatToIntBits(a);
+        hash = hash * 31 + Float.floatToIntBits(b);
+
+        return hash * 31 + Float.floatToIntBits(c);
+    }
+
+    /**
+     * Check to see if the table used by the current engine exists.
+     * 
+     * Tables are computed at most once for each state. If another thread is
+     * already computing one, this waits for it or uses the fallback instead
+     * of computing it again.
+     * 
+     * @param async
+     *              if true, transform colors with the fallback kernel while
+     *              the lookup table is computed in the background.
+     * @return state to transform colors with. Its kernel() is null if its
+     *         colorMap should be used, and usesFallback() is true if the
+     *         colorMap is still being computed.
+     */
+    State verifyTables(boolean async) {
+        while (true) {
+            State s = current();
+
+            if (s.severityEnabled && s.engine != Engine.ANALYTIC) {
+                s = verifySeverity(s);
+                if (s == null) {
+                    continue;
+                }
+
+                return s;
+            }
+
+            if (s.engine == Engine.LATTICE) {
+                s = verifyLattice(s);
+                if (s == null) {
+                    // a setter changed the state. start over.
+                    continue;
+                }
+
+                return s;
+            }
+
+            if (s.engine == Engine.ANALYTIC) {
+                long matrices = matrixFingerprint();
+                if (s.analyticKernel != null) {
+                    if (s.analyticMatrices == matrices) {
+                        return s;
+                    }
+
+                    // the matrices changed. a new version drops the kernel
+                    // and the cached colors.
+                    state.compareAndSet(s, s.next());
+                    continue;
+                }
+
+                // keep the kernel until the state or the matrices change, so
+                // the palette cache isn't cleared for every frame.
+                ColorMapKernel kernel = source.colorMapRecipe(s, s.tableAmount()).kernel;
+                if (kernel != null) {
+                    State analytic = s.copy();
+                    analytic.analyticKernel = kernel;
+                    analytic.analyticMatrices = matrices;
+                    state.compareAndSet(s, analytic);
+
+                    return analytic;
+                }
+
+                System.err.println("This generator can only transform colors with a lookup table."
+                        + " Switching to the LOOKUP_TABLE engine.");
+                State switched = s.copy();
+                switched.engine = Engine.LOOKUP_TABLE;
+                state.compareAndSet(s, switched);
+                continue;
+            }
+
+            if (s.colorMap == null && async) {
+                s = startLookupTable(s, true);
+                if (s == null) {
+                    continue;
+                }
+                if (s.colorMap == null && !s.colorMapFuture.isDone()
+                        && s.fallbackKernel != null) {
+                    return s;
+                }
+            }
+
+            s = verifyLookupTables(s);
+            if (s == null) {
+                continue;
+            }
+
+            return s;
+        }
+    }
+
+    /**
+     * Check to see if the lattice exists. If not, compute it.
+     * 
+     * @return state with an engineLattice(), or null if the LATTICE engine is
+     *         not being used.
+     */
+    State verifyLattice() {
+        while (true) {
+            State s = current();
+            if (s.engine != Engine.LATTICE) {
+                return null;
+            }
+
+            s = s.severityEnabled ? verifySeverity(s) : verifyLattice(s);
+            if (s != null) {
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Check to see if the lattice for a state exists. If not, compute it, or
+     * wait for the thread computing it.
+     * 
+     * @param s
+     * @return s with a lattice, or null if a setter changed the state first.
+     */
+    private State verifyLattice(State s) {
+        if (s.lattice != null) {
+            return s;
+        }
+
+        CompletableFuture<ColorLattice> future = s.latticeFuture;
+        if (future == null) {
+            State started = s.copy();
+            started.latticeFuture = future = new CompletableFuture<>();
+            if (!state.compareAndSet(s, started)) {
+                return null;
+            }
+
+            try {
+                future.complete(computeLattice(source.colorMapRecipe(s,
+                        s.tableAmount()), s.latticeSize, s.latticeInterpolation));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        ColorLattice lattice;
+        try {
+            lattice = future.join();
+        } catch (CompletionException e) {
+            // try again next time.
+            CompletableFuture<ColorLattice> failed = future;
+            state.updateAndGet(c -> c.latticeFuture == failed ? c.copy()
+                    .discardLattice() : c);
+
+            throw unwrap(e);
+        }
+
+        ColorMapKernel kernel = lattice::lookup;
+        CompletableFuture<ColorLattice> done = future;
+        state.updateAndGet(c -> c.latticeFuture == done ? c.withLattice(
+                lattice, kernel) : c);
+
+        return s.withLattice(lattice, kernel);
+    }
+
+    private ColorLattice computeLattice(ColorMapRecipe recipe, int size,
+            ColorLattice.Interpolation interpolation) {
+        int[] nodes = ColorLattice.nodeColors(size);
+
+        if (recipe.kernel != null) {
+            recipe.kernel.compute(nodes, 0, nodes, 0, nodes.length);
+        } else {
+            // the only option is to compute the full lookup table and
+            // sample it.
+            int[] table = recipe.computeTable();
+            for (int i = 0; i < nodes.length; ++i) {
+                nodes[i] = table[nodes[i] & 0x00FFFFFF];
+            }
+        }
+
+        return new ColorLattice(size, interpolation, nodes);
+    }
+
+    /**
+     * Create the kernel for the state's severity, if that hasn't been done
+     * already.
+     * 
+     * With the LATTICE engine, check to see if the severity lattices exist.
+     * If not, compute them, or wait for the thread computing them. Then
+     * interpolate the lattice for the state's severity.
+     * 
+     * @param s
+     * @return s with a severityKernel, or null if a setter changed the state
+     *         first.
+     */
+    private State verifySeverity(State s) {
+        if (s.severityKernel != null) {
+            return s;
+        }
+
+        if (s.engine != Engine.LATTICE) {
+            // the interpolated matrices are exact and don't need a table.
+            State exact = s.withSeverityKernel(null, source.severityKernel(
+                    s.severity, s.tableAmount()));
+
+            return state.compareAndSet(s, exact) ? exact : null;
+        }
+
+        ColorLattice[] family = s.severityFamily;
+        if (family == null) {
+            CompletableFuture<ColorLattice[]> future = s.severityFamilyFuture;
+            if (future == null) {
+                State started = s.copy();
+                started.severityFamilyFuture = future = new CompletableFuture<>();
+                if (!state.compareAndSet(s, started)) {
+                    return null;
+                }
+
+                try {
+                    future.complete(computeSeverityFamily(s.tableAmount(),
+                            s.latticeSize, s.latticeInterpolation));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            try {
+                family = future.join();
+            } catch (CompletionException e) {
+                // try again next time.
+                CompletableFuture<ColorLattice[]> failed = future;
+                state.updateAndGet(c -> c.severityFamilyFuture == failed ? c
+                        .copy().discardLattice() : c);
+
+                throw unwrap(e);
+            }
+
+            ColorLattice[] done = family;
+            CompletableFuture<ColorLattice[]> completed = future;
+            state.updateAndGet(c -> c.severityFamilyFuture == completed ? c
+                    .withSeverityFamily(done) : c);
+        }
+
+        ColorLattice lattice = interpolateSeverity(family, s.severity);
+        ColorMapKernel kernel = lattice::lookup;
+        ColorLattice[] used = family;
+        state.updateAndGet(c -> c.severityFamily == used
+                && c.severityKernel == null && c.severityEnabled
+                && c.severity == s.severity ? c.withSeverityKernel(lattice,
+                        kernel) : c);
+
+        return s.withSeverityFamily(family).withSeverityKernel(lattice, kernel);
+    }
+
+    /**
+     * Compute a lattice for each of the SEVERITY_STEPS severities.
+     */
+    private ColorLattice[] computeSeverityFamily(float tableAmount, int size,
+            ColorLattice.Interpolation interpolation) {
+        ColorLattice[] family = new ColorLattice[SEVERITY_STEPS];
+
+        IntStream.range(0, SEVERITY_STEPS).parallel().forEach(i -> {
+            int[] nodes = ColorLattice.nodeColors(size);
+            source.severityKernel(i / (float) (SEVERITY_STEPS - 1),
+                    tableAmount).compute(nodes, 0, nodes, 0, nodes.length);
+            family[i] = new ColorLattice(size, interpolation, nodes);
+        });
+
+        return family;
+    }
+
+    /**
+     * Interpolate between the two severity lattices nearest to a severity.
+     */
+    private static ColorLattice interpolateSeverity(ColorLattice[] family,
+            float severity) {
+        float position = severity * (family.length - 1);
+        int lower = Math.min((int) position, family.length - 2);
+        float weight = position - lower;
+
+        if (weight == 0) {
+            return family[lower];
+        } else if (weight == 1) {
+            return family[lower + 1];
+        }
+
+        return family[lower].blend(family[lower + 1], weight);
+    }
+
+    /**
+     * Check to see if the lookup table exists. If not, compute it.
+     * 
+     * @return state with a colorMap.
+     */
+    State verifyLookupTables() {
+        while (true) {
+            State s = verifyLookupTables(current());
+            if (s != null) {
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Check to see if the lookup table for a state exists. If not, get it
+     * from the ColorMapRegistry, load it from the ColorMapCache, or call the
+     * function to compute it. If another thread is already doing that, wait
+     * for it.
+     * 
+     * @param s
+     * @return s with a colorMap, or null if a setter changed the state first.
+     */
+    private State verifyLookupTables(State s) {
+        if (s.colorMap != null) {
+            return s;
+        }
+
+        // we have to wait anyway, so compute the table on this thread.
+        s = startLookupTable(s, false);
+        if (s == null || s.colorMap != null) {
+            return s;
+        }
+
+        CompletableFuture<int[]> future = s.colorMapFuture;
+        int[] table;
+        try {
+            table = future.join();
+        } catch (CompletionException e) {
+            // try again next time.
+            state.updateAndGet(c -> c.colorMapFuture == future ? c.copy()
+                    .discardColorMap() : c);
+
+            throw unwrap(e);
+        }
+        installColorMap(future, table);
+
+        return s.withColorMap(table);
+    }
+
+    /**
+     * Start computing the lookup table for a state, if that hasn't been done
+     * already. Only the thread that publishes the future computes the table.
+     * 
+     * @param s
+     * @param async
+     *              if true, compute the table in the background. Otherwise
+     *              compute it on this thread before returning.
+     * @return s with a colorMap or a colorMapFuture, or null if a setter
+     *         changed the state first.
+     */
+    State startLookupTable(State s, boolean async) {
+        if (s.colorMap != null || s.colorMapFuture != null) {
+            return s;
+        }
+
+        // the key and the table both come from this state.
+        ColorMapRecipe recipe = source.colorMapRecipe(s, s.tableAmount());
+        State started = s.copy();
+        started.colorMapFuture = new CompletableFuture<>();
+        if (async) {
+            // the same kernel that computes the table can compute individual
+            // colors, so the fallback gives identical results.
+            started.fallbackKernel = recipe.kernel;
+        }
+        if (!state.compareAndSet(s, started)) {
+            return null;
+        }
+
+        CompletableFuture<int[]> future = started.colorMapFuture;
+
+        if (async) {
+            recipe.getTableAsync().whenComplete((colorMap, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    // switch to the table without waiting for a transform to
+                    // notice it is ready.
+                    installColorMap(future, colorMap);
+                    future.complete(colorMap);
+                }
+            });
+        } else {
+            try {
+                future.complete(recipe.getTable());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        return started;
+    }
+
+    /**
+     * Publish a finished lookup table, unless a setter discarded it while it
+     * was being computed.
+     */
+    private void installColorMap(CompletableFuture<int[]> future, int[] table) {
+        state.updateAndGet(c -> c.colorMapFuture == future ? c
+                .withColorMap(table) : c);
+    }
+
+    private static RuntimeException unwrap(CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+
+        return e;
+    }
+}
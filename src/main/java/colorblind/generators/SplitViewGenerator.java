@@ -0,0 +1,565 @@
+package colorblind.generators;
+
+import colorblind.generators.util.PixelWorkerPool;
+
+/**
+ * Shows several transformations of the same frame at once, such as
+ * protanopia, deuteranopia, tritanopia and achromatopsia side by side.
+ *
+ * The frame is divided into one region for each view, and each region is
+ * transformed by its own generator. Every pixel is read and transformed
+ * once, so this costs about the same as transforming the whole frame with
+ * one generator.
+ *
+ * By default each region shows its own part of the frame, like a split
+ * screen. Use setFitFrame() to show the whole frame shrunk into every region
+ * instead. Labels and dividers can be drawn in the sketch's postDraw()
+ * function, which runs after the frame is transformed.
+ *
+ * @author James Schmitz
+ *
+ */
+public class SplitViewGenerator extends Generator {
+
+    /**
+     * How the frame is divided into regions.
+     */
+    public enum Layout {
+        /**
+         * Side by side columns of the same width.
+         */
+        COLUMNS,
+        /**
+         * Rows of the same height, one above the other.
+         */
+        ROWS,
+        /**
+         * Four quarters of the frame, in the order top left, top right,
+         * bottom left, bottom right. This needs at most four views.
+         */
+        QUADRANTS,
+        /**
+         * Rows of columns with about the same number of columns and rows,
+         * filled in row by row.
+         */
+        GRID
+    }
+
+    /**
+     * Position of every region, and of the frame inside each region when it
+     * is shrunk to fit. Never changed after it is created, so the settings
+     * can be changed while another thread is transforming a frame.
+     */
+    private static final class Regions {
+        final int[] x;
+        final int[] y;
+        final int[] width;
+        final int[] height;
+        final boolean fitFrame;
+        // with fitFrame, the area inside each region the frame is shrunk
+        // into, and the source column for each of its columns.
+        final int[] contentX;
+        final int[] contentY;
+        final int[] contentWidth;
+        final int[] contentHeight;
+        final int[][] sourceColumns;
+
+        Regions(int count) {
+            x = new int[count];
+            y = new int[count];
+            width = new int[count];
+            height = new int[count];
+            fitFrame = false;
+            contentX = contentY = contentWidth = contentHeight = null;
+            sourceColumns = null;
+        }
+
+        Regions(Regions regions, int frameWidth, int frameHeight) {
+            int count = regions.x.length;
+            x = regions.x;
+            y = regions.y;
+            width = regions.width;
+            height = regions.height;
+            fitFrame = true;
+            contentX = new int[count];
+            contentY = new int[count];
+            contentWidth = new int[count];
+            contentHeight = new int[count];
+            sourceColumns = new int[count][];
+
+            for (int r = 0; r < count; ++r) {
+                // keep the frame's aspect ratio.
+                float scale = Math.min(width[r] / (float) frameWidth,
+                        height[r] / (float) frameHeight);
+                int w = Math.max(1, Math.min(width[r],
+                        Math.round(frameWidth * scale)));
+                int h = Math.max(1, Math.min(height[r],
+                        Math.round(frameHeight * scale)));
+                contentWidth[r] = w;
+                contentHeight[r] = h;
+                contentX[r] = x[r] + (width[r] - w) / 2;
+                contentY[r] = y[r] + (height[r] - h) / 2;
+
+                sourceColumns[r] = new int[w];
+                for (int i = 0; i < w; ++i) {
+                    sourceColumns[r][i] = (int) ((i + 0.5) * frameWidth / w);
+                }
+            }
+        }
+    }
+
+    private final int frameWidth;
+    private final int frameHeight;
+    private final ColorTransformGenerator[] views;
+
+    private volatile Layout layout;
+    private volatile Regions regions;
+    private volatile int background;
+    private volatile long settingsChanges;
+
+    // null means transform pixels on the calling thread.
+    private volatile PixelWorkerPool workerPool;
+    private final ThreadLocal<RowTask> rowTasks = ThreadLocal
+            .withInitial(RowTask::new);
+    // a copy of the frame, used when transforming in place with fitFrame.
+    private final ThreadLocal<int[]> frameCopies = new ThreadLocal<>();
+    // one row of shrunk source pixels.
+    private final ThreadLocal<int[]> sampledRows = new ThreadLocal<>();
+
+    /**
+     * Constructor.
+     *
+     * @param frameWidth
+     *                    width of the frame in pixels. With a pixel density
+     *                    of 2, this is twice the sketch width.
+     * @param frameHeight
+     *                    height of the frame in pixels
+     * @param layout
+     * @param views
+     *                    generator for each region. null shows the original
+     *                    colors.
+     */
+    public SplitViewGenerator(int frameWidth, int frameHeight, Layout layout,
+            ColorTransformGenerator... views) {
+        if (frameWidth < 1 || frameHeight < 1) {
+            throw new RuntimeException("Frame size must be at least 1x1");
+        }
+        if (views.length == 0) {
+            throw new RuntimeException("A split view needs at least one view");
+        }
+
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.views = views.clone();
+        this.background = 0xFF000000;
+        setLayout(layout);
+    }
+
+    /**
+     * Set how the frame is divided into regions.
+     *
+     * @param layout
+     * @return
+     */
+    public SplitViewGenerator setLayout(Layout layout) {
+        if (layout == Layout.QUADRANTS && views.length > 4) {
+            throw new RuntimeException("QUADRANTS can only show 4 views, not "
+                    + views.length);
+        }
+
+        this.layout = layout;
+        boolean fitFrame = regions != null && regions.fitFrame;
+        Regions split = divide(layout);
+        this.regions = fitFrame ? new Regions(split, frameWidth, frameHeight)
+                : split;
+        settingsChanges++;
+
+        return this;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Show the whole frame shrunk into every region instead of each region's
+     * own part of the frame. This is off by default.
+     *
+     * The frame keeps its aspect ratio, and the rest of each region is
+     * filled with the background color. The shrunk frame is sampled without
+     * smoothing, so thin lines can disappear.
+     *
+     * @param fitFrame
+     * @return
+     */
+    public SplitViewGenerator setFitFrame(boolean fitFrame) {
+        Regions split = divide(layout);
+        this.regions = fitFrame ? new Regions(split, frameWidth, frameHeight)
+                : split;
+        settingsChanges++;
+
+        return this;
+    }
+
+    public boolean isFitFrame() {
+        return regions.fitFrame;
+    }
+
+    /**
+     * Set the color around the shrunk frames when fitFrame is on. This
+     * defaults to black.
+     *
+     * @param color
+     * @return
+     */
+    public SplitViewGenerator setBackground(int color) {
+        this.background = color | 0xFF000000;
+        settingsChanges++;
+
+        return this;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    /**
+     * Transform the rows of the frame in parallel using a shared pool of
+     * threads. This is off by default.
+     *
+     * @param parallelism
+     *                    number of threads to use, including the calling
+     *                    thread. Pass 1 to turn this off.
+     * @return
+     */
+    public SplitViewGenerator setParallelism(int parallelism) {
+        if (parallelism <= 1) {
+            workerPool = null;
+        } else {
+            workerPool = PixelWorkerPool.shared(parallelism);
+        }
+
+        return this;
+    }
+
+    public int getParallelism() {
+        PixelWorkerPool pool = workerPool;
+
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * @return copy of the generator for each region.
+     */
+    public ColorTransformGenerator[] getViews() {
+        return views.clone();
+    }
+
+    /**
+     * Position and size of a region. Cells of a grid without a view show the
+     * original colors, or the background with fitFrame.
+     *
+     * @param view
+     *             index of the view
+     * @return x, y, width and height in pixels
+     */
+    public int[] getRegion(int view) {
+        Regions r = regions;
+
+        return new int[] { r.x[view], r.y[view], r.width[view],
+                r.height[view] };
+    }
+
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    private Regions divide(Layout layout) {
+        int count = views.length;
+        int columns;
+        int rows;
+        switch (layout) {
+        case COLUMNS:
+            columns = count;
+            rows = 1;
+            break;
+        case ROWS:
+            columns = 1;
+            rows = count;
+            break;
+        case QUADRANTS:
+            columns = 2;
+            rows = 2;
+            break;
+        default:
+            columns = (int) Math.ceil(Math.sqrt(count));
+            rows = (count + columns - 1) / columns;
+            break;
+        }
+        if (columns > frameWidth || rows > frameHeight) {
+            throw new RuntimeException("A " + frameWidth + "x" + frameHeight
+                    + " frame is too small for " + columns + "x" + rows
+                    + " regions");
+        }
+
+        // every cell gets a region, even if there are fewer views.
+        Regions regions = new Regions(columns * rows);
+        for (int v = 0; v < columns * rows; ++v) {
+            int column = v % columns;
+            int row = v / columns;
+            regions.x[v] = column * frameWidth / columns;
+            regions.y[v] = row * frameHeight / rows;
+            regions.width[v] = (column + 1) * frameWidth / columns
+                    - regions.x[v];
+            regions.height[v] = (row + 1) * frameHeight / rows
+                    - regions.y[v];
+        }
+
+        return regions;
+    }
+
+    @Override
+    public void transformPixels(int[] pixels) {
+        Regions r = regions;
+        if (!r.fitFrame) {
+            transform(r, pixels, pixels);
+            return;
+        }
+
+        // the shrunk frames are sampled from the whole frame, so sample them
+        // from a copy.
+        int[] copy = frameCopies.get();
+        if (copy == null || copy.length != pixels.length) {
+            copy = new int[pixels.length];
+            frameCopies.set(copy);
+        }
+        System.arraycopy(pixels, 0, copy, 0, pixels.length);
+        transform(r, copy, pixels);
+    }
+
+    @Override
+    public void transformPixels(int[] src, int[] dst) {
+        transform(regions, src, dst);
+    }
+
+    /**
+     * Transform part of a frame. The offsets must be the positions of the
+     * pixels in the frame, because the position decides which view is used.
+     */
+    @Override
+    public void transformPixels(int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length) {
+        Regions r = regions;
+        if (r.fitFrame) {
+            throw new RuntimeException(
+                    "A split view can't transform part of a frame while fitFrame is on");
+        }
+        if (srcOffset != dstOffset) {
+            throw new RuntimeException(
+                    "A split view can only transform part of a frame to the same position");
+        }
+
+        int end = srcOffset + length;
+        int i = srcOffset;
+        while (i < end) {
+            int row = i / frameWidth;
+            int rowEnd = Math.min(end, (row + 1) * frameWidth);
+            for (int v = 0; v < r.x.length; ++v) {
+                if (row < r.y[v] || row >= r.y[v] + r.height[v]) {
+                    continue;
+                }
+                int from = Math.max(i, row * frameWidth + r.x[v]);
+                int to = Math.min(rowEnd, row * frameWidth + r.x[v]
+                        + r.width[v]);
+                if (from < to) {
+                    transformSpan(view(v), src, dst, from, to - from);
+                }
+            }
+            i = rowEnd;
+        }
+    }
+
+    /**
+     * Only when each region shows its own part of the frame.
+     */
+    @Override
+    public boolean isPerPixel() {
+        return !regions.fitFrame;
+    }
+
+    @Override
+    public long getSettingsVersion() {
+        // each version only increases, so the sum changes whenever any of
+        // them do.
+        long version = settingsChanges;
+        for (ColorTransformGenerator view : views) {
+            if (view != null) {
+                version += view.getSettingsVersion();
+            }
+        }
+
+        return version;
+    }
+
+    private void transform(Regions r, int[] src, int[] dst) {
+        int length = frameWidth * frameHeight;
+        if (src.length != length || dst.length != length) {
+            throw new RuntimeException("Split view is for a " + frameWidth
+                    + "x" + frameHeight + " frame, not " + src.length
+                    + " pixels");
+        }
+
+        PixelWorkerPool pool = workerPool;
+        if (pool == null) {
+            transformRows(r, src, dst, 0, frameHeight);
+        } else {
+            RowTask task = rowTasks.get();
+            task.set(r, src, dst);
+            try {
+                // about 64 KB of pixels in each stripe.
+                pool.run(task, frameHeight, Math.max(1,
+                        ColorTransformGenerator.DEFAULT_MINIMUM_CHUNK_SIZE
+                                / frameWidth));
+            } finally {
+                task.clear();
+            }
+        }
+    }
+
+    /**
+     * Transform the rows in [fromRow, toRow) of every region. This may be
+     * called from several threads at the same time.
+     */
+    private void transformRows(Regions r, int[] src, int[] dst, int fromRow,
+            int toRow) {
+        for (int v = 0; v < r.x.length; ++v) {
+            int top = Math.max(fromRow, r.y[v]);
+            int bottom = Math.min(toRow, r.y[v] + r.height[v]);
+            if (top >= bottom) {
+                continue;
+            }
+
+            if (!r.fitFrame) {
+                ColorTransformGenerator view = view(v);
+                if (view != null) {
+                    // one call for the whole block of rows.
+                    view.transformRegion(src, top * frameWidth + r.x[v],
+                            frameWidth, dst, top * frameWidth + r.x[v],
+                            frameWidth, r.width[v], bottom - top, false);
+                } else if (src != dst) {
+                    for (int row = top; row < bottom; ++row) {
+                        int start = row * frameWidth + r.x[v];
+                        System.arraycopy(src, start, dst, start, r.width[v]);
+                    }
+                }
+            } else {
+                for (int row = top; row < bottom; ++row) {
+                    fitRow(r, v, src, dst, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return generator for a region, or null for the original colors. The
+     *         regions of a grid that aren't filled don't have a view.
+     */
+    private ColorTransformGenerator view(int v) {
+        return v < views.length ? views[v] : null;
+    }
+
+    private void transformSpan(ColorTransformGenerator view, int[] src,
+            int[] dst, int offset, int length) {
+        if (view != null) {
+            view.transformPixels(src, offset, dst, offset, length);
+        } else if (src != dst) {
+            System.arraycopy(src, offset, dst, offset, length);
+        }
+    }
+
+    /**
+     * Write one row of a region showing the shrunk frame.
+     */
+    private void fitRow(Regions r, int v, int[] src, int[] dst, int row) {
+        int rowStart = row * frameWidth;
+        int left = r.x[v];
+        int right = left + r.width[v];
+        int contentLeft = r.contentX[v];
+        int contentRight = contentLeft + r.contentWidth[v];
+        int contentTop = r.contentY[v];
+        int contentBottom = contentTop + r.contentHeight[v];
+        int color = background;
+
+        if (v >= views.length || row < contentTop || row >= contentBottom) {
+            fill(dst, rowStart + left, rowStart + right, color);
+            return;
+        }
+        fill(dst, rowStart + left, rowStart + contentLeft, color);
+        fill(dst, rowStart + contentRight, rowStart + right, color);
+
+        int sourceRow = (int) ((row - contentTop + 0.5) * frameHeight
+                / r.contentHeight[v]) * frameWidth;
+        int[] columns = r.sourceColumns[v];
+        int[] sampled = sampledRow(columns.length);
+        for (int i = 0; i < columns.length; ++i) {
+            sampled[i] = src[sourceRow + columns[i]];
+        }
+
+        ColorTransformGenerator view = views[v];
+        if (view != null) {
+            view.transformPixels(sampled, 0, dst, rowStart + contentLeft,
+                    columns.length);
+        } else {
+            System.arraycopy(sampled, 0, dst, rowStart + contentLeft,
+                    columns.length);
+        }
+    }
+
+    private int[] sampledRow(int length) {
+        int[] row = sampledRows.get();
+        if (row == null || row.length < length) {
+            row = new int[frameWidth];
+            sampledRows.set(row);
+        }
+
+        return row;
+    }
+
+    private static void fill(int[] pixels, int from, int to, int color) {
+        for (int i = from; i < to; ++i) {
+            pixels[i] = color;
+        }
+    }
+
+    /**
+     * Transforms groups of rows for the worker pool. Each thread reuses one
+     * instance so nothing is allocated.
+     */
+    private class RowTask implements PixelWorkerPool.Task {
+
+        private Regions regions;
+        private int[] src;
+        private int[] dst;
+
+        void set(Regions regions, int[] src, int[] dst) {
+            this.regions = regions;
+            this.src = src;
+            this.dst = dst;
+        }
+
+        void clear() {
+            regions = null;
+            src = null;
+            dst = null;
+        }
+
+        @Override
+        public void run(int fromRow, int toRow) {
+            transformRows(regions, src, dst, fromRow, toRow);
+        }
+    }
+}
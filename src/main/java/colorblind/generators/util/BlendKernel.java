@@ -0,0 +1,132 @@
+package colorblind.generators.util;
+
+/**
+ * Inner loops for looking up transformed colors and blending them with the
+ * original colors.
+ *
+ * ScalarBlendKernel transforms one pixel at a time. VectorBlendKernel uses
+ * the Java Vector API to transform several pixels at once. It is compiled
+ * separately and is only available if the JVM was started with
+ * --add-modules jdk.incubator.vector. Both give identical results.
+ *
+ * In every method, forceAlpha is 0 to keep the alpha channel of each source
+ * pixel, or 0xFF000000 to make the alpha channel 0xFF. The source and
+ * destination can be the same array if the ranges are identical.
+ *
+ * @author James Schmitz
+ *
+ */
+public interface BlendKernel {
+
+    /**
+     * Blend one color with its transformed color.
+     *
+     * @param color
+     * @param map
+     *                         transformed color
+     * @param amount
+     * @param amountComplement
+     *                         1 - amount
+     * @param forceAlpha
+     * @return
+     */
+    int blend(int color, int map, float amount, float amountComplement,
+            int forceAlpha);
+
+    /**
+     * Blend source pixels with transformed colors.
+     *
+     * Each channel is (int) (source * amountComplement + mapped * amount).
+     *
+     * @param src
+     * @param srcOffset
+     * @param mapped
+     *                         transformed colors
+     * @param mappedOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     * @param amount
+     * @param amountComplement
+     *                         1 - amount
+     * @param forceAlpha
+     */
+    void blend(int[] src, int srcOffset, int[] mapped, int mappedOffset,
+            int[] dst, int dstOffset, int length, float amount,
+            float amountComplement, int forceAlpha);
+
+    /**
+     * Look up each source pixel in a colorMap and blend it with the
+     * transformed color.
+     *
+     * @param colorMap
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     * @param amount
+     * @param amountComplement
+     *                         1 - amount
+     * @param forceAlpha
+     */
+    void lookupBlend(int[] colorMap, int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length, float amount, float amountComplement,
+            int forceAlpha);
+
+    /**
+     * Look up each source pixel in a colorMap.
+     *
+     * @param colorMap
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     * @param forceAlpha
+     */
+    void lookup(int[] colorMap, int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length, int forceAlpha);
+
+    /**
+     * The scalar kernel. This is always available.
+     *
+     * @return
+     */
+    static BlendKernel scalar() {
+        return BlendKernels.SCALAR;
+    }
+
+    /**
+     * Kernel that blends with integer math only. The amount is rounded to a
+     * multiple of 1/256 and each channel is
+     * (source * (256 - a) + mapped * a) >> 8, where a is the rounded amount
+     * times 256. The result can be 1 less or 1 more than the other kernels
+     * for each channel.
+     *
+     * @return
+     */
+    static BlendKernel fixedPoint() {
+        return BlendKernels.FIXED_POINT;
+    }
+
+    /**
+     * The Vector API kernel.
+     *
+     * @return the kernel, or null if the jdk.incubator.vector module is not
+     *         available.
+     */
+    static BlendKernel vector() {
+        return BlendKernels.VECTOR;
+    }
+
+    /**
+     * @return the vector kernel if it is available, otherwise the scalar
+     *         kernel.
+     */
+    static BlendKernel preferred() {
+        BlendKernel vector = vector();
+
+        return vector == null ? scalar() : vector;
+    }
+}
@@ -0,0 +1,35 @@
+package colorblind.generators.util;
+
+/**
+ * Holds the BlendKernel implementations.
+ *
+ * @author James Schmitz
+ *
+ */
+final class BlendKernels {
+
+    static final BlendKernel SCALAR = new ScalarBlendKernel();
+    static final BlendKernel VECTOR = loadVectorKernel();
+    static final BlendKernel FIXED_POINT = new FixedPointBlendKernel();
+
+    private BlendKernels() {
+    }
+
+    /**
+     * VectorBlendKernel is loaded by name so that this library still works
+     * when the jdk.incubator.vector module or the class is missing.
+     */
+    private static BlendKernel loadVectorKernel() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return null;
+        }
+
+        try {
+            return (BlendKernel) Class
+                    .forName("colorblind.generators.util.VectorBlendKernel")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package colorblind.generators.util;
+
+import java.util.Arrays;
+
+/**
+ * Small cache of recently transformed colors for images with few distinct
+ * colors.
+ *
+ * Flat graphics, charts and user interfaces often use a few hundred colors,
+ * usually in long runs of identical pixels. A pixel with the same color as
+ * the previous pixel reuses its transformed color, and other pixels are
+ * looked up in a direct mapped cache of 1024 colors. The cache fits in the L1
+ * cache, unlike a 64 MB lookup table.
+ *
+ * Pixels are processed in chunks of at most CHUNK_SIZE. lookup() fills in
+ * every pixel it finds in the cache and collects the others. The caller
+ * transforms those with the normal code and passes the results to store().
+ *
+ * A cache must only be used by one thread at a time.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ColorCache {
+
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final int BITS = 10;
+
+    private final int[] keys = new int[1 << BITS];
+    private final int[] values = new int[1 << BITS];
+    // an entry is valid if its stamp is the current stamp, and is waiting for
+    // store() if its stamp is minus the current stamp. changing the stamp
+    // empties the cache without clearing the arrays.
+    private final int[] stamps = new int[1 << BITS];
+    private int stamp = 1;
+
+    private Object owner;
+    private long ownerVersion;
+
+    // the distinct colors that were not found, and for each pixel that was
+    // not found, its index and which of those colors it is.
+    private final int[] missColors = new int[CHUNK_SIZE];
+    private final int[] missResults = new int[CHUNK_SIZE];
+    private final int[] missPixels = new int[CHUNK_SIZE];
+    private final int[] missEntries = new int[CHUNK_SIZE];
+    private int missColorCount;
+    private int missPixelCount;
+
+    /**
+     * Empty the cache unless it was filled by the same owner with the same
+     * version. The owner is whatever computes the transformed colors, and the
+     * version must change whenever the transformed colors could change.
+     *
+     * @param owner
+     * @param version
+     */
+    public void validate(Object owner, long version) {
+        if (owner != this.owner || version != ownerVersion) {
+            this.owner = owner;
+            this.ownerVersion = version;
+            clear();
+        }
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void clear() {
+        if (stamp == Integer.MAX_VALUE) {
+            // start over so old entries can't look valid.
+            Arrays.fill(stamps, 0);
+            stamp = 0;
+        }
+        stamp++;
+        missColorCount = 0;
+        missPixelCount = 0;
+    }
+
+    /**
+     * Fill in the transformed colors of every pixel found in the cache.
+     *
+     * The source and destination can be the same array if the ranges are
+     * identical.
+     *
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     *                  at most CHUNK_SIZE
+     * @return number of distinct colors that were not found. Transform that
+     *         many entries of getMissColors() into getMissResults() and then
+     *         call store().
+     */
+    public int lookup(int[] src, int srcOffset, int[] dst, int dstOffset,
+            int length) {
+        if (missColorCount > 0) {
+            // store() was not called after the last lookup.
+            clear();
+        }
+        if (length == 0) {
+            return 0;
+        }
+
+        int[] keys = this.keys;
+        int[] values = this.values;
+        int[] stamps = this.stamps;
+        int stamp = this.stamp;
+
+        int colorCount = 0;
+        int pixelCount = 0;
+
+        // the previous pixel's color, and its transformed color if it was
+        // found or its miss entry if it was not. lastEntry is -1 if it was
+        // found.
+        int lastColor = ~src[srcOffset];
+        int lastResult = 0;
+        int lastEntry = -1;
+
+        for (int i = 0; i < length; ++i) {
+            int color = src[srcOffset + i];
+
+            if (color != lastColor) {
+                lastColor = color;
+
+                int slot = (color * 0x9E3779B1) >>> (32 - BITS);
+                if (keys[slot] == color && stamps[slot] == stamp) {
+                    lastResult = values[slot];
+                    lastEntry = -1;
+                } else if (keys[slot] == color && stamps[slot] == -stamp) {
+                    // not found earlier in this chunk.
+                    lastEntry = values[slot];
+                } else {
+                    lastEntry = colorCount++;
+                    missColors[lastEntry] = color;
+                    keys[slot] = color;
+                    values[slot] = lastEntry;
+                    stamps[slot] = -stamp;
+                }
+            }
+
+            if (lastEntry < 0) {
+                dst[dstOffset + i] = lastResult;
+            } else {
+                missPixels[pixelCount] = i;
+                missEntries[pixelCount] = lastEntry;
+                pixelCount++;
+            }
+        }
+
+        missColorCount = colorCount;
+        missPixelCount = pixelCount;
+
+        return colorCount;
+    }
+
+    /**
+     * Colors that were not found by the last call to lookup().
+     *
+     * @return
+     */
+    public int[] getMissColors() {
+        return missColors;
+    }
+
+    /**
+     * Array to write the transformed colors of getMissColors() to.
+     *
+     * @return
+     */
+    public int[] getMissResults() {
+        return missResults;
+    }
+
+    /**
+     * Write the transformed colors of the pixels that were not found to dst
+     * and add them to the cache.
+     *
+     * @param dst
+     * @param dstOffset
+     *                  same as the call to lookup()
+     */
+    public void store(int[] dst, int dstOffset) {
+        for (int i = 0; i < missPixelCount; ++i) {
+            dst[dstOffset + missPixels[i]] = missResults[missEntries[i]];
+        }
+
+        for (int i = 0; i < missColorCount; ++i) {
+            int color = missColors[i];
+            int slot = (color * 0x9E3779B1) >>> (32 - BITS);
+
+            keys[slot] = color;
+            values[slot] = missResults[i];
+            stamps[slot] = stamp;
+        }
+
+        missColorCount = 0;
+        missPixelCount = 0;
+    }
+}
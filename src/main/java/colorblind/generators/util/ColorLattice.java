@@ -0,0 +1,418 @@
+package colorblind.generators.util;
+
+import java.util.stream.IntStream;
+
+import colorblind.ColorUtilities;
+
+/**
+ * Compact alternative to a full colorMap lookup table.
+ *
+ * A full colorMap has an entry for all 256^3 colors and uses 64 MB of RAM.
+ * Random accesses into a table that large are not cache friendly. A lattice
+ * stores the transformed color for a size^3 grid of colors and reconstructs
+ * every other color by interpolating between the nearest grid nodes.
+ *
+ * A 17^3 lattice uses about 20 KB, a 33^3 lattice about 140 KB, and a 65^3
+ * lattice about 1 MB. Bigger lattices are more accurate. Use
+ * measureAccuracy() to compare a lattice to the full lookup table.
+ *
+ * The grid nodes are at integer color values so every node is exactly equal
+ * to the full lookup table. The interpolation weights use 8 bit fixed point
+ * math so the red and blue channels can be interpolated together.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ColorLattice {
+
+    public static final int SMALL = 17;
+    public static final int MEDIUM = 33;
+    public static final int LARGE = 65;
+
+    /**
+     * Largest lattice size. Node offsets are packed into 23 bits, which is
+     * only enough for the offset of the last red node up to this size.
+     */
+    public static final int MAX_SIZE = 203;
+
+    public enum Interpolation {
+        /**
+         * Interpolate between the 4 corners of the tetrahedron containing the
+         * color. This is faster and usually more accurate.
+         */
+        TETRAHEDRAL,
+        /**
+         * Interpolate between all 8 corners of the cube containing the color.
+         */
+        TRILINEAR
+    }
+
+    private final int size;
+    private final Interpolation interpolation;
+
+    // transformed colors for each node, indexed by (r * size + g) * size + b
+    private final int[] nodes;
+
+    // node offset and interpolation weight for each channel value, packed
+    // into one int as (offset << 9) | weight. the weights are in the range
+    // [0, 256].
+    private final int[] redNodes;
+    private final int[] greenNodes;
+    private final int[] blueNodes;
+
+    private final int redStride;
+    private final int greenStride;
+    private final int diagonalStride;
+
+    /**
+     * Create a lattice from its transformed node colors.
+     *
+     * @param size
+     *                      number of nodes along each side of the lattice
+     * @param interpolation
+     * @param nodes
+     *                      transformed colors for the colors returned by
+     *                      nodeColors(size), in the same order
+     */
+    public ColorLattice(int size, Interpolation interpolation, int[] nodes) {
+        checkSize(size);
+        if (nodes.length != size * size * size) {
+            throw new RuntimeException("Lattice of size " + size + " needs "
+                    + size * size * size + " nodes");
+        }
+
+        this.size = size;
+        this.interpolation = interpolation;
+        this.nodes = nodes;
+        this.redStride = size * size;
+        this.greenStride = size;
+        this.diagonalStride = size * size + size + 1;
+
+        redNodes = new int[256];
+        greenNodes = new int[256];
+        blueNodes = new int[256];
+
+        for (int i = 0; i < size - 1; ++i) {
+            int lower = nodePosition(i, size);
+            int upper = nodePosition(i + 1, size);
+            int span = upper - lower;
+
+            for (int c = lower; c <= upper; ++c) {
+                int weight = ((c - lower) * 256 + span / 2) / span;
+                redNodes[c] = (i * redStride) << 9 | weight;
+                greenNodes[c] = (i * greenStride) << 9 | weight;
+                blueNodes[c] = i << 9 | weight;
+            }
+        }
+    }
+
+    private static void checkSize(int size) {
+        if (size < 2 || size > MAX_SIZE) {
+            throw new RuntimeException("Lattice size must be in range [2, "
+                    + MAX_SIZE + "]");
+        }
+    }
+
+    /**
+     * Channel value of node i.
+     *
+     * @param i
+     * @param size
+     * @return
+     */
+    private static int nodePosition(int i, int size) {
+        return (i * 255 + (size - 1) / 2) / (size - 1);
+    }
+
+    /**
+     * The colors that must be transformed to create a lattice. Transform each
+     * of them and pass the results to the constructor.
+     *
+     * @param size
+     *             number of nodes along each side of the lattice
+     * @return
+     */
+    public static int[] nodeColors(int size) {
+        checkSize(size);
+
+        int[] colors = new int[size * size * size];
+
+        int index = 0;
+        for (int r = 0; r < size; ++r) {
+            for (int g = 0; g < size; ++g) {
+                for (int b = 0; b < size; ++b) {
+                    colors[index++] = 0xFF000000
+                            | (nodePosition(r, size) << 16)
+                            | (nodePosition(g, size) << 8)
+                            | nodePosition(b, size);
+                }
+            }
+        }
+
+        return colors;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    /**
+     * @return approximate memory used by this lattice, in bytes.
+     */
+    public long getMemoryBytes() {
+        return 4L * (nodes.length + 3 * 256);
+    }
+
+    /**
+     * Transform one color. The result has 0xFF as the alpha channel.
+     *
+     * @param color
+     * @return
+     */
+    public int lookup(int color) {
+        if (interpolation == Interpolation.TETRAHEDRAL) {
+            return tetrahedral(color);
+        } else {
+            return trilinear(color);
+        }
+    }
+
+    /**
+     * Transform many colors. The results have 0xFF as the alpha channel.
+     *
+     * It is OK for colors and out to be the same array.
+     *
+     * @param colors
+     * @param colorsOffset
+     * @param out
+     * @param outOffset
+     * @param length
+     */
+    public void lookup(int[] colors, int colorsOffset, int[] out,
+            int outOffset, int length) {
+        if (interpolation == Interpolation.TETRAHEDRAL) {
+            for (int i = 0; i < length; ++i) {
+                out[outOffset + i] = tetrahedral(colors[colorsOffset + i]);
+            }
+        } else {
+            for (int i = 0; i < length; ++i) {
+                out[outOffset + i] = trilinear(colors[colorsOffset + i]);
+            }
+        }
+    }
+
+    /**
+     * Create a lattice between this one and another lattice of the same size
+     * by interpolating between their node colors. This is much faster than
+     * transforming the node colors again.
+     *
+     * @param other
+     *               lattice with the same size and interpolation
+     * @param weight
+     *               number in range [0, 1]. 0 is this lattice and 1 is other.
+     * @return
+     */
+    public ColorLattice blend(ColorLattice other, float weight) {
+        if (other.size != size || other.interpolation != interpolation) {
+            throw new RuntimeException(
+                    "Only lattices with the same size and interpolation can be blended");
+        }
+
+        int w = Math.round(ColorUtilities.clip(weight) * 256);
+        int[] blended = new int[nodes.length];
+        for (int i = 0; i < nodes.length; ++i) {
+            blended[i] = 0xFF000000 | lerp(nodes[i], other.nodes[i], w);
+        }
+
+        return new ColorLattice(size, interpolation, blended);
+    }
+
+    private int tetrahedral(int color) {
+        int pr = redNodes[(color >> 16) & 0xFF];
+        int pg = greenNodes[(color >> 8) & 0xFF];
+        int pb = blueNodes[color & 0xFF];
+
+        int fr = pr & 0x1FF;
+        int fg = pg & 0x1FF;
+        int fb = pb & 0x1FF;
+        int base = (pr >>> 9) + (pg >>> 9) + (pb >>> 9);
+
+        // pick the tetrahedron containing the color. it always has the
+        // corners at base and base + diagonalStride, plus two more. the
+        // weights for the four corners always sum to 256.
+        int o1, o2, w0, w2, w3;
+        if (fr >= fg) {
+            if (fg >= fb) {
+                o1 = redStride;
+                o2 = redStride + greenStride;
+                w0 = 256 - fr;
+                w2 = fg - fb;
+                w3 = fb;
+            } else if (fr >= fb) {
+                o1 = redStride;
+                o2 = redStride + 1;
+                w0 = 256 - fr;
+                w2 = fb - fg;
+                w3 = fg;
+            } else {
+                o1 = 1;
+                o2 = redStride + 1;
+                w0 = 256 - fb;
+                w2 = fr - fg;
+                w3 = fg;
+            }
+        } else {
+            if (fb > fg) {
+                o1 = 1;
+                o2 = greenStride + 1;
+                w0 = 256 - fb;
+                w2 = fg - fr;
+                w3 = fr;
+            } else if (fb > fr) {
+                o1 = greenStride;
+                o2 = greenStride + 1;
+                w0 = 256 - fg;
+                w2 = fb - fr;
+                w3 = fr;
+            } else {
+                o1 = greenStride;
+                o2 = redStride + greenStride;
+                w0 = 256 - fg;
+                w2 = fr - fb;
+                w3 = fb;
+            }
+        }
+        int w1 = 256 - w0 - w2 - w3;
+
+        int c000 = nodes[base];
+        int c1 = nodes[base + o1];
+        int c2 = nodes[base + o2];
+        int c111 = nodes[base + diagonalStride];
+
+        // red and blue are interpolated together in one int, green in another.
+        int rb = (c000 & 0x00FF00FF) * w0 + (c1 & 0x00FF00FF) * w1
+                + (c2 & 0x00FF00FF) * w2 + (c111 & 0x00FF00FF) * w3;
+        int gg = (c000 & 0x0000FF00) * w0 + (c1 & 0x0000FF00) * w1
+                + (c2 & 0x0000FF00) * w2 + (c111 & 0x0000FF00) * w3;
+
+        return 0xFF000000 | (((rb + 0x00800080) >>> 8) & 0x00FF00FF)
+                | (((gg + 0x00008000) >>> 8) & 0x0000FF00);
+    }
+
+    private int trilinear(int color) {
+        int pr = redNodes[(color >> 16) & 0xFF];
+        int pg = greenNodes[(color >> 8) & 0xFF];
+        int pb = blueNodes[color & 0xFF];
+
+        int fr = pr & 0x1FF;
+        int fg = pg & 0x1FF;
+        int fb = pb & 0x1FF;
+        int base = (pr >>> 9) + (pg >>> 9) + (pb >>> 9);
+
+        // interpolate along blue, then green, then red.
+        int c00 = lerp(nodes[base], nodes[base + 1], fb);
+        int c01 = lerp(nodes[base + greenStride], nodes[base + greenStride
+                + 1], fb);
+        int c10 = lerp(nodes[base + redStride], nodes[base + redStride + 1],
+                fb);
+        int c11 = lerp(nodes[base + redStride + greenStride], nodes[base
+                + redStride + greenStride + 1], fb);
+
+        int c0 = lerp(c00, c01, fg);
+        int c1 = lerp(c10, c11, fg);
+
+        return 0xFF000000 | lerp(c0, c1, fr);
+    }
+
+    private static int lerp(int c0, int c1, int w) {
+        int rb = (c0 & 0x00FF00FF) * (256 - w) + (c1 & 0x00FF00FF) * w;
+        int gg = (c0 & 0x0000FF00) * (256 - w) + (c1 & 0x0000FF00) * w;
+
+        return (((rb + 0x00800080) >>> 8) & 0x00FF00FF)
+                | (((gg + 0x00008000) >>> 8) & 0x0000FF00);
+    }
+
+    /**
+     * Color difference between a lattice and a full lookup table.
+     */
+    public static class Accuracy {
+
+        /**
+         * Largest CIE76 delta E for any color.
+         */
+        public final float maxDeltaE;
+
+        /**
+         * Mean CIE76 delta E over all colors.
+         */
+        public final float meanDeltaE;
+
+        /**
+         * Color with the largest delta E.
+         */
+        public final int worstColor;
+
+        public Accuracy(float maxDeltaE, float meanDeltaE, int worstColor) {
+            this.maxDeltaE = maxDeltaE;
+            this.meanDeltaE = meanDeltaE;
+            this.worstColor = worstColor;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("max delta E: %.3f, mean delta E: %.4f",
+                    maxDeltaE, meanDeltaE);
+        }
+    }
+
+    /**
+     * Compare this lattice to a full colorMap lookup table for every color.
+     *
+     * This is slow. It is meant to help pick a lattice size, not to be called
+     * every frame.
+     *
+     * @param colorMap
+     *                 full lookup table computed with the same settings
+     * @return
+     */
+    public Accuracy measureAccuracy(int[] colorMap) {
+        double[] sums = new double[256];
+        float[] maxes = new float[256];
+        int[] worst = new int[256];
+
+        IntStream.range(0, 256).parallel().forEach(red -> {
+            double sum = 0;
+            float max = -1;
+            int start = red << 16;
+
+            for (int color = start; color < start + 256 * 256; ++color) {
+                float deltaE = ColorUtilities.deltaE(colorMap[color],
+                        lookup(color));
+                sum += deltaE;
+                if (deltaE > max) {
+                    max = deltaE;
+                    worst[red] = color;
+                }
+            }
+
+            sums[red] = sum;
+            maxes[red] = max;
+        });
+
+        double sum = 0;
+        int worstIndex = 0;
+        for (int red = 0; red < 256; ++red) {
+            sum += sums[red];
+            if (maxes[red] > maxes[worstIndex]) {
+                worstIndex = red;
+            }
+        }
+
+        return new Accuracy(maxes[worstIndex], (float) (sum / (256 * 256 * 256)),
+                worst[worstIndex]);
+    }
+}
@@ -0,0 +1,254 @@
+package colorblind.generators.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Disk cache for colorMap lookup tables.
+ *
+ * Computing a lookup table takes a noticeable amount of time but the inputs
+ * rarely change. This class stores computed tables in a cache directory so
+ * that later runs can load them instead of computing them again. Each table is
+ * stored under a key derived from a fingerprint of everything that was used to
+ * compute it.
+ *
+ * The cache is disabled until a directory is set with setDirectory() or with
+ * the colorblind.lutCache system property.
+ *
+ * Files are written to a temporary file and then renamed so a crash can never
+ * leave a partial table behind. Tables are loaded by memory mapping the file.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ColorMapCache {
+
+    /**
+     * Increment this whenever the lookup table calculations change so old
+     * cache files are no longer used.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x43424C54; // "CBLT"
+    private static final int HEADER_BYTES = 16;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    private static final String SUFFIX = ".lut";
+
+    // set by the sketch thread and read by the threads computing tables.
+    private static volatile File directory = initialDirectory();
+
+    private static File initialDirectory() {
+        String property = System.getProperty("colorblind.lutCache");
+
+        return property == null ? null : new File(property);
+    }
+
+    /**
+     * Set the cache directory. Pass null to disable the cache.
+     *
+     * @param directory
+     */
+    public static void setDirectory(File directory) {
+        ColorMapCache.directory = directory;
+    }
+
+    public static void setDirectory(String directory) {
+        setDirectory(directory == null ? null : new File(directory));
+    }
+
+    public static File getDirectory() {
+        return directory;
+    }
+
+    public static boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Create a cache key from the parameters used to compute a lookup table.
+     *
+     * The parameters are converted to strings, so they should all have a
+     * toString() method that includes everything about them that matters.
+     *
+     * @param parameters
+     * @return hex encoded SHA-256 hash
+     */
+    public static String fingerprint(Object... parameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+
+        digest.update(Integer.toString(FORMAT_VERSION).getBytes(
+                StandardCharsets.UTF_8));
+        for (Object parameter : parameters) {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(parameter).getBytes(
+                    StandardCharsets.UTF_8));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Load a lookup table from the cache.
+     *
+     * @param key
+     * @return the lookup table, or null if it is not in the cache or the
+     *         cache file is not valid.
+     */
+    public static int[] load(String key) {
+        File dir = directory;
+        if (dir == null) {
+            return null;
+        }
+
+        Path path = new File(dir, key + SUFFIX).toPath();
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                return invalid(path);
+            }
+
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            int length = buffer.getInt(8);
+            int checksum = buffer.getInt(12);
+
+            if (magic != MAGIC || version != FORMAT_VERSION || length < 0
+                    || size != HEADER_BYTES + 4L * length) {
+                return invalid(path);
+            }
+
+            ByteBuffer data = buffer.position(HEADER_BYTES).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return invalid(path);
+            }
+
+            int[] colorMap = new int[length];
+            data.asIntBuffer().get(colorMap);
+
+            return colorMap;
+        } catch (IOException e) {
+            System.err.println("Unable to read lookup table from " + path
+                    + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static int[] invalid(Path path) {
+        System.err.println("Ignoring invalid lookup table cache file " + path);
+
+        return null;
+    }
+
+    /**
+     * Store a lookup table in the cache.
+     *
+     * The table is written to a temporary file in the cache directory and then
+     * moved into place. Errors are reported but otherwise ignored because the
+     * cache is only an optimization.
+     *
+     * @param key
+     * @param colorMap
+     */
+    public static void store(String key, int[] colorMap) {
+        File dir = directory;
+        if (dir == null) {
+            return;
+        }
+
+        Path target = new File(dir, key + SUFFIX).toPath();
+        Path temp = null;
+
+        try {
+            Files.createDirectories(dir.toPath());
+            temp = Files.createTempFile(dir.toPath(), key, ".tmp");
+
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(
+                        WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                IntBuffer ints = buffer.asIntBuffer();
+                CRC32 crc = new CRC32();
+
+                // leave room for the header, which is written last because it
+                // contains the checksum.
+                channel.position(HEADER_BYTES);
+                for (int i = 0; i < colorMap.length; i += ints.capacity()) {
+                    int count = Math.min(ints.capacity(), colorMap.length - i);
+                    ints.clear();
+                    ints.put(colorMap, i, count);
+                    buffer.clear().limit(count * 4);
+                    crc.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION)
+                        .putInt(colorMap.length).putInt((int) crc.getValue());
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+
+                channel.force(true);
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        } catch (IOException e) {
+            System.err.println("Unable to write lookup table to " + target
+                    + ": " + e.getMessage());
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // nothing else can be done
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package colorblind.generators.util;
+
+/**
+ * Transforms colors in bulk.
+ *
+ * Each transformed color must only depend on the input color so that colors
+ * can be computed independently and in any order.
+ *
+ * @author James Schmitz
+ *
+ */
+public interface ColorMapKernel {
+    /**
+     * Transform length colors starting at colors[colorsOffset] and write them
+     * to out starting at out[outOffset].
+     *
+     * The alpha channel of the input colors is ignored and the transformed
+     * colors have 0xFF as their alpha channel. It is OK for colors and out to
+     * be the same array.
+     *
+     * @param colors
+     * @param colorsOffset
+     * @param out
+     * @param outOffset
+     * @param length
+     */
+    void compute(int[] colors, int colorsOffset, int[] out, int outOffset,
+            int length);
+}
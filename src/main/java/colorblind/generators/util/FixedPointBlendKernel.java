@@ -0,0 +1,74 @@
+package colorblind.generators.util;
+
+/**
+ * BlendKernel that blends with integer math only.
+ *
+ * The amount is rounded to the nearest multiple of 1/256. Red and blue are
+ * blended together in one int and green in another, so each pair of colors
+ * takes two multiplies for the source and two for the transformed color.
+ *
+ * Rounding the amount changes each channel by at most 0.5 before truncation,
+ * so every channel is within 1 of the floating point kernels.
+ *
+ * @author James Schmitz
+ *
+ */
+public class FixedPointBlendKernel extends ScalarBlendKernel {
+
+    /**
+     * @param amount
+     * @return amount rounded to an integer in the range [0, 256].
+     */
+    public static int quantize(float amount) {
+        return Math.round(amount * 256);
+    }
+
+    @Override
+    public int blend(int color, int map, float amount,
+            float amountComplement, int forceAlpha) {
+        int weight = quantize(amount);
+
+        return blendColor(color, map, weight, 256 - weight, forceAlpha);
+    }
+
+    @Override
+    public void blend(int[] src, int srcOffset, int[] mapped,
+            int mappedOffset, int[] dst, int dstOffset, int length,
+            float amount, float amountComplement, int forceAlpha) {
+        int weight = quantize(amount);
+        int complement = 256 - weight;
+
+        for (int i = 0; i < length; ++i) {
+            dst[dstOffset + i] = blendColor(src[srcOffset + i],
+                    mapped[mappedOffset + i], weight, complement, forceAlpha);
+        }
+    }
+
+    @Override
+    public void lookupBlend(int[] colorMap, int[] src, int srcOffset,
+            int[] dst, int dstOffset, int length, float amount,
+            float amountComplement, int forceAlpha) {
+        int weight = quantize(amount);
+        int complement = 256 - weight;
+
+        for (int i = 0; i < length; ++i) {
+            int color = src[srcOffset + i];
+            dst[dstOffset + i] = blendColor(color,
+                    colorMap[color & 0x00FFFFFF], weight, complement,
+                    forceAlpha);
+        }
+    }
+
+    private static int blendColor(int color, int map, int weight,
+            int complement, int forceAlpha) {
+        // each channel is at most 255 * 256, so it fits in 16 bits and red
+        // and blue don't overlap.
+        int rb = (color & 0x00FF00FF) * complement + (map & 0x00FF00FF)
+                * weight;
+        int gg = (color & 0x0000FF00) * complement + (map & 0x0000FF00)
+                * weight;
+
+        return ((color | forceAlpha) & 0xFF000000)
+                | ((rb >>> 8) & 0x00FF00FF) | ((gg >>> 8) & 0x0000FF00);
+    }
+}
@@ -44,6 +44,10 @@ public class Matrix {
         this.r3c3 = m.r3c3;
     }
 
+    public static Matrix identity() {
+        return new Matrix(1, 0, 0, 0, 1, 0, 0, 0, 1);
+    }
+
     public Vector rightMult(Vector v) {
         Vector out = new Vector();
 
@@ -54,4 +58,58 @@ public class Matrix {
         return out;
     }
 
+    /**
+     * Matrix multiplication.
+     * 
+     * @param that
+     * @return this * that
+     */
+    public Matrix mult(Matrix that) {
+        return new Matrix(
+                r1c1 * that.r1c1 + r1c2 * that.r2c1 + r1c3 * that.r3c1,
+                r1c1 * that.r1c2 + r1c2 * that.r2c2 + r1c3 * that.r3c2,
+                r1c1 * that.r1c3 + r1c2 * that.r2c3 + r1c3 * that.r3c3,
+                r2c1 * that.r1c1 + r2c2 * that.r2c1 + r2c3 * that.r3c1,
+                r2c1 * that.r1c2 + r2c2 * that.r2c2 + r2c3 * that.r3c2,
+                r2c1 * that.r1c3 + r2c2 * that.r2c3 + r2c3 * that.r3c3,
+                r3c1 * that.r1c1 + r3c2 * that.r2c1 + r3c3 * that.r3c1,
+                r3c1 * that.r1c2 + r3c2 * that.r2c2 + r3c3 * that.r3c2,
+                r3c1 * that.r1c3 + r3c2 * that.r2c3 + r3c3 * that.r3c3);
+    }
+
+    public Matrix add(Matrix that) {
+        return new Matrix(r1c1 + that.r1c1, r1c2 + that.r1c2, r1c3 + that.r1c3,
+                r2c1 + that.r2c1, r2c2 + that.r2c2, r2c3 + that.r2c3,
+                r3c1 + that.r3c1, r3c2 + that.r3c2, r3c3 + that.r3c3);
+    }
+
+    public Matrix sub(Matrix that) {
+        return new Matrix(r1c1 - that.r1c1, r1c2 - that.r1c2, r1c3 - that.r1c3,
+                r2c1 - that.r2c1, r2c2 - that.r2c2, r2c3 - that.r2c3,
+                r3c1 - that.r3c1, r3c2 - that.r3c2, r3c3 - that.r3c3);
+    }
+
+    /**
+     * @param that
+     * @param t
+     *             number in range [0, 1]
+     * @return this * (1 - t) + that * t
+     */
+    public Matrix lerp(Matrix that, float t) {
+        float s = 1 - t;
+
+        return new Matrix(r1c1 * s + that.r1c1 * t, r1c2 * s + that.r1c2 * t,
+                r1c3 * s + that.r1c3 * t, r2c1 * s + that.r2c1 * t, r2c2 * s
+                        + that.r2c2 * t, r2c3 * s + that.r2c3 * t, r3c1 * s
+                        + that.r3c1 * t, r3c2 * s + that.r3c2 * t, r3c3 * s
+                        + that.r3c3 * t);
+    }
+
+    @Override
+    public String toString() {
+        return "Matrix(" + r1c1 + ", " + r1c2 + ", " + r1c3 + "; " + r2c1
+                + ", " + r2c2 + ", " + r2c3 + "; " + r3c1 + ", " + r3c2 + ", "
+                + r3c3 + ")";
+    }
+
 }
@@ -0,0 +1,234 @@
+package colorblind.generators.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Persistent pool of threads for transforming the pixels of a frame in
+ * parallel.
+ *
+ * The pixels are split into stripes that the threads take turns claiming
+ * until they are all done. The threads wait between frames and are woken up
+ * for each new frame, so nothing is allocated or submitted per frame. The
+ * thread calling run() also transforms stripes.
+ *
+ * @author James Schmitz
+ *
+ */
+public class PixelWorkerPool {
+
+    /**
+     * Work to be done on a range of pixels.
+     */
+    public interface Task {
+        /**
+         * Process the pixels in [from, to). This will be called from several
+         * threads at the same time with different ranges.
+         *
+         * @param from
+         * @param to
+         */
+        void run(int from, int to);
+    }
+
+    private static final Map<Integer, PixelWorkerPool> sharedPools = new HashMap<>();
+
+    private final Thread[] workers;
+
+    // the current job. these are written before generation is incremented so
+    // the workers see them when they see the new generation.
+    private Task task;
+    private int length;
+    private int stripeSize;
+    private Thread submitter;
+    private volatile int generation;
+    private volatile boolean shutdown;
+    private volatile Throwable failure;
+
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    // the pool whose task the current thread is running, if any.
+    private static final ThreadLocal<PixelWorkerPool> CURRENT_POOL = new ThreadLocal<>();
+    // number of workers that have not finished the current generation.
+    private final AtomicInteger pendingWorkers = new AtomicInteger();
+
+    /**
+     * Create a pool.
+     *
+     * @param parallelism
+     *                    total number of threads working on each frame,
+     *                    including the thread that calls run().
+     */
+    public PixelWorkerPool(int parallelism) {
+        if (parallelism < 1) {
+            throw new RuntimeException("Parallelism must be at least 1");
+        }
+
+        workers = new Thread[parallelism - 1];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread(this::workerLoop, "ColorBlindness worker "
+                    + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Get a pool that is shared by every generator using the same
+     * parallelism.
+     *
+     * @param parallelism
+     * @return
+     */
+    public static PixelWorkerPool shared(int parallelism) {
+        synchronized (sharedPools) {
+            PixelWorkerPool pool = sharedPools.get(parallelism);
+            if (pool == null || pool.shutdown) {
+                pool = new PixelWorkerPool(parallelism);
+                sharedPools.put(parallelism, pool);
+            }
+
+            return pool;
+        }
+    }
+
+    public int getParallelism() {
+        return workers.length + 1;
+    }
+
+    /**
+     * Split [0, length) into stripes and run the task on all of them. This
+     * returns when every stripe is done.
+     *
+     * @param task
+     * @param length
+     *                   number of pixels
+     * @param stripeSize
+     *                   number of pixels in each stripe
+     */
+    public void run(Task task, int length, int stripeSize) {
+        if (CURRENT_POOL.get() == this) {
+            // a task running on this pool split its own work. the other
+            // threads may be waiting for this one, so do it on this thread.
+            for (int from = 0; from < length; from += stripeSize) {
+                task.run(from, Math.min(length, from + stripeSize));
+            }
+            return;
+        }
+
+        runOnWorkers(task, length, stripeSize);
+    }
+
+    private synchronized void runOnWorkers(Task task, int length,
+            int stripeSize) {
+        if (shutdown) {
+            throw new RuntimeException("PixelWorkerPool has been shut down");
+        }
+
+        this.task = task;
+        this.length = length;
+        this.stripeSize = stripeSize;
+        this.submitter = Thread.currentThread();
+        failure = null;
+        nextStripe.set(0);
+        pendingWorkers.set(workers.length);
+
+        // publish the job and wake up the workers.
+        generation++;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+
+        PixelWorkerPool previous = CURRENT_POOL.get();
+        CURRENT_POOL.set(this);
+        try {
+            processStripes();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            CURRENT_POOL.set(previous);
+        }
+
+        while (pendingWorkers.get() > 0) {
+            LockSupport.park(this);
+        }
+
+        this.task = null;
+
+        Throwable t = failure;
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Stop the worker threads. The pool can't be used after this.
+     *
+     * This waits for a frame being transformed by another thread to finish.
+     */
+    public void shutdown() {
+        if (CURRENT_POOL.get() == this) {
+            // called by a task, while the submitter holds the lock and waits
+            // for this thread. the workers still finish the current job.
+            stop();
+            return;
+        }
+
+        synchronized (this) {
+            stop();
+        }
+    }
+
+    private void stop() {
+        shutdown = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void processStripes() {
+        int stripes = (length + stripeSize - 1) / stripeSize;
+
+        int stripe;
+        // stop early if another thread failed.
+        while (failure == null
+                && (stripe = nextStripe.getAndIncrement()) < stripes) {
+            int from = stripe * stripeSize;
+            task.run(from, Math.min(length, from + stripeSize));
+        }
+    }
+
+    private void workerLoop() {
+        // the pool starts at generation 0. a worker may start after the
+        // first job was published, so don't read generation here.
+        int seenGeneration = 0;
+        CURRENT_POOL.set(this);
+
+        while (true) {
+            // finish a job that was published before the pool was shut down,
+            // so its submitter isn't left waiting for this worker.
+            if (generation == seenGeneration) {
+                if (shutdown) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+            seenGeneration = generation;
+
+            try {
+                processStripes();
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            }
+
+            if (pendingWorkers.decrementAndGet() == 0) {
+                LockSupport.unpark(submitter);
+            }
+        }
+    }
+}
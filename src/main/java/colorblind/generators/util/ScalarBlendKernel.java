@@ -0,0 +1,85 @@
+package colorblind.generators.util;
+
+/**
+ * BlendKernel that transforms one pixel at a time.
+ *
+ * @author James Schmitz
+ *
+ */
+public class ScalarBlendKernel implements BlendKernel {
+
+    @Override
+    public int blend(int color, int map, float amount,
+            float amountComplement, int forceAlpha) {
+        return blendColor(color, map, amount, amountComplement, forceAlpha);
+    }
+
+    @Override
+    public void blend(int[] src, int srcOffset, int[] mapped,
+            int mappedOffset, int[] dst, int dstOffset, int length,
+            float amount, float amountComplement, int forceAlpha) {
+        for (int i = 0; i < length; ++i) {
+            dst[dstOffset + i] = blendColor(src[srcOffset + i],
+                    mapped[mappedOffset + i], amount, amountComplement,
+                    forceAlpha);
+        }
+    }
+
+    @Override
+    public void lookupBlend(int[] colorMap, int[] src, int srcOffset,
+            int[] dst, int dstOffset, int length, float amount,
+            float amountComplement, int forceAlpha) {
+        for (int i = 0; i < length; ++i) {
+            int color = src[srcOffset + i];
+            dst[dstOffset + i] = blendColor(color,
+                    colorMap[color & 0x00FFFFFF], amount, amountComplement,
+                    forceAlpha);
+        }
+    }
+
+    @Override
+    public void lookup(int[] colorMap, int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length, int forceAlpha) {
+        if (forceAlpha == 0xFF000000) {
+            // every colorMap entry already has 0xFF as its alpha channel.
+            for (int i = 0; i < length; ++i) {
+                dst[dstOffset + i] = colorMap[src[srcOffset + i] & 0x00FFFFFF];
+            }
+        } else {
+            for (int i = 0; i < length; ++i) {
+                int color = src[srcOffset + i];
+                dst[dstOffset + i] = ((color | forceAlpha) & 0xFF000000)
+                        | (colorMap[color & 0x00FFFFFF] & 0x00FFFFFF);
+            }
+        }
+    }
+
+    /**
+     * Blend one color with its transformed color.
+     *
+     * @param color
+     * @param map
+     *                         transformed color
+     * @param amount
+     * @param amountComplement
+     * @param forceAlpha
+     * @return
+     */
+    static int blendColor(int color, int map, float amount,
+            float amountComplement, int forceAlpha) {
+        int r = (color & 0x00FF0000) >> 16;
+        int g = (color & 0x0000FF00) >> 8;
+        int b = (color & 0x000000FF);
+
+        int r2 = (map & 0x00FF0000) >> 16;
+        int g2 = (map & 0x0000FF00) >> 8;
+        int b2 = (map & 0x000000FF);
+
+        int fr = (int) (r * amountComplement + r2 * amount);
+        int fg = (int) (g * amountComplement + g2 * amount);
+        int fb = (int) (b * amountComplement + b2 * amount);
+
+        return ((color | forceAlpha) & 0xFF000000) | (fr << 16) | (fg << 8)
+                | fb;
+    }
+}
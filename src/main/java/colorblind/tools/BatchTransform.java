@@ -0,0 +1,443 @@
+package colorblind.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import colorblind.Deficiency;
+import colorblind.generators.ColorDeficiencySimulator;
+import colorblind.generators.ColorTransformGenerator;
+import colorblind.generators.ColorTransformOp;
+import colorblind.generators.DaltonizeGenerator;
+
+/**
+ * Command line tool that transforms every image in a directory.
+ *
+ * Images are decoded, transformed and encoded as PNG files in three stages
+ * connected by bounded queues, so reading and writing files overlaps with
+ * transforming pixels without holding every image in memory. Each generator
+ * is created once and its lookup table is shared by every image.
+ *
+ * This only uses the JDK, so it runs without Processing and without a
+ * display.
+ *
+ * Usage:
+ *
+ * BatchTransform [options] inputDirectory outputDirectory
+ *
+ * Run it with no arguments to see the options.
+ *
+ * @author James Schmitz
+ *
+ */
+public class BatchTransform {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: BatchTransform [options] inputDirectory outputDirectory",
+            "",
+            "Options:",
+            "  --simulate               simulate the deficiencies (the default)",
+            "  --daltonize              daltonize for the deficiencies",
+            "  --deficiencies a,b,...   deficiencies to use, such as protanopia,deuteranopia",
+            "                           (default protanopia,deuteranopia,tritanopia)",
+            "  --amount x               amount in range [0, 1] (default 1)",
+            "  --threads n              threads transforming each image (default all cores)",
+            "  --decoders n             threads reading images (default 2)",
+            "  --encoders n             threads writing images (default 2)",
+            "  --queue n                images waiting between stages (default 8)",
+            "",
+            "Each output image is written to outputDirectory with the same relative path,",
+            "with the simulation or daltonization and deficiency added to its name.");
+
+    private static final List<String> EXTENSIONS = List.of("png", "jpg",
+            "jpeg", "gif", "bmp");
+
+    /**
+     * A generator and the name to add to its output files.
+     */
+    private static class Job {
+        final String name;
+        final ColorTransformOp op;
+
+        Job(String name, ColorTransformGenerator generator) {
+            this.name = name;
+            this.op = new ColorTransformOp(generator);
+        }
+    }
+
+    /**
+     * An image and the path to write it to, relative to a directory. A null
+     * image means there are no more images.
+     */
+    private static class Item {
+        final Path path;
+        final BufferedImage image;
+
+        Item(Path path, BufferedImage image) {
+            this.path = path;
+            this.image = image;
+        }
+    }
+
+    private static final Item END = new Item(null, null);
+
+    private final Path inputDirectory;
+    private final Path outputDirectory;
+    private final List<Job> jobs;
+    private final int decoders;
+    private final int encoders;
+    private final BlockingQueue<Item> decoded;
+    private final BlockingQueue<Item> transformed;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private long transformNanos;
+    private long pixelsTransformed;
+
+    public BatchTransform(Path inputDirectory, Path outputDirectory,
+            List<ColorTransformGenerator> generators, List<String> names,
+            int decoders, int encoders, int queueSize) {
+        this.inputDirectory = inputDirectory;
+        this.outputDirectory = outputDirectory;
+        this.jobs = new ArrayList<>();
+        for (int i = 0; i < generators.size(); ++i) {
+            jobs.add(new Job(names.get(i), generators.get(i)));
+        }
+        this.decoders = decoders;
+        this.encoders = encoders;
+        this.decoded = new ArrayBlockingQueue<>(queueSize);
+        this.transformed = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        boolean simulate = false;
+        boolean daltonize = false;
+        List<Deficiency> deficiencies = List.of(Deficiency.PROTANOPIA,
+                Deficiency.DEUTERANOPIA, Deficiency.TRITANOPIA);
+        float amount = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int decoders = 2;
+        int encoders = 2;
+        int queueSize = 8;
+        List<String> directories = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                case "--simulate":
+                    simulate = true;
+                    break;
+                case "--daltonize":
+                    daltonize = true;
+                    break;
+                case "--deficiencies":
+                    deficiencies = Stream.of(args[++i].split(","))
+                            .map(s -> Deficiency.valueOf(s.trim()
+                                    .toUpperCase(Locale.ROOT)))
+                            .collect(Collectors.toList());
+                    break;
+                case "--amount":
+                    amount = Float.parseFloat(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--decoders":
+                    decoders = Integer.parseInt(args[++i]);
+                    break;
+                case "--encoders":
+                    encoders = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue":
+                    queueSize = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i]);
+                    }
+                    directories.add(args[i]);
+                }
+            }
+            if (directories.size() != 2) {
+                throw new IllegalArgumentException(
+                        "Input and output directories are required");
+            }
+            if (threads < 1 || decoders < 1 || encoders < 1 || queueSize < 1) {
+                throw new IllegalArgumentException(
+                        "Thread counts and queue size must be at least 1");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() == null ? e.toString() : e
+                    .getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        if (!simulate && !daltonize) {
+            simulate = true;
+        }
+
+        List<ColorTransformGenerator> generators = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Deficiency deficiency : deficiencies) {
+            String name = deficiency.name().toLowerCase(Locale.ROOT);
+
+            if (simulate) {
+                generators.add(ColorDeficiencySimulator
+                        .createSimulator(deficiency));
+                names.add("simulate-" + name);
+            }
+            if (daltonize) {
+                if (deficiency == Deficiency.ACHROMATOPSIA
+                        || deficiency == Deficiency.BLUE_CONE_MONOCHROMACY) {
+                    System.err.println("Skipping daltonization for " + name
+                            + ". It can't be daltonized.");
+                } else {
+                    generators.add(DaltonizeGenerator
+                            .createDaltonizer(deficiency));
+                    names.add("daltonize-" + name);
+                }
+            }
+        }
+
+        for (ColorTransformGenerator generator : generators) {
+            generator.setAmount(amount);
+            generator.setParallelism(threads);
+            // every image needs the table, so compute it now instead of
+            // transforming the first images without it.
+            generator.setAsyncLookupTable(false);
+            generator.getColorMap();
+        }
+
+        BatchTransform batch = new BatchTransform(Paths.get(directories
+                .get(0)), Paths.get(directories.get(1)), generators, names,
+                decoders, encoders, queueSize);
+        try {
+            if (!batch.run()) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to read " + directories.get(0) + ": "
+                    + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Transform every image in the input directory.
+     *
+     * @return true if every image was transformed and written.
+     * @throws IOException
+     *                              if the input directory can't be read
+     * @throws InterruptedException
+     */
+    public boolean run() throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(inputDirectory)) {
+            files = paths.filter(Files::isRegularFile).filter(
+                    BatchTransform::isImage).sorted().collect(
+                    Collectors.toList());
+        }
+        System.out.println("Transforming " + files.size() + " images with "
+                + jobs.size() + " generators...");
+
+        long startTime = System.nanoTime();
+
+        AtomicInteger nextFile = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < decoders; ++i) {
+            threads.add(startThread("decoder " + (i + 1), () -> decode(files,
+                    nextFile)));
+        }
+        for (int i = 0; i < encoders; ++i) {
+            threads.add(startThread("encoder " + (i + 1), this::encode));
+        }
+
+        transform();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf(Locale.ROOT,
+                "Wrote %d images in %.2f s: %.1f MPix/s overall, %.1f MPix/s transforming%n",
+                files.size() * jobs.size() - failures.get(), seconds,
+                pixelsTransformed / 1e6 / seconds, transformNanos == 0 ? 0
+                        : pixelsTransformed / 1e6 / (transformNanos / 1e9));
+        if (failures.get() > 0) {
+            System.err.println(failures.get() + " images failed");
+        }
+
+        return failures.get() == 0;
+    }
+
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+
+        return dot > 0
+                && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(
+                        Locale.ROOT));
+    }
+
+    private static Thread startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, "BatchTransform " + name);
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread;
+    }
+
+    /**
+     * Decode stage. Each decoder takes the next file until there are none
+     * left.
+     */
+    private void decode(List<Path> files, AtomicInteger nextFile) {
+        try {
+            int index;
+            while ((index = nextFile.getAndIncrement()) < files.size()) {
+                Path file = files.get(index);
+                try {
+                    BufferedImage image = ImageIO.read(file.toFile());
+                    if (image == null) {
+                        throw new IOException("unsupported image format");
+                    }
+                    decoded.put(new Item(inputDirectory.relativize(file),
+                            toPackedInt(image)));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Unable to read " + file + ": "
+                            + e.getMessage());
+                    failures.addAndGet(jobs.size());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            putEnd(decoded);
+        }
+    }
+
+    /**
+     * Transform stage. This runs on the calling thread, and each generator
+     * uses its own worker threads.
+     */
+    private void transform() throws InterruptedException {
+        int finishedDecoders = 0;
+        while (finishedDecoders < decoders) {
+            Item item = decoded.take();
+            if (item == END) {
+                finishedDecoders++;
+                continue;
+            }
+
+            BufferedImage image = item.image;
+            for (Job job : jobs) {
+                long startTime = System.nanoTime();
+                BufferedImage result = job.op.filter(image, null);
+                transformNanos += System.nanoTime() - startTime;
+                pixelsTransformed += (long) image.getWidth()
+                        * image.getHeight();
+
+                transformed.put(new Item(outputPath(item.path, job.name),
+                        result));
+            }
+        }
+
+        for (int i = 0; i < encoders; ++i) {
+            transformed.put(END);
+        }
+    }
+
+    /**
+     * Encode stage. Each encoder writes PNG files until the transform stage
+     * is done.
+     */
+    private void encode() {
+        try {
+            Item item;
+            while ((item = transformed.take()) != END) {
+                Path file = outputDirectory.resolve(item.path);
+                try {
+                    Files.createDirectories(file.getParent());
+                    if (!ImageIO.write(item.image, "png", file.toFile())) {
+                        throw new IOException("no PNG writer");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // keep going, or the transform stage would wait forever
+                    // for an encoder.
+                    System.err.println("Unable to write " + file + ": "
+                            + e.getMessage());
+                    failures.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void putEnd(BlockingQueue<Item> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the generator's name and png to a relative path. For example,
+     * icons/save.jpg becomes icons/save.jpg-simulate-protanopia.png. The
+     * original extension is kept so save.jpg and save.png don't both write
+     * the same file.
+     */
+    private static Path outputPath(Path path, String name) {
+        String outputName = path.getFileName().toString() + "-" + name
+                + ".png";
+
+        Path parent = path.getParent();
+        return parent == null ? Paths.get(outputName) : parent
+                .resolve(outputName);
+    }
+
+    /**
+     * Convert an image to TYPE_INT_ARGB unless it already has packed int
+     * pixels, so ColorTransformOp can transform it without copying.
+     */
+    private static BufferedImage toPackedInt(BufferedImage image) {
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+
+        int newType = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage converted = new BufferedImage(image.getWidth(), image
+                .getHeight(), newType);
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); ++y) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            converted.setRGB(0, y, width, 1, row, 0, width);
+        }
+
+        return converted;
+    }
+}
@@ -0,0 +1,476 @@
+package colorblind.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import colorblind.Deficiency;
+import colorblind.generators.ColorDeficiencySimulator;
+import colorblind.generators.ColorTransformGenerator;
+import colorblind.generators.DaltonizeGenerator;
+import colorblind.generators.util.PixelWorkerPool;
+
+/**
+ * Transform uncompressed image files that are too big to load into memory.
+ *
+ * Binary PPM (P6), PAM (P7) and headerless raw RGB or RGBA files are
+ * supported, with 8 bits per channel. The input and output files are memory
+ * mapped and transformed one window at a time. The pixels in each window are
+ * split between worker threads that each convert a small chunk of bytes to
+ * ints, transform them, and write them to the output file. Nothing the size
+ * of the image is allocated, so the memory used does not depend on the image
+ * size.
+ *
+ * The output file has the same format and header as the input file. The
+ * alpha channel of RGBA pixels is kept.
+ *
+ * @author James Schmitz
+ *
+ */
+public class MappedImageTransform {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: MappedImageTransform [options] input output",
+            "",
+            "Input can be a binary PPM (P6) or PAM (P7) file, or a raw file with --raw.",
+            "",
+            "Options:",
+            "  --deficiency name        deficiency to use (default protanopia)",
+            "  --daltonize              daltonize instead of simulating",
+            "  --amount x               amount in range [0, 1] (default 1)",
+            "  --threads n              worker threads (default all cores)",
+            "  --raw width height n     headerless file with n = 3 (RGB) or 4 (RGBA) bytes per pixel");
+
+    /**
+     * Default window size. Each window is mapped separately, so this also
+     * limits how much of the files is mapped at once.
+     */
+    public static final int DEFAULT_WINDOW_BYTES = 64 << 20;
+
+    // pixels converted and transformed at a time by each worker.
+    private static final int CHUNK_PIXELS = 16384;
+
+    private static final ThreadLocal<int[]> PIXELS = ThreadLocal
+            .withInitial(() -> new int[CHUNK_PIXELS]);
+    private static final ThreadLocal<byte[]> BYTES = ThreadLocal
+            .withInitial(() -> new byte[CHUNK_PIXELS * 3]);
+
+    private final ColorTransformGenerator generator;
+    private int parallelism;
+    private int windowBytes;
+
+    /**
+     * Describes where the pixels are in a file.
+     */
+    private static class Layout {
+        final long headerBytes;
+        final long width;
+        final long height;
+        final int channels;
+
+        Layout(long headerBytes, long width, long height, int channels) {
+            if (channels != 3 && channels != 4) {
+                throw new RuntimeException(
+                        "Only RGB and RGBA pixels are supported");
+            }
+            this.headerBytes = headerBytes;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+
+        long pixels() {
+            return width * height;
+        }
+    }
+
+    /**
+     * Create a transform that uses a generator.
+     *
+     * The pixels are split between this class's worker threads, so the
+     * generator's own parallelism is turned off.
+     *
+     * @param generator
+     */
+    public MappedImageTransform(ColorTransformGenerator generator) {
+        this.generator = generator;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.windowBytes = DEFAULT_WINDOW_BYTES;
+
+        generator.setParallelism(1);
+        generator.setAsyncLookupTable(false);
+    }
+
+    /**
+     * Set the number of threads transforming each window, including the
+     * calling thread.
+     *
+     * @param parallelism
+     * @return
+     */
+    public MappedImageTransform setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new RuntimeException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+
+        return this;
+    }
+
+    /**
+     * Set the size of the part of the file that is mapped and transformed at
+     * a time.
+     *
+     * @param bytes
+     * @return
+     */
+    public MappedImageTransform setWindowSize(int bytes) {
+        this.windowBytes = Math.max(CHUNK_PIXELS * 4, bytes);
+
+        return this;
+    }
+
+    /**
+     * Transform a PPM (P6) or PAM (P7) file.
+     *
+     * @param input
+     * @param output
+     * @return number of pixels transformed
+     * @throws IOException
+     */
+    public long transform(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            return transform(in, output, readHeader(in));
+        }
+    }
+
+    /**
+     * Transform a headerless file of RGB or RGBA pixels.
+     *
+     * @param input
+     * @param output
+     * @param width
+     * @param height
+     * @param channels
+     *                 3 for RGB or 4 for RGBA
+     * @return number of pixels transformed
+     * @throws IOException
+     */
+    public long transformRaw(Path input, Path output, long width, long height,
+            int channels) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            return transform(in, output, new Layout(0, width, height, channels));
+        }
+    }
+
+    private long transform(FileChannel in, Path output, Layout layout)
+            throws IOException {
+        long dataBytes = layout.pixels() * layout.channels;
+        if (in.size() < layout.headerBytes + dataBytes) {
+            throw new IOException("File is smaller than a " + layout.width
+                    + "x" + layout.height + " image");
+        }
+
+        // make sure the generator's lookup table is ready before the workers
+        // start.
+        generator.getColorMap();
+
+        PixelWorkerPool pool = parallelism > 1 ? new PixelWorkerPool(
+                parallelism) : null;
+
+        try (FileChannel out = FileChannel.open(output,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // copy the header.
+            ByteBuffer header = ByteBuffer.allocate((int) layout.headerBytes);
+            in.read(header, 0);
+            header.flip();
+            out.write(header, 0);
+
+            // each window holds a whole number of pixels.
+            long windowPixels = windowBytes / layout.channels;
+            for (long first = 0; first < layout.pixels(); first += windowPixels) {
+                int count = (int) Math.min(windowPixels, layout.pixels()
+                        - first);
+                long position = layout.headerBytes + first * layout.channels;
+                long size = (long) count * layout.channels;
+
+                MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY,
+                        position, size);
+                MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE,
+                        position, size);
+                // the workers only use absolute gets and puts, so they can
+                // share the buffers as long as nothing changes their state.
+                // RGBA bytes read as a big endian int are RGBA.
+                src.order(ByteOrder.BIG_ENDIAN);
+                dst.order(ByteOrder.BIG_ENDIAN);
+                IntBuffer srcInts = layout.channels == 4 ? src.asIntBuffer()
+                        : null;
+                IntBuffer dstInts = layout.channels == 4 ? dst.asIntBuffer()
+                        : null;
+                PixelWorkerPool.Task task = (from, to) -> transformPixels(src,
+                        srcInts, dst, dstInts, from, to);
+
+                if (pool == null) {
+                    task.run(0, count);
+                } else {
+                    pool.run(task, count, CHUNK_PIXELS);
+                }
+            }
+
+            // the part of the file after the pixels, if any.
+            long end = layout.headerBytes + dataBytes;
+            if (in.size() > end) {
+                in.transferTo(end, in.size() - end, out.position(end));
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        return layout.pixels();
+    }
+
+    /**
+     * Transform pixels [from, to) of a window, one chunk at a time.
+     * 
+     * @param srcInts
+     *                int view of src for RGBA pixels, or null for RGB pixels
+     * @param dstInts
+     *                int view of dst for RGBA pixels, or null for RGB pixels
+     */
+    private void transformPixels(ByteBuffer src, IntBuffer srcInts,
+            ByteBuffer dst, IntBuffer dstInts, int from, int to) {
+        int[] pixels = PIXELS.get();
+
+        for (int start = from; start < to; start += CHUNK_PIXELS) {
+            int count = Math.min(CHUNK_PIXELS, to - start);
+
+            if (srcInts != null) {
+                // rotate RGBA to ARGB and back.
+                srcInts.get(start, pixels, 0, count);
+                for (int i = 0; i < count; ++i) {
+                    pixels[i] = Integer.rotateRight(pixels[i], 8);
+                }
+                generator.transformRegion(pixels, 0, count, count, 1, true);
+                for (int i = 0; i < count; ++i) {
+                    pixels[i] = Integer.rotateLeft(pixels[i], 8);
+                }
+                dstInts.put(start, pixels, 0, count);
+            } else {
+                byte[] bytes = BYTES.get();
+                src.get(start * 3, bytes, 0, count * 3);
+                for (int i = 0, j = 0; i < count; ++i, j += 3) {
+                    pixels[i] = (bytes[j] & 0xFF) << 16
+                            | (bytes[j + 1] & 0xFF) << 8 | (bytes[j + 2] & 0xFF);
+                }
+                generator.transformPixels(pixels, 0, pixels, 0, count);
+                for (int i = 0, j = 0; i < count; ++i, j += 3) {
+                    int color = pixels[i];
+                    bytes[j] = (byte) (color >> 16);
+                    bytes[j + 1] = (byte) (color >> 8);
+                    bytes[j + 2] = (byte) color;
+                }
+                dst.put(start * 3, bytes, 0, count * 3);
+            }
+        }
+    }
+
+    /**
+     * Read a PPM or PAM header.
+     */
+    private static Layout readHeader(FileChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(4096, in
+                .size()));
+        in.read(buffer, 0);
+        buffer.flip();
+        HeaderReader reader = new HeaderReader(buffer);
+
+        String magic = reader.token();
+        if (magic.equals("P6")) {
+            long width = Long.parseLong(reader.token());
+            long height = Long.parseLong(reader.token());
+            checkMaxValue(reader.token());
+            // exactly one whitespace character comes before the pixels.
+            return new Layout(reader.position() + 1, width, height, 3);
+        } else if (magic.equals("P7")) {
+            long width = -1;
+            long height = -1;
+            int depth = -1;
+            String token;
+            while (!(token = reader.token()).equals("ENDHDR")) {
+                switch (token) {
+                case "WIDTH":
+                    width = Long.parseLong(reader.token());
+                    break;
+                case "HEIGHT":
+                    height = Long.parseLong(reader.token());
+                    break;
+                case "DEPTH":
+                    depth = Integer.parseInt(reader.token());
+                    break;
+                case "MAXVAL":
+                    checkMaxValue(reader.token());
+                    break;
+                case "TUPLTYPE":
+                    reader.token();
+                    break;
+                default:
+                    throw new IOException("Unknown PAM header field " + token);
+                }
+            }
+            if (width < 0 || height < 0 || depth < 0) {
+                throw new IOException("Incomplete PAM header");
+            }
+            // ENDHDR is followed by a newline.
+            return new Layout(reader.position() + 1, width, height, depth);
+        }
+
+        throw new IOException("Not a binary PPM or PAM file");
+    }
+
+    private static void checkMaxValue(String maxValue) throws IOException {
+        if (!maxValue.equals("255")) {
+            throw new IOException("Only 8 bit images are supported");
+        }
+    }
+
+    /**
+     * Splits a header into whitespace separated tokens, skipping comments.
+     */
+    private static class HeaderReader {
+        private final ByteBuffer buffer;
+
+        HeaderReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        String token() throws IOException {
+            // skip whitespace and comments.
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("Header is incomplete");
+                }
+                byte b = buffer.get(buffer.position());
+                if (b == '#') {
+                    while (buffer.hasRemaining() && buffer.get() != '\n') {
+                    }
+                } else if (Character.isWhitespace(b)) {
+                    buffer.get();
+                } else {
+                    break;
+                }
+            }
+
+            int start = buffer.position();
+            while (buffer.hasRemaining()
+                    && !Character.isWhitespace(buffer.get(buffer.position()))) {
+                buffer.get();
+            }
+            byte[] bytes = new byte[buffer.position() - start];
+            buffer.get(start, bytes);
+
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return index of the byte after the last token.
+         */
+        int position() {
+            return buffer.position();
+        }
+    }
+
+    public static void main(String[] args) {
+        Deficiency deficiency = Deficiency.PROTANOPIA;
+        boolean daltonize = false;
+        float amount = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long[] raw = null;
+        String input = null;
+        String output = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                case "--deficiency":
+                    deficiency = Deficiency.valueOf(args[++i]
+                            .toUpperCase(Locale.ROOT));
+                    break;
+                case "--daltonize":
+                    daltonize = true;
+                    break;
+                case "--amount":
+                    amount = Float.parseFloat(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--raw":
+                    raw = new long[] { Long.parseLong(args[++i]),
+                            Long.parseLong(args[++i]),
+                            Long.parseLong(args[++i]) };
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i]);
+                    } else if (input == null) {
+                        input = args[i];
+                    } else if (output == null) {
+                        output = args[i];
+                    } else {
+                        throw new IllegalArgumentException(
+                                "Too many arguments");
+                    }
+                }
+            }
+            if (output == null) {
+                throw new IllegalArgumentException(
+                        "Input and output files are required");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() == null ? e.toString() : e
+                    .getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        ColorTransformGenerator generator = daltonize ? DaltonizeGenerator
+                .createDaltonizer(deficiency) : ColorDeficiencySimulator
+                .createSimulator(deficiency);
+        generator.setAmount(amount);
+        generator.getColorMap();
+
+        MappedImageTransform transform = new MappedImageTransform(generator)
+                .setParallelism(threads);
+
+        try {
+            long startTime = System.nanoTime();
+            long pixels = raw == null ? transform.transform(Paths.get(input),
+                    Paths.get(output)) : transform.transformRaw(Paths
+                    .get(input), Paths.get(output), raw[0], raw[1],
+                    (int) raw[2]);
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            System.out.printf(Locale.ROOT,
+                    "Transformed %d pixels in %.2f s: %.1f MPix/s%n", pixels,
+                    seconds, pixels / 1e6 / seconds);
+        } catch (IOException e) {
+            System.err.println("Unable to transform " + input + ": "
+                    + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package colorblind.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read a PNG file a few rows at a time.
+ *
+ * ImageIO's PNG reader decodes the whole image every time it reads a region,
+ * so reading a big image one strip at a time takes time proportional to the
+ * number of strips times the size of the image. This reader decodes the rows
+ * in order and only keeps the previous row.
+ *
+ * Only non-interlaced 8 and 16 bit images with gray, gray and alpha, RGB or
+ * RGBA pixels, and 8 bit palette images, are supported. 16 bit samples are
+ * rounded down to 8 bits. open() returns null for other PNG files, which can
+ * be read with ImageIO instead.
+ *
+ * @author James Schmitz
+ *
+ */
+class PngStripReader implements StreamingImageTransform.StripSource {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+            26, 10 };
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGBA = 6;
+
+    private final DataInputStream in;
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bytesPerSample;
+    private final int bytesPerPixel;
+    private int[] palette;
+
+    private final Inflater inflater;
+    private final InputStream pixelData;
+    private byte[] row;
+    private byte[] previousRow;
+    private int rowsRead;
+
+    private PngStripReader(DataInputStream in, int width, int height,
+            int colorType, int bitDepth) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.bytesPerSample = bitDepth / 8;
+
+        int samples;
+        switch (colorType) {
+        case GRAY:
+        case PALETTE:
+            samples = 1;
+            break;
+        case GRAY_ALPHA:
+            samples = 2;
+            break;
+        case RGB:
+            samples = 3;
+            break;
+        default:
+            samples = 4;
+        }
+        this.bytesPerPixel = samples * bytesPerSample;
+
+        // the filter type comes before each row.
+        this.row = new byte[width * bytesPerPixel + 1];
+        this.previousRow = new byte[row.length];
+        this.inflater = new Inflater();
+        this.pixelData = new InflaterInputStream(new IdatStream(), inflater,
+                1 << 16);
+    }
+
+    /**
+     * Open a PNG file if this class can read it.
+     *
+     * @param path
+     * @return the reader, or null if the file is not a PNG file this class
+     *         supports.
+     * @throws IOException
+     */
+    static PngStripReader open(Path path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files
+                .newInputStream(path), 1 << 16));
+        PngStripReader reader = null;
+
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE) || in.readInt() != 13
+                    || in.readInt() != chunkType("IHDR")) {
+                return null;
+            }
+
+            int width = in.readInt();
+            int height = in.readInt();
+            int bitDepth = in.readUnsignedByte();
+            int colorType = in.readUnsignedByte();
+            int compression = in.readUnsignedByte();
+            int filter = in.readUnsignedByte();
+            int interlace = in.readUnsignedByte();
+            in.readInt(); // CRC
+
+            boolean supported = compression == 0 && filter == 0
+                    && interlace == 0 && (bitDepth == 8 || bitDepth == 16
+                            && colorType != PALETTE)
+                    && (colorType == GRAY || colorType == RGB
+                            || colorType == PALETTE || colorType == GRAY_ALPHA
+                            || colorType == RGBA);
+            if (!supported) {
+                return null;
+            }
+
+            reader = new PngStripReader(in, width, height, colorType, bitDepth);
+            if (!reader.readHeaderChunks()) {
+                reader = null;
+            }
+
+            return reader;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            if (reader == null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Read the chunks before the pixel data.
+     *
+     * @return false if the file uses a feature this class doesn't support.
+     */
+    private boolean readHeaderChunks() throws IOException {
+        int[] alphas = null;
+
+        while (true) {
+            in.mark(8);
+            int length = in.readInt();
+            int type = in.readInt();
+
+            if (type == chunkType("IDAT")) {
+                in.reset();
+                break;
+            } else if (type == chunkType("PLTE")) {
+                byte[] data = readChunkData(length);
+                palette = new int[256];
+                Arrays.fill(palette, 0xFF000000);
+                for (int i = 0; i < length / 3 && i < 256; ++i) {
+                    palette[i] = 0xFF000000 | (data[i * 3] & 0xFF) << 16
+                            | (data[i * 3 + 1] & 0xFF) << 8
+                            | (data[i * 3 + 2] & 0xFF);
+                }
+            } else if (type == chunkType("tRNS")) {
+                if (colorType != PALETTE) {
+                    // transparent color keys are left to ImageIO.
+                    return false;
+                }
+                byte[] data = readChunkData(length);
+                alphas = new int[data.length];
+                for (int i = 0; i < data.length; ++i) {
+                    alphas[i] = data[i] & 0xFF;
+                }
+            } else {
+                // gamma, color profiles and text are ignored, like ImageIO.
+                in.skipNBytes(length + 4L);
+            }
+        }
+
+        if (colorType == PALETTE) {
+            if (palette == null) {
+                return false;
+            }
+            if (alphas != null) {
+                for (int i = 0; i < alphas.length && i < 256; ++i) {
+                    palette[i] = alphas[i] << 24 | palette[i] & 0x00FFFFFF;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private byte[] readChunkData(int length) throws IOException {
+        byte[] data = new byte[length];
+        in.readFully(data);
+        in.readInt(); // CRC
+
+        return data;
+    }
+
+    private static int chunkType(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16
+                | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return colorType == GRAY_ALPHA || colorType == RGBA
+                || colorType == PALETTE && palette != null
+                        && Arrays.stream(palette).anyMatch(c -> c >>> 24 != 0xFF);
+    }
+
+    /**
+     * Read the next rows. Rows must be read in order.
+     */
+    @Override
+    public void read(int[] dst, int y, int rows) throws IOException {
+        if (y != rowsRead) {
+            throw new RuntimeException("PNG rows must be read in order");
+        }
+
+        for (int i = 0; i < rows; ++i) {
+            byte[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+
+            readFully(pixelData, row);
+            unfilter();
+            toPixels(dst, i * width);
+        }
+
+        rowsRead += rows;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes)
+            throws IOException {
+        int count = 0;
+        while (count < bytes.length) {
+            int n = in.read(bytes, count, bytes.length - count);
+            if (n < 0) {
+                throw new EOFException("PNG file is truncated");
+            }
+            count += n;
+        }
+    }
+
+    private void unfilter() throws IOException {
+        byte[] row = this.row;
+        byte[] up = previousRow;
+        int bpp = bytesPerPixel;
+
+        switch (row[0]) {
+        case 0:
+            break;
+        case 1:
+            for (int i = 1 + bpp; i < row.length; ++i) {
+                row[i] += row[i - bpp];
+            }
+            break;
+        case 2:
+            for (int i = 1; i < row.length; ++i) {
+                row[i] += up[i];
+            }
+            break;
+        case 3:
+            for (int i = 1; i < row.length; ++i) {
+                int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                row[i] += (a + (up[i] & 0xFF)) >> 1;
+            }
+            break;
+        case 4:
+            for (int i = 1; i < row.length; ++i) {
+                int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                int b = up[i] & 0xFF;
+                int c = i > bpp ? up[i - bpp] & 0xFF : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+            }
+            break;
+        default:
+            throw new IOException("Unknown PNG filter type " + row[0]);
+        }
+    }
+
+    private void toPixels(int[] dst, int offset) {
+        byte[] row = this.row;
+        int step = bytesPerSample;
+
+        for (int x = 0, i = 1; x < width; ++x, i += bytesPerPixel) {
+            int color;
+            switch (colorType) {
+            case GRAY: {
+                int v = row[i] & 0xFF;
+                color = 0xFF000000 | v << 16 | v << 8 | v;
+                break;
+            }
+            case GRAY_ALPHA: {
+                int v = row[i] & 0xFF;
+                color = (row[i + step] & 0xFF) << 24 | v << 16 | v << 8 | v;
+                break;
+            }
+            case PALETTE:
+                color = palette[row[i] & 0xFF];
+                break;
+            case RGB:
+                color = 0xFF000000 | (row[i] & 0xFF) << 16
+                        | (row[i + step] & 0xFF) << 8
+                        | (row[i + 2 * step] & 0xFF);
+                break;
+            default:
+                color = (row[i + 3 * step] & 0xFF) << 24
+                        | (row[i] & 0xFF) << 16 | (row[i + step] & 0xFF) << 8
+                        | (row[i + 2 * step] & 0xFF);
+            }
+            dst[offset + x] = color;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * The contents of the IDAT chunks as one stream.
+     */
+    private class IdatStream extends InputStream {
+        private int remaining;
+        private boolean finished;
+
+        /**
+         * Move to the next IDAT chunk if the current one is used up.
+         *
+         * @return false if there are no more IDAT chunks.
+         */
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0 && !finished) {
+                in.mark(8);
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type == chunkType("IDAT")) {
+                    remaining = length;
+                } else {
+                    in.reset();
+                    finished = true;
+                }
+                if (remaining == 0 && !finished) {
+                    in.readInt(); // CRC of an empty chunk
+                }
+            }
+
+            return !finished;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("PNG file is truncated");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                in.readInt(); // CRC
+            }
+
+            return n;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package colorblind.tools;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Write a PNG file a few rows at a time.
+ *
+ * ImageIO needs the whole image before it can write a PNG file. This writer
+ * filters and compresses each row as soon as it gets it, so an image of any
+ * size can be written while only holding a few rows in memory.
+ *
+ * Pixels are ARGB ints, the same as Processing's pixels array, and are
+ * written as 8 bit RGB or RGBA. Each row uses whichever of the standard PNG
+ * filters gives the smallest sum of absolute differences, the same heuristic
+ * most PNG encoders use. At compression levels 0 and 1 every row uses the Up
+ * filter instead, which is several times faster.
+ *
+ * @author James Schmitz
+ *
+ */
+public class PngStripWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+            26, 10 };
+
+    // size of the IDAT chunks.
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+
+    private final boolean adaptiveFilter;
+    private final Deflater deflater;
+    private final DeflaterOutputStream deflaterStream;
+
+    private byte[] row;
+    private byte[] previousRow;
+    // the current row after each of the 5 filters, with the filter type
+    // first.
+    private final byte[][] filtered;
+    private final long[] sums = new long[5];
+
+    private int rowsWritten;
+
+    /**
+     * Start writing a PNG file.
+     *
+     * @param out
+     *                         the stream to write to. It is closed when this
+     *                         writer is closed.
+     * @param width
+     * @param height
+     * @param alpha
+     *                         write RGBA pixels instead of RGB pixels
+     * @param compressionLevel
+     *                         zlib compression level in range [0, 9]
+     * @throws IOException
+     */
+    public PngStripWriter(OutputStream out, int width, int height,
+            boolean alpha, int compressionLevel) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new RuntimeException("Image width and height must be positive");
+        }
+
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = alpha ? 4 : 3;
+
+        int rowBytes = width * bytesPerPixel;
+        this.row = new byte[rowBytes];
+        this.previousRow = new byte[rowBytes];
+        this.filtered = new byte[5][rowBytes + 1];
+
+        this.out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = (byte) (alpha ? 6 : 2); // color type
+        // compression, filter and interlace methods are all 0.
+        writeChunk("IHDR", header, 0, header.length);
+
+        this.adaptiveFilter = compressionLevel > 1;
+        this.deflater = new Deflater(compressionLevel);
+        this.deflaterStream = new DeflaterOutputStream(new IdatStream(),
+                deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Write the next rows of the image.
+     *
+     * @param pixels
+     * @param offset
+     *               index of the first pixel of the first row
+     * @param stride
+     *               distance between rows in the pixels array
+     * @param rows
+     * @throws IOException
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rows)
+            throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new RuntimeException("More rows than the image height");
+        }
+
+        for (int y = 0; y < rows; ++y) {
+            toBytes(pixels, offset + y * stride);
+            deflaterStream.write(adaptiveFilter ? filterRow() : filterRowUp());
+
+            byte[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+        }
+
+        rowsWritten += rows;
+    }
+
+    /**
+     * @return number of rows written so far.
+     */
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * Finish the file and close the stream. Every row must have been written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height
+                        + " rows were written");
+            }
+            // flushes the last IDAT chunk.
+            deflaterStream.close();
+            writeChunk("IEND", new byte[0], 0, 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void toBytes(int[] pixels, int offset) {
+        byte[] row = this.row;
+
+        if (bytesPerPixel == 4) {
+            for (int x = 0, i = 0; x < width; ++x, i += 4) {
+                int color = pixels[offset + x];
+                row[i] = (byte) (color >> 16);
+                row[i + 1] = (byte) (color >> 8);
+                row[i + 2] = (byte) color;
+                row[i + 3] = (byte) (color >>> 24);
+            }
+        } else {
+            for (int x = 0, i = 0; x < width; ++x, i += 3) {
+                int color = pixels[offset + x];
+                row[i] = (byte) (color >> 16);
+                row[i + 1] = (byte) (color >> 8);
+                row[i + 2] = (byte) color;
+            }
+        }
+    }
+
+    /**
+     * Apply the Up filter to the current row.
+     */
+    private byte[] filterRowUp() {
+        byte[] row = this.row;
+        byte[] up = previousRow;
+        byte[] upFiltered = filtered[2];
+
+        for (int i = 0; i < row.length; ++i) {
+            upFiltered[i + 1] = (byte) (row[i] - up[i]);
+        }
+        upFiltered[0] = 2;
+
+        return upFiltered;
+    }
+
+    /**
+     * Apply every filter to the current row and return the best one.
+     */
+    private byte[] filterRow() {
+        byte[] row = this.row;
+        byte[] up = previousRow;
+        int bpp = bytesPerPixel;
+        int length = row.length;
+        long[] sums = this.sums;
+
+        byte[] none = filtered[0];
+        System.arraycopy(row, 0, none, 1, length);
+        sums[0] = sumOfAbs(none);
+
+        byte[] sub = filtered[1];
+        for (int i = 0; i < bpp; ++i) {
+            sub[i + 1] = row[i];
+        }
+        for (int i = bpp; i < length; ++i) {
+            sub[i + 1] = (byte) (row[i] - row[i - bpp]);
+        }
+        sums[1] = sumOfAbs(sub);
+
+        byte[] upFiltered = filtered[2];
+        for (int i = 0; i < length; ++i) {
+            upFiltered[i + 1] = (byte) (row[i] - up[i]);
+        }
+        sums[2] = sumOfAbs(upFiltered);
+
+        byte[] average = filtered[3];
+        for (int i = 0; i < bpp; ++i) {
+            average[i + 1] = (byte) (row[i] - ((up[i] & 0xFF) >> 1));
+        }
+        for (int i = bpp; i < length; ++i) {
+            average[i + 1] = (byte) (row[i] - (((row[i - bpp] & 0xFF)
+                    + (up[i] & 0xFF)) >> 1));
+        }
+        sums[3] = sumOfAbs(average);
+
+        byte[] paeth = filtered[4];
+        for (int i = 0; i < bpp; ++i) {
+            // the predictor is always the byte above.
+            paeth[i + 1] = (byte) (row[i] - up[i]);
+        }
+        for (int i = bpp; i < length; ++i) {
+            paeth[i + 1] = (byte) (row[i] - paethPredictor(row[i - bpp] & 0xFF,
+                    up[i] & 0xFF, up[i - bpp] & 0xFF));
+        }
+        sums[4] = sumOfAbs(paeth);
+
+        int best = 0;
+        for (int type = 1; type < 5; ++type) {
+            if (sums[type] < sums[best]) {
+                best = type;
+            }
+        }
+        filtered[best][0] = (byte) best;
+
+        return filtered[best];
+    }
+
+    /**
+     * Sum of the filtered bytes as signed values, skipping the filter type.
+     */
+    private static long sumOfAbs(byte[] filtered) {
+        long sum = 0;
+        for (int i = 1; i < filtered.length; ++i) {
+            sum += Math.abs(filtered[i]);
+        }
+
+        return sum;
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+
+        if (pa <= pb && pa <= pc) {
+            return a;
+        } else if (pb <= pc) {
+            return b;
+        } else {
+            return c;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int offset, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Collects compressed data and writes it in IDAT chunks.
+     */
+    private class IdatStream extends OutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == CHUNK_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeChunk("IDAT", buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the PNG stream itself stays open for IEND.
+            flush();
+        }
+    }
+}
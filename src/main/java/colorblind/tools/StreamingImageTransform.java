@@ -0,0 +1,372 @@
+package colorblind.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import colorblind.Deficiency;
+import colorblind.generators.ColorDeficiencySimulator;
+import colorblind.generators.ColorTransformGenerator;
+import colorblind.generators.DaltonizeGenerator;
+
+/**
+ * Transform images that are too big to decode into memory.
+ *
+ * The image is read, transformed and written as a PNG file one strip of rows
+ * at a time, so the memory used depends on the strip height and the image
+ * width but not the image height. Non-interlaced PNG files are decoded row by
+ * row. Other images are read one strip at a time with ImageIO using
+ * ImageReadParam.setSourceRegion(). Some ImageIO readers decode everything
+ * above the strip every time, so use tall strips for those.
+ *
+ * @author James Schmitz
+ *
+ */
+public class StreamingImageTransform {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: StreamingImageTransform [options] input output.png",
+            "",
+            "Options:",
+            "  --deficiency name        deficiency to use (default protanopia)",
+            "  --daltonize              daltonize instead of simulating",
+            "  --amount x               amount in range [0, 1] (default 1)",
+            "  --threads n              threads transforming each strip (default all cores)",
+            "  --strip n                rows in each strip (default "
+                    + StreamingImageTransform.DEFAULT_STRIP_HEIGHT + ")",
+            "  --compression n          PNG compression level in range [0, 9] (default "
+                    + StreamingImageTransform.DEFAULT_COMPRESSION_LEVEL + ")");
+
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 4;
+
+    /**
+     * Receives progress updates after each strip.
+     */
+    public interface ProgressListener {
+        void progress(int rowsDone, int height, long pixelsDone,
+                long elapsedNanos);
+    }
+
+    /**
+     * Reads an image one strip at a time, from top to bottom.
+     */
+    interface StripSource extends Closeable {
+        int getWidth();
+
+        int getHeight();
+
+        boolean hasAlpha();
+
+        /**
+         * Read rows [y, y + rows) as ARGB pixels into the start of dst.
+         */
+        void read(int[] dst, int y, int rows) throws IOException;
+    }
+
+    private final ColorTransformGenerator generator;
+    private int stripHeight = DEFAULT_STRIP_HEIGHT;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private ProgressListener progressListener;
+
+    // time spent in each stage by the last call to transform().
+    private long decodeNanos;
+    private long transformNanos;
+    private long encodeNanos;
+
+    public StreamingImageTransform(ColorTransformGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * Set the number of rows read, transformed and written at a time.
+     *
+     * @param stripHeight
+     * @return
+     */
+    public StreamingImageTransform setStripHeight(int stripHeight) {
+        if (stripHeight < 1) {
+            throw new RuntimeException("Strip height must be at least 1");
+        }
+        this.stripHeight = stripHeight;
+
+        return this;
+    }
+
+    /**
+     * Set the zlib compression level of the PNG file. Lower levels are faster
+     * and make bigger files.
+     *
+     * @param compressionLevel
+     * @return
+     */
+    public StreamingImageTransform setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new RuntimeException(
+                    "Compression level must be in range [0, 9]");
+        }
+        this.compressionLevel = compressionLevel;
+
+        return this;
+    }
+
+    public StreamingImageTransform setProgressListener(
+            ProgressListener progressListener) {
+        this.progressListener = progressListener;
+
+        return this;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * Transform an image and write it as a PNG file. The alpha channel is kept
+     * if the image has one.
+     *
+     * @param input
+     * @param output
+     * @return number of pixels transformed
+     * @throws IOException
+     */
+    public long transform(Path input, Path output) throws IOException {
+        decodeNanos = 0;
+        transformNanos = 0;
+        encodeNanos = 0;
+        long startTime = System.nanoTime();
+
+        try (StripSource source = openSource(input)) {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int rows = Math.min(stripHeight, height);
+            int[] strip = new int[Math.multiplyExact(width, rows)];
+            boolean alpha = source.hasAlpha();
+            long pixelsDone = 0;
+
+            try (PngStripWriter writer = new PngStripWriter(
+                    new BufferedOutputStream(Files.newOutputStream(output),
+                            1 << 16), width, height, alpha, compressionLevel)) {
+                for (int y = 0; y < height; y += rows) {
+                    int count = Math.min(rows, height - y);
+
+                    long time = System.nanoTime();
+                    source.read(strip, y, count);
+                    long decoded = System.nanoTime();
+                    generator.transformRegion(strip, 0, width, width, count,
+                            alpha);
+                    long transformed = System.nanoTime();
+                    writer.writeRows(strip, 0, width, count);
+                    long encoded = System.nanoTime();
+
+                    decodeNanos += decoded - time;
+                    transformNanos += transformed - decoded;
+                    encodeNanos += encoded - transformed;
+                    pixelsDone += (long) width * count;
+
+                    if (progressListener != null) {
+                        progressListener.progress(y + count, height,
+                                pixelsDone, encoded - startTime);
+                    }
+                }
+            }
+
+            return pixelsDone;
+        }
+    }
+
+    private static StripSource openSource(Path input) throws IOException {
+        StripSource png = PngStripReader.open(input);
+        if (png != null) {
+            return png;
+        }
+
+        return new ImageReaderSource(input);
+    }
+
+    /**
+     * Reads strips with an ImageIO reader.
+     */
+    private static class ImageReaderSource implements StripSource {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final boolean alpha;
+
+        ImageReaderSource(Path input) throws IOException {
+            stream = ImageIO.createImageInputStream(input.toFile());
+            if (stream == null) {
+                throw new IOException("Unable to open " + input);
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                throw new IOException("Unknown image format");
+            }
+            reader = readers.next();
+            reader.setInput(stream, true, true);
+
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            alpha = reader.getRawImageType(0) == null
+                    || reader.getRawImageType(0).getColorModel().hasAlpha();
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean hasAlpha() {
+            return alpha;
+        }
+
+        @Override
+        public void read(int[] dst, int y, int rows) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+
+            BufferedImage image = reader.read(0, param);
+            image.getRGB(0, 0, width, rows, dst, 0, width);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        Deficiency deficiency = Deficiency.PROTANOPIA;
+        boolean daltonize = false;
+        float amount = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int stripHeight = DEFAULT_STRIP_HEIGHT;
+        int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        String input = null;
+        String output = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                case "--deficiency":
+                    deficiency = Deficiency.valueOf(args[++i]
+                            .toUpperCase(Locale.ROOT));
+                    break;
+                case "--daltonize":
+                    daltonize = true;
+                    break;
+                case "--amount":
+                    amount = Float.parseFloat(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--strip":
+                    stripHeight = Integer.parseInt(args[++i]);
+                    break;
+                case "--compression":
+                    compressionLevel = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i]);
+                    } else if (input == null) {
+                        input = args[i];
+                    } else if (output == null) {
+                        output = args[i];
+                    } else {
+                        throw new IllegalArgumentException(
+                                "Too many arguments");
+                    }
+                }
+            }
+            if (output == null) {
+                throw new IllegalArgumentException(
+                        "Input and output files are required");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() == null ? e.toString() : e
+                    .getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        ColorTransformGenerator generator = daltonize ? DaltonizeGenerator
+                .createDaltonizer(deficiency) : ColorDeficiencySimulator
+                .createSimulator(deficiency);
+        generator.setAmount(amount);
+        generator.setParallelism(threads);
+        generator.setAsyncLookupTable(false);
+        generator.getColorMap();
+
+        StreamingImageTransform transform = new StreamingImageTransform(
+                generator).setStripHeight(stripHeight).setCompressionLevel(
+                        compressionLevel);
+
+        // print progress every 10%.
+        int[] nextReport = { 10 };
+        transform.setProgressListener((rowsDone, height, pixelsDone,
+                elapsedNanos) -> {
+            int percent = (int) (100L * rowsDone / height);
+            if (percent >= nextReport[0]) {
+                nextReport[0] = percent / 10 * 10 + 10;
+                System.out.printf(Locale.ROOT, "%3d%% %.1f MPix/s%n",
+                        percent, pixelsDone * 1e3 / elapsedNanos);
+            }
+        });
+
+        try {
+            long startTime = System.nanoTime();
+            long pixels = transform.transform(Paths.get(input), Paths.get(
+                    output));
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            System.out.printf(Locale.ROOT,
+                    "Transformed %d pixels in %.2f s: %.1f MPix/s%n", pixels,
+                    seconds, pixels / 1e6 / seconds);
+            System.out.printf(Locale.ROOT,
+                    "Decode: %.2f s | Transform: %.2f s | Encode: %.2f s%n",
+                    transform.getDecodeNanos() / 1e9, transform
+                            .getTransformNanos() / 1e9, transform
+                                    .getEncodeNanos() / 1e9);
+        } catch (IOException e) {
+            System.err.println("Unable to transform " + input + ": "
+                    + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package colorblind.generators;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import colorblind.Deficiency;
+import colorblind.generators.util.ColorLattice;
+import colorblind.generators.util.PixelWorkerPool;
+
+public class ColorTransformGeneratorTest {
+
+    private static final int THREADS = 8;
+
+    /**
+     * Generator that counts how many times its table is computed. It has no
+     * kernel or fingerprint, so nothing else can provide the table.
+     */
+    private static class CountingGenerator extends ColorTransformGenerator {
+        final AtomicInteger computed = new AtomicInteger();
+
+        CountingGenerator() {
+            super(Deficiency.DEUTERANOPIA);
+        }
+
+        @Override
+        protected int[] computeColorMapLookup(float amount) {
+            computed.incrementAndGet();
+            try {
+                // give the other threads time to ask for the table too.
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            int[] colorMap = new int[1 << 24];
+            for (int color = 0; color < colorMap.length; ++color) {
+                colorMap[color] = 0xFF000000 | ~color & 0x00FFFFFF;
+            }
+
+            return colorMap;
+        }
+    }
+
+    private static int[] randomColors(int length) {
+        Random random = new Random(1);
+        int[] colors = new int[length];
+        for (int i = 0; i < length; ++i) {
+            colors[i] = random.nextInt();
+        }
+
+        return colors;
+    }
+
+    /**
+     * Run the task on several threads at the same time.
+     */
+    private static void runConcurrently(Runnable task)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    public void tableComputedOnce() throws InterruptedException {
+        CountingGenerator generator = new CountingGenerator();
+        generator.setAsyncLookupTable(false);
+        int[][] tables = new int[THREADS][];
+        AtomicInteger next = new AtomicInteger();
+
+        runConcurrently(() -> tables[next.getAndIncrement()] = generator
+                .getColorMap());
+
+        assertEquals(1, generator.computed.get(), "tables computed");
+        for (int[] table : tables) {
+            assertSame(tables[0], table, "table");
+        }
+    }
+
+    @Test
+    public void asyncTableComputedOnce() throws InterruptedException {
+        CountingGenerator generator = new CountingGenerator();
+        generator.setAsyncLookupTable(true);
+        int[] src = randomColors(10_000);
+
+        runConcurrently(() -> {
+            int[] dst = new int[src.length];
+            for (int frame = 0; frame < 20; ++frame) {
+                generator.transformPixels(src, dst);
+            }
+        });
+
+        int[] colorMap = generator.getColorMap();
+        assertEquals(1, generator.computed.get(), "tables computed");
+
+        int[] dst = new int[src.length];
+        generator.transformPixels(src, dst);
+        for (int i = 0; i < src.length; ++i) {
+            assertEquals(colorMap[src[i] & 0x00FFFFFF], dst[i], "pixel " + i);
+        }
+    }
+
+    private static ColorTransformGenerator createSimulator(String engine) {
+        ColorTransformGenerator generator = ColorDeficiencySimulator
+                .createSimulator(Deficiency.PROTANOPIA);
+        generator.setAsyncLookupTable(false);
+        generator.setDynamicAmount();
+        generator.setAmount(0.6f);
+
+        if (engine.equals("LATTICE")) {
+            generator.useLattice(ColorLattice.SMALL);
+        } else if (engine.equals("ANALYTIC")) {
+            generator.useAnalytic();
+        }
+
+        return generator;
+    }
+
+    @Test
+    public void pooledMatchesSerial() {
+        int[] src = randomColors(300_001);
+        PixelWorkerPool pool = new PixelWorkerPool(4);
+
+        try {
+            for (String engine : new String[] { "LOOKUP_TABLE", "LATTICE",
+                    "ANALYTIC" }) {
+                int[] serial = new int[src.length];
+                createSimulator(engine).transformPixels(src, serial);
+
+                int[] pooled = new int[src.length];
+                createSimulator(engine).setWorkerPool(pool)
+                        .setMinimumChunkSize(1000).transformPixels(src, pooled);
+
+                assertArrayEquals(serial, pooled, engine);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package colorblind.generators.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BlendKernelTest {
+
+    private static final int LENGTH = 100_003;
+    private static final float[] AMOUNTS = { 0, 0.1f, 0.37f, 0.5f, 0.9f, 1 };
+    private static final int[] FORCE_ALPHAS = { 0, 0xFF000000 };
+
+    private static int[] randomColors(int length, long seed) {
+        Random random = new Random(seed);
+        int[] colors = new int[length];
+        for (int i = 0; i < length; ++i) {
+            colors[i] = random.nextInt();
+        }
+
+        return colors;
+    }
+
+    private static int[] colorMap() {
+        int[] colorMap = new int[1 << 24];
+        for (int color = 0; color < colorMap.length; ++color) {
+            colorMap[color] = 0xFF000000 | (color * 31 + 7) & 0x00FFFFFF;
+        }
+
+        return colorMap;
+    }
+
+    /**
+     * Run every method of a kernel on the same pixels. Odd offsets make the
+     * vector kernel handle a partial vector at both ends.
+     */
+    private static int[][] run(BlendKernel kernel, int[] colorMap,
+            int[] src, int[] mapped, float amount, int forceAlpha) {
+        int length = LENGTH - 2;
+        int[] lookup = new int[LENGTH];
+        int[] lookupBlend = new int[LENGTH];
+        int[] blend = new int[LENGTH];
+        int[] single = new int[LENGTH];
+
+        kernel.lookup(colorMap, src, 1, lookup, 1, length, forceAlpha);
+        kernel.lookupBlend(colorMap, src, 1, lookupBlend, 1, length, amount,
+                1 - amount, forceAlpha);
+        kernel.blend(src, 1, mapped, 1, blend, 1, length, amount, 1 - amount,
+                forceAlpha);
+        for (int i = 1; i <= length; ++i) {
+            single[i] = kernel.blend(src[i], mapped[i], amount, 1 - amount,
+                    forceAlpha);
+        }
+
+        return new int[][] { lookup, lookupBlend, blend, single };
+    }
+
+    @Test
+    public void vectorMatchesScalar() {
+        BlendKernel vector = BlendKernel.vector();
+        assumeTrue(vector != null, "the Vector API is not available");
+
+        int[] colorMap = colorMap();
+        int[] src = randomColors(LENGTH, 1);
+        int[] mapped = randomColors(LENGTH, 2);
+
+        for (float amount : AMOUNTS) {
+            for (int forceAlpha : FORCE_ALPHAS) {
+                int[][] expected = run(BlendKernel.scalar(), colorMap, src,
+                        mapped, amount, forceAlpha);
+                int[][] actual = run(vector, colorMap, src, mapped, amount,
+                        forceAlpha);
+                for (int k = 0; k < expected.length; ++k) {
+                    assertArrayEquals(expected[k], actual[k], "method " + k
+                            + " amount " + amount + " alpha " + forceAlpha);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fixedPointWithinOne() {
+        int[] colorMap = colorMap();
+        int[] src = randomColors(LENGTH, 1);
+        int[] mapped = randomColors(LENGTH, 2);
+
+        for (float amount : AMOUNTS) {
+            for (int forceAlpha : FORCE_ALPHAS) {
+                int[][] expected = run(BlendKernel.scalar(), colorMap, src,
+                        mapped, amount, forceAlpha);
+                int[][] actual = run(BlendKernel.fixedPoint(), colorMap, src,
+                        mapped, amount, forceAlpha);
+
+                // looking colors up doesn't blend, so it is identical.
+                assertArrayEquals(expected[0], actual[0], "lookup alpha "
+                        + forceAlpha);
+                for (int k = 1; k < expected.length; ++k) {
+                    for (int i = 0; i < LENGTH; ++i) {
+                        int e = expected[k][i];
+                        int a = actual[k][i];
+                        assertEquals(e >>> 24, a >>> 24, "alpha of method "
+                                + k + " pixel " + i);
+                        for (int shift = 0; shift < 24; shift += 8) {
+                            int difference = Math.abs((e >> shift & 0xFF)
+                                    - (a >> shift & 0xFF));
+                            if (difference > 1) {
+                                assertEquals(e, a, "method " + k + " amount "
+                                        + amount + " pixel " + i);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
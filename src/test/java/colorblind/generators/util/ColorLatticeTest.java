@@ -0,0 +1,49 @@
+package colorblind.generators.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class ColorLatticeTest {
+
+    /**
+     * A lattice whose nodes are their own colors must give back every color.
+     */
+    private static void assertIdentity(int size,
+            ColorLattice.Interpolation interpolation) {
+        ColorLattice lattice = new ColorLattice(size, interpolation,
+                ColorLattice.nodeColors(size));
+
+        for (int color = 0; color < 1 << 24; ++color) {
+            int looked = lattice.lookup(color) & 0x00FFFFFF;
+            if (looked != color) {
+                assertEquals(Integer.toHexString(color),
+                        Integer.toHexString(looked), "size " + size + " "
+                                + interpolation);
+            }
+        }
+    }
+
+    @Test
+    public void identityAtMaxSize() {
+        for (ColorLattice.Interpolation interpolation : ColorLattice.Interpolation
+                .values()) {
+            assertIdentity(ColorLattice.MAX_SIZE, interpolation);
+        }
+    }
+
+    @Test
+    public void identityAtLarge() {
+        for (ColorLattice.Interpolation interpolation : ColorLattice.Interpolation
+                .values()) {
+            assertIdentity(ColorLattice.LARGE, interpolation);
+        }
+    }
+
+    @Test
+    public void rejectsSizeAboveMax() {
+        assertThrows(RuntimeException.class,
+                () -> ColorLattice.nodeColors(ColorLattice.MAX_SIZE + 1));
+    }
+}
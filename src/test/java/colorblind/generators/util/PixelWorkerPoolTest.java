@@ -0,0 +1,160 @@
+package colorblind.generators.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class PixelWorkerPoolTest {
+
+    private static final int LENGTH = 100_000;
+    private static final int STRIPE_SIZE = 1000;
+
+    private static int[] randomColors(int length) {
+        Random random = new Random(1);
+        int[] colors = new int[length];
+        for (int i = 0; i < length; ++i) {
+            colors[i] = random.nextInt();
+        }
+
+        return colors;
+    }
+
+    private static int transform(int color) {
+        return Integer.rotateLeft(color, 7) ^ 0x5A5A5A5A;
+    }
+
+    @Test
+    public void pooledMatchesSerial() {
+        int[] src = randomColors(LENGTH);
+        int[] serial = new int[LENGTH];
+        for (int i = 0; i < LENGTH; ++i) {
+            serial[i] = transform(src[i]);
+        }
+
+        PixelWorkerPool pool = new PixelWorkerPool(4);
+        try {
+            for (int frame = 0; frame < 20; ++frame) {
+                int[] pooled = new int[LENGTH];
+                // every pixel must be done exactly once.
+                int[] visits = new int[LENGTH];
+                pool.run((from, to) -> {
+                    for (int i = from; i < to; ++i) {
+                        pooled[i] = transform(src[i]);
+                        visits[i]++;
+                    }
+                }, LENGTH, STRIPE_SIZE);
+
+                assertArrayEquals(serial, pooled, "frame " + frame);
+                for (int i = 0; i < LENGTH; ++i) {
+                    assertEquals(1, visits[i], "visits of pixel " + i);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void nestedRun() {
+        PixelWorkerPool pool = new PixelWorkerPool(4);
+        try {
+            int[] visits = new int[LENGTH];
+            pool.run((from, to) -> {
+                // a task splitting its own range runs it on its own thread.
+                pool.run((nestedFrom, nestedTo) -> {
+                    for (int i = from + nestedFrom; i < from + nestedTo; ++i) {
+                        visits[i]++;
+                    }
+                }, to - from, 100);
+            }, LENGTH, STRIPE_SIZE);
+
+            for (int i = 0; i < LENGTH; ++i) {
+                assertEquals(1, visits[i], "visits of pixel " + i);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void throwingTask() {
+        PixelWorkerPool pool = new PixelWorkerPool(4);
+        try {
+            RuntimeException e = assertThrows(RuntimeException.class,
+                    () -> pool.run((from, to) -> {
+                        if (from == 50 * STRIPE_SIZE) {
+                            throw new RuntimeException("stripe failed");
+                        }
+                    }, LENGTH, STRIPE_SIZE));
+            assertEquals("stripe failed", e.getMessage());
+
+            // the pool can still be used.
+            int[] visits = new int[LENGTH];
+            pool.run((from, to) -> {
+                for (int i = from; i < to; ++i) {
+                    visits[i]++;
+                }
+            }, LENGTH, STRIPE_SIZE);
+            for (int i = 0; i < LENGTH; ++i) {
+                assertEquals(1, visits[i], "visits of pixel " + i);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownDuringFrame() throws InterruptedException {
+        for (int attempt = 0; attempt < 200; ++attempt) {
+            PixelWorkerPool pool = new PixelWorkerPool(3);
+            int[] pixels = new int[20_000];
+
+            Thread submitter = new Thread(() -> {
+                try {
+                    for (int frame = 0; frame < 5; ++frame) {
+                        pool.run((from, to) -> {
+                            for (int i = from; i < to; ++i) {
+                                pixels[i]++;
+                            }
+                        }, pixels.length, STRIPE_SIZE);
+                    }
+                } catch (RuntimeException e) {
+                    // the pool was shut down before a frame started.
+                }
+            });
+            submitter.start();
+            pool.shutdown();
+
+            // a frame that already started must still finish.
+            submitter.join(10_000);
+            assertFalse(submitter.isAlive(), "submitter is stuck, attempt "
+                    + attempt);
+            assertThrows(RuntimeException.class,
+                    () -> pool.run((from, to) -> {
+                    }, 1, 1));
+        }
+    }
+
+    @Test
+    public void shutdownFromTask() {
+        PixelWorkerPool pool = new PixelWorkerPool(3);
+        int[] visits = new int[LENGTH];
+        pool.run((from, to) -> {
+            if (from == 0) {
+                pool.shutdown();
+            }
+            for (int i = from; i < to; ++i) {
+                visits[i]++;
+            }
+        }, LENGTH, STRIPE_SIZE);
+
+        for (int i = 0; i < LENGTH; ++i) {
+            assertEquals(1, visits[i], "visits of pixel " + i);
+        }
+    }
+}
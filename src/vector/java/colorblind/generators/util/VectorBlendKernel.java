@@ -0,0 +1,143 @@
+package colorblind.generators.util;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * BlendKernel that uses the Java Vector API to transform several pixels at
+ * once.
+ *
+ * This is compiled separately from the rest of the library because it needs
+ * the jdk.incubator.vector module. It is only used if the JVM was started
+ * with --add-modules jdk.incubator.vector.
+ *
+ * The blend uses separate multiplies and adds, the same as the scalar code,
+ * and truncates the same way, so the results are identical. Leftover pixels at the end of each range are
+ * transformed by ScalarBlendKernel.
+ *
+ * @author James Schmitz
+ *
+ */
+public class VectorBlendKernel extends ScalarBlendKernel {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    // indices for the colorMap gather.
+    private static final ThreadLocal<int[]> INDICES = ThreadLocal
+            .withInitial(() -> new int[INTS.length()]);
+
+    @Override
+    public void blend(int[] src, int srcOffset, int[] mapped,
+            int mappedOffset, int[] dst, int dstOffset, int length,
+            float amount, float amountComplement, int forceAlpha) {
+        int upperBound = INTS.loopBound(length);
+
+        int i = 0;
+        for (; i < upperBound; i += INTS.length()) {
+            IntVector color = IntVector.fromArray(INTS, src, srcOffset + i);
+            IntVector map = IntVector.fromArray(INTS, mapped, mappedOffset + i);
+
+            blendVector(color, map, amount, amountComplement, forceAlpha)
+                    .intoArray(dst, dstOffset + i);
+        }
+
+        super.blend(src, srcOffset + i, mapped, mappedOffset + i, dst,
+                dstOffset + i, length - i, amount, amountComplement,
+                forceAlpha);
+    }
+
+    @Override
+    public void lookupBlend(int[] colorMap, int[] src, int srcOffset,
+            int[] dst, int dstOffset, int length, float amount,
+            float amountComplement, int forceAlpha) {
+        int[] indices = INDICES.get();
+        int upperBound = INTS.loopBound(length);
+
+        int i = 0;
+        for (; i < upperBound; i += INTS.length()) {
+            IntVector color = IntVector.fromArray(INTS, src, srcOffset + i);
+            IntVector map = gather(colorMap, color, indices);
+
+            blendVector(color, map, amount, amountComplement, forceAlpha)
+                    .intoArray(dst, dstOffset + i);
+        }
+
+        super.lookupBlend(colorMap, src, srcOffset + i, dst, dstOffset + i,
+                length - i, amount, amountComplement, forceAlpha);
+    }
+
+    @Override
+    public void lookup(int[] colorMap, int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length, int forceAlpha) {
+        int[] indices = INDICES.get();
+        int upperBound = INTS.loopBound(length);
+
+        int i = 0;
+        for (; i < upperBound; i += INTS.length()) {
+            IntVector color = IntVector.fromArray(INTS, src, srcOffset + i);
+            IntVector map = gather(colorMap, color, indices);
+
+            if (forceAlpha != 0xFF000000) {
+                map = color.or(forceAlpha).and(0xFF000000).or(
+                        map.and(0x00FFFFFF));
+            }
+            map.intoArray(dst, dstOffset + i);
+        }
+
+        super.lookup(colorMap, src, srcOffset + i, dst, dstOffset + i,
+                length - i, forceAlpha);
+    }
+
+    private static IntVector gather(int[] colorMap, IntVector color,
+            int[] indices) {
+        color.and(0x00FFFFFF).intoArray(indices, 0);
+
+        return IntVector.fromArray(INTS, colorMap, 0, indices, 0);
+    }
+
+    private static IntVector blendVector(IntVector color, IntVector map,
+            float amount, float amountComplement, int forceAlpha) {
+        IntVector alpha = color.or(forceAlpha).and(0xFF000000);
+
+        return alpha
+                .or(blendChannel(color, map, 16, amount, amountComplement)
+                        .lanewise(VectorOperators.LSHL, 16))
+                .or(blendChannel(color, map, 8, amount, amountComplement)
+                        .lanewise(VectorOperators.LSHL, 8))
+                .or(blendChannel(color, map, 0, amount, amountComplement));
+    }
+
+    /**
+     * (int) (channel * amountComplement + mapChannel * amount) for one
+     * channel of every lane.
+     */
+    private static IntVector blendChannel(IntVector color, IntVector map,
+            int shift, float amount, float amountComplement) {
+        FloatVector c = (FloatVector) color.lanewise(VectorOperators.LSHR,
+                shift).and(0xFF).convert(VectorOperators.I2F, 0);
+        FloatVector m = (FloatVector) map.lanewise(VectorOperators.LSHR,
+                shift).and(0xFF).convert(VectorOperators.I2F, 0);
+
+        return truncate(c.mul(amountComplement).add(m.mul(amount)));
+    }
+
+    /**
+     * Same as casting each lane to an int, for values in the range [0, 2^22).
+     *
+     * The F2I conversion is not compiled to vector instructions in Java 17,
+     * which makes it very slow. Instead, adding 2^23 rounds the value to the
+     * nearest integer and puts that integer in the low bits of the float.
+     * Subtracting 1 where that rounded up gives the truncated value.
+     */
+    private static IntVector truncate(FloatVector v) {
+        IntVector rounded = v.add(8388608f).reinterpretAsInts().sub(
+                0x4B000000);
+        FloatVector roundedFloat = (FloatVector) rounded.convert(
+                VectorOperators.I2F, 0);
+
+        return rounded.sub(1, roundedFloat.compare(VectorOperators.GT, v)
+                .cast(INTS));
+    }
+}